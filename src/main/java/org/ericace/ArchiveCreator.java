@@ -7,8 +7,8 @@ package org.ericace;
  */
 public interface ArchiveCreator {
     /**
-     * Creates the archive. (Always creates a Gzip TAR even if you don't name it such, so you should name it
-     * ...tar.gz
+     * Creates the archive. (Creates a Gzip TAR unless configured to create a ZIP, regardless of the name, so you
+     * should name it ...tar.gz or ...zip accordingly
      */
     void createArchive();
 
@@ -1,12 +1,17 @@
 package org.ericace;
 
 import org.ericace.binary.*;
+import org.ericace.threaded.EntryDeflater;
+import org.ericace.threaded.LoaderScheduler;
 import org.ericace.threaded.ThreadedArchiveCreator;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.stream.Collectors;
 
 /**
  * A factory to create {@link ArchiveCreator} instances from configuration info specified on the command line. The
@@ -21,16 +26,206 @@ public class ArchiveCreatorFactory {
      * @return the created instance
      */
     public static ArchiveCreator fromArgs(Args args) {
+        Metrics metrics = new Metrics();
+        String target = args.uploadUri != null ? args.uploadUri : args.archiveFqpn;
+        ArchiveSink sink = args.uploadUri != null ?
+                new MultipartUploadSink(args.uploadUri, args.region, args.endpoint, args.uploadParts) :
+                fileSink(args, args.archiveFqpn);
+        if (args.scenario == Args.Scenario.coordinator) {
+            return new ShardCoordinator.Builder()
+                    .workers(args.workers)
+                    .documentCount(args.documentCount)
+                    .tarFQPN(target)
+                    .sink(sink)
+                    .tmpDir(Paths.get(getOrCreateBinCachePath()))
+                    .metrics(metrics)
+                    .build();
+        }
         // just create a dummy document reader that returns 'file-1', 'file-2', ...
-        DocumentReader reader = new DocumentReader(args.documentCount);
-        BinaryProvider provider = null;
+        DeltaIndex delta = deltaIndex(args);
+        DocumentReader reader = delta == null ? new DocumentReader(args.documentCount) :
+                new DocumentReader(args.documentCount, delta);
+        BinaryProvider provider = providerFromArgs(args);
+        if (args.warmUp != 0) {
+            sink = warmUp(args.warmUp, provider, sink, metrics);
+        }
+        ZstdDictionary zstd = zstdDictionary(args);
+        ArchiveCreator creator;
+        if (args.scenario == Args.Scenario.multi) {
+            EntryDigester digester = digester(args);
+            creator = threadedBuilder(args, target, reader, digester, zstd)
+                    .zstd(zstd)
+                    .dedup(dedup(args))
+                    .sink(sink)
+                    .blockGzip(blockGzip(args))
+                    .digester(digester)
+                    .binaryService(new BinaryService(provider))
+                    .metrics(metrics)
+                    .build();
+        } else {
+            creator = new SingleThreadArchiveCreator.Builder()
+                    .reader(reader)
+                    .binaryService(new BinaryService(provider))
+                    .tarFQPN(target)
+                    .sink(sink)
+                    .format(args.format)
+                    .blockGzip(blockGzip(args))
+                    .zstd(zstd)
+                    .dedup(dedup(args))
+                    .digester(digester(args))
+                    .metrics(metrics)
+                    .build();
+        }
+        return delta == null ? creator :
+                new IncrementalArchiveCreator(creator, delta, Paths.get(args.archiveFqpn + DeltaIndex.EXTENSION));
+    }
+
+    /**
+     * Opens the provider's connections and prepares its local storage, and opens the archive output, before the
+     * archive clock starts. The time taken is reported separately by the metrics.
+     *
+     * @param connections the number of connections to open
+     * @param provider    the binary provider
+     * @param sink        the archive output
+     * @param metrics     receives the warm-up time
+     * @return a sink over the opened output
+     */
+    private static ArchiveSink warmUp(int connections, BinaryProvider provider, ArchiveSink sink, Metrics metrics) {
+        Instant start = Instant.now();
+        provider.warmUp(connections);
+        try {
+            sink = ArchiveSink.preOpened(sink);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        metrics.setWarmUp(Duration.between(start, Instant.now()));
+        return sink;
+    }
+
+    /**
+     * Creates an <code>ArchiveCreator</code> instance for one job in service mode. The job gets its binaries
+     * from the passed scheduler, which is shared by all jobs, and otherwise uses the threaded configuration
+     * from the command line.
+     *
+     * @param args          Service configuration specified on the command line
+     * @param scheduler     the loader scheduler shared by all jobs
+     * @param binaryService the binary service shared by all jobs
+     * @param job           the job to create an archive for
+     * @return the created instance
+     */
+    public static ArchiveCreator forJob(Args args, LoaderScheduler scheduler, BinaryService binaryService,
+                                        ArchiveJob job) {
+        return threadedBuilder(args, job.getTarget(), new DocumentReader(job.getFirstDocument(),
+                job.getDocumentCount()), null, null)
+                .sink(job.getSink())
+                .segment(job.getSegment())
+                .binaryService(binaryService)
+                .loaderScheduler(scheduler, job.getName(), job.getWeight())
+                .metrics(new Metrics())
+                .build();
+    }
+
+    /**
+     * Creates a sink that writes an archive file, through a write-behind stage unless the command line
+     * disabled it
+     *
+     * @param args        Archive creator configuration specified on the command line
+     * @param archiveFqpn the file to write
+     * @return the sink
+     */
+    public static ArchiveSink fileSink(Args args, String archiveFqpn) {
+        return args.writeBufferMb == 0 ? ArchiveSink.toFile(archiveFqpn) :
+                ArchiveSink.toFile(archiveFqpn, args.writeBufferMb * 1024 * 1024, args.fsync);
+    }
+
+    /**
+     * Creates the block-gzip layout for the archive file, with the index beside the archive
+     *
+     * @param args Archive creator configuration specified on the command line
+     * @return the layout, or null if the command line didn't ask for block-gzip
+     */
+    private static BlockGzipOutputStream.Layout blockGzip(Args args) {
+        if (args.blockMb == 0 && args.blockEntries == 0) {
+            return null;
+        }
+        return new BlockGzipOutputStream.Layout(args.blockMb * 1024L * 1024, args.blockEntries,
+                Paths.get(args.archiveFqpn + ArchiveIndex.EXTENSION));
+    }
+
+    /**
+     * Creates the zstd dictionary for the archive. For a zstd TAR, the dictionary is written beside the archive,
+     * named like the archive with a '.dict' extension. For a ZIP, it is an entry of the archive.
+     *
+     * @param args Archive creator configuration specified on the command line
+     * @return the dictionary, or null if the command line didn't ask for one
+     */
+    private static ZstdDictionary zstdDictionary(Args args) {
+        if (args.dictionarySamples == 0) {
+            return null;
+        }
+        return new ZstdDictionary(args.dictionarySamples, args.format == ArchiveFormat.tzst ?
+                Paths.get(args.archiveFqpn + ZstdDictionary.EXTENSION) : null);
+    }
+
+    /**
+     * Creates the index that finds repeated attachments, so they are written as hard links
+     *
+     * @param args Archive creator configuration specified on the command line
+     * @return the index, or null if the command line didn't ask for dedup
+     */
+    private static DedupIndex dedup(Args args) {
+        return args.dedup == 0 ? null : new DedupIndex(args.dedup);
+    }
+
+    /**
+     * Creates the digester that checksums the entries of the archive file, and writes the manifest beside it
+     *
+     * @param args Archive creator configuration specified on the command line
+     * @return the digester, or null if the command line didn't ask for checksums
+     */
+    private static EntryDigester digester(Args args) {
+        if (args.checksums.isEmpty()) {
+            return null;
+        }
+        return new EntryDigester(args.checksums, args.verifyETags,
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+                Paths.get(args.archiveFqpn + EntryDigester.EXTENSION));
+    }
+
+    /**
+     * Loads the manifests of the previous runs that an incremental archive is built on
+     *
+     * @param args Archive creator configuration specified on the command line
+     * @return the index, or null if the command line didn't ask for an incremental archive
+     */
+    private static DeltaIndex deltaIndex(Args args) {
+        if (args.since.isEmpty()) {
+            return null;
+        }
+        try {
+            return new DeltaIndex(args.since.stream().map(Paths::get).collect(Collectors.toList()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Creates a binary provider from command-line params
+     *
+     * @param args Archive creator configuration specified on the command line
+     * @return the created instance
+     */
+    public static BinaryProvider providerFromArgs(Args args) {
+        FaultInjectingBinaryProvider.Spec inject = args.inject == null ? null :
+                FaultInjectingBinaryProvider.Spec.parse(args.inject);
+        BinaryProvider provider;
         switch (args.binaryProvider) {
             case fake:
-                provider = new FakeBinaryProvider(args.binarySizes);
+                provider = new FakeBinaryProvider(args.binarySizes, inject == null || !inject.hasLatency());
                 break;
             case s3client:
                 provider = new AmazonS3BinaryProvider(args.bucketName, args.region, getOrCreateBinCachePath(),
-                        args.keys);
+                        args.arenaMb * 1024L * 1024, args.keys);
                 break;
             case transfermanager:
                 provider = new S3TransferManagerBinaryProvider(args.threadCount, args.bucketName, args.region,
@@ -38,29 +233,39 @@ public class ArchiveCreatorFactory {
                 break;
             case s3asyncclient:
                 provider = new S3AsyncBinaryProvider(args.maxConcurrency, args.maxPendingConnectionAcquires,
-                        args.bucketName, args.region, getOrCreateBinCachePath(), args.keys);
+                        args.bucketName, args.region, getOrCreateBinCachePath(), args.arenaMb * 1024L * 1024,
+                        args.keys);
+                break;
+            case httpclient:
+                provider = new HttpClientBinaryProvider(args.maxConcurrency, args.bucketName, args.region,
+                        args.endpoint, getOrCreateBinCachePath(), args.arenaMb * 1024L * 1024, args.keys);
                 break;
             default:
                 throw new RuntimeException("Un-supported binary provider: " +  args.binaryProvider);
         }
-        Metrics metrics = new Metrics();
-        if (args.scenario == Args.Scenario.multi) {
-            return new ThreadedArchiveCreator.Builder()
-                    .binaryLoaderThreads(args.threadCount)
-                    .memCacheSize(args.cacheSize)
-                    .reader(reader)
-                    .binaryService(new BinaryService(provider))
-                    .tarFQPN(args.archiveFqpn)
-                    .metrics(metrics)
-                    .build();
-        } else {
-            return new SingleThreadArchiveCreator.Builder()
-                    .reader(reader)
-                    .binaryService(new BinaryService(provider))
-                    .tarFQPN(args.archiveFqpn)
-                    .metrics(metrics)
-                    .build();
-        }
+        return inject == null ? provider : new FaultInjectingBinaryProvider(provider, inject);
+    }
+
+    /**
+     * Creates a <code>ThreadedArchiveCreator</code> builder with the threaded configuration from the
+     * command line
+     */
+    private static ThreadedArchiveCreator.Builder threadedBuilder(Args args, String archiveFqpn,
+                                                                  DocumentReader reader, EntryDigester digester,
+                                                                  ZstdDictionary zstd) {
+        Spool spool = args.spillCapacity == 0 ? null :
+                new Spool(Paths.get(getOrCreateBinCachePath()), Spool.DEFAULT_SEGMENT_SIZE);
+        EntryDeflater deflater = args.format == ArchiveFormat.zip ?
+                new EntryDeflater(Paths.get(getOrCreateBinCachePath()), digester, zstd) : null;
+        return new ThreadedArchiveCreator.Builder()
+                .zip(deflater)
+                .binaryLoaderThreads(args.threadCount)
+                .memCacheSize(args.cacheSize)
+                .dispatchWindow(args.dispatchWindow)
+                .spill(spool, args.spillCapacity)
+                .reader(reader)
+                .documentReaders(args.documentReaders)
+                .tarFQPN(archiveFqpn);
     }
 
     /**
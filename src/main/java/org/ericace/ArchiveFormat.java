@@ -0,0 +1,21 @@
+package org.ericace;
+
+/**
+ * The archive formats the {@link ArchiveCreator} implementations can generate
+ */
+public enum ArchiveFormat {
+    /**
+     * A gzipped TAR. The whole archive is one compressed stream, so compression runs on the archive writer thread.
+     */
+    tgz,
+    /**
+     * A zstd TAR, compressed as one stream with a dictionary trained on the first entries. The dictionary is
+     * written beside the archive. See {@link ZstdDictionary}.
+     */
+    tzst,
+    /**
+     * A ZIP. Each entry is compressed independently, so the multi-threaded creator deflates entries on the loader
+     * threads and the archive writer only copies them into the archive.
+     */
+    zip
+}
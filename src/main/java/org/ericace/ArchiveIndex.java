@@ -0,0 +1,136 @@
+package org.ericace;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The sidecar index of a block-gzip archive written by {@link BlockGzipOutputStream}. One line per entry, tab
+ * separated: the compressed offset of the gzip member holding the entry, the offset of the entry's TAR header in
+ * the member's uncompressed content, the entry size, and the entry name. The name is last so it can contain
+ * anything but a line break.
+ * <p>
+ * Extracting one entry reads the index, seeks to the entry's member, and decompresses only up to the end of the
+ * entry - so the cost depends on the member size rather than on the archive size.
+ */
+public class ArchiveIndex {
+
+    /**
+     * The first line of an index file
+     */
+    static final String HEADER = "# archive-builder block-gzip index v1";
+
+    /**
+     * The index file extension, appended to the archive file name
+     */
+    public static final String EXTENSION = ".idx";
+
+    /**
+     * The location of one entry
+     */
+    public static class Entry {
+        public final long memberOffset;
+        public final long entryOffset;
+        public final long size;
+
+        Entry(long memberOffset, long entryOffset, long size) {
+            this.memberOffset = memberOffset;
+            this.entryOffset = entryOffset;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Entry locations by entry name
+     */
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private ArchiveIndex() {
+    }
+
+    /**
+     * Formats one line of the index
+     */
+    static String format(String name, long memberOffset, long entryOffset, long size) {
+        return memberOffset + "\t" + entryOffset + "\t" + size + "\t" + name;
+    }
+
+    /**
+     * Reads an index file
+     *
+     * @param indexFile the index
+     * @return the index
+     * @throws IOException if the file can't be read, or isn't an index
+     */
+    public static ArchiveIndex read(Path indexFile) throws IOException {
+        ArchiveIndex index = new ArchiveIndex();
+        try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                throw new IOException("Not an archive index: " + indexFile);
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                index.entries.put(fields[3], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2])));
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @param name an entry name
+     * @return the entry's location, or null if the index has no such entry
+     */
+    public Entry find(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Opens one entry in a block-gzip archive, using the archive's sidecar index
+     *
+     * @param archive the archive. The index is expected beside it, with the {@link #EXTENSION} extension.
+     * @param name    the entry name
+     * @return a stream over the entry content. The caller must close it.
+     * @throws IOException if the entry isn't in the index, or the archive can't be read
+     */
+    public static InputStream open(Path archive, String name) throws IOException {
+        Entry entry = read(archive.resolveSibling(archive.getFileName() + EXTENSION)).find(name);
+        if (entry == null) {
+            throw new IOException("No such entry: " + name);
+        }
+        FileChannel channel = FileChannel.open(archive);
+        try {
+            channel.position(entry.memberOffset);
+            InputStream gzis = new GZIPInputStream(Channels.newInputStream(channel), 64 * 1024);
+            for (long skip = entry.entryOffset; skip > 0; ) {
+                long n = gzis.skip(skip);
+                if (n <= 0) {
+                    throw new IOException("Index does not match archive at entry: " + name);
+                }
+                skip -= n;
+            }
+            TarArchiveInputStream tis = new TarArchiveInputStream(gzis);
+            TarArchiveEntry tarEntry = tis.getNextTarEntry();
+            if (tarEntry == null || !tarEntry.getName().equals(name)) {
+                tis.close();
+                throw new IOException("Index does not match archive at entry: " + name);
+            }
+            return tis;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.ericace;
+
+import java.time.Instant;
+
+/**
+ * One archive job submitted to the {@link ArchiveService}. Holds the job parameters and its current state.
+ */
+public class ArchiveJob {
+
+    /**
+     * Job lifecycle
+     */
+    public enum State {queued, running, done, failed}
+
+    /**
+     * Unique job name, like "job-1"
+     */
+    private final String name;
+
+    /**
+     * Describes where the archive goes - the fully-qualified path name of the archive file, or the client of a
+     * streamed archive
+     */
+    private final String target;
+
+    /**
+     * Where the archive is written
+     */
+    private final ArchiveSink sink;
+
+    /**
+     * The number of documents the job's reader will provide
+     */
+    private final int documentCount;
+
+    /**
+     * The ID of the first document the job's reader will provide
+     */
+    private final long firstDocument;
+
+    /**
+     * The job's share of the binary loaders relative to other jobs
+     */
+    private final int weight;
+
+    /**
+     * Whether the job generates a whole archive, or a segment of one
+     */
+    private final TarSegment segment;
+
+    private volatile State state = State.queued;
+
+    /**
+     * When the job finished, or null if it hasn't
+     */
+    private volatile Instant finished;
+
+    /**
+     * Constructor
+     *
+     * @param name          see {@link #name}
+     * @param target        see {@link #target}
+     * @param sink          see {@link #sink}
+     * @param firstDocument see {@link #firstDocument}
+     * @param documentCount see {@link #documentCount}
+     * @param weight        see {@link #weight}
+     * @param segment       see {@link #segment}
+     */
+    public ArchiveJob(String name, String target, ArchiveSink sink, long firstDocument, int documentCount, int weight,
+                      TarSegment segment) {
+        this.name = name;
+        this.target = target;
+        this.sink = sink;
+        this.firstDocument = firstDocument;
+        this.documentCount = documentCount;
+        this.weight = weight;
+        this.segment = segment;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public ArchiveSink getSink() {
+        return sink;
+    }
+
+    public long getFirstDocument() {
+        return firstDocument;
+    }
+
+    public int getDocumentCount() {
+        return documentCount;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public TarSegment getSegment() {
+        return segment;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public Instant getFinished() {
+        return finished;
+    }
+
+    void setState(State state) {
+        if (state == State.done || state == State.failed) {
+            finished = Instant.now();
+        }
+        this.state = state;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + state + " " + target + " first=" + firstDocument + " documents=" + documentCount
+                + " weight=" + weight + " segment=" + segment;
+    }
+}
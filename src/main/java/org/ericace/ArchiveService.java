@@ -0,0 +1,392 @@
+package org.ericace;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.Gauge;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.ericace.binary.BinaryService;
+import org.ericace.threaded.LoaderScheduler;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * A long-running service that accepts many archive jobs and runs them concurrently in one JVM. All jobs share
+ * one {@link BinaryService} - and hence one provider and its connection pool - and one {@link LoaderScheduler},
+ * which divides the loader threads among the running jobs by weighted-fair scheduling. Each job otherwise runs
+ * like the multi-threaded scenario, with its own reader, reordering queue and archive writer.
+ * <p>
+ * Jobs are submitted and monitored over a small HTTP API, which has no authentication, so it listens on the
+ * loopback interface unless the command line names another address to bind:
+ * <ul>
+ *     <li><code>POST /jobs?archive=foo.tar.gz&amp;documents=1000&amp;weight=1</code> submits a job and returns
+ *         its name. Only <code>archive</code> is required. It is resolved against the configured output
+ *         directory, and must name a file in that directory or one of its subdirectories.</li>
+ *     <li><code>GET /jobs</code> lists all jobs and their states.</li>
+ *     <li><code>GET /jobs/job-1</code> shows one job.</li>
+ *     <li><code>GET /stream?documents=1000&amp;weight=1</code> runs a job whose archive is streamed in the response
+ *         body with chunked transfer encoding while it is being built, rather than written to a file. A slow
+ *         client blocks the archive writer, which backs up the reordering queue, which shrinks the dispatch window
+ *         and idles the job's share of the loaders - so the existing pipeline bounds apply backpressure all the
+ *         way to the binary provider. The {@link #JOB_HEADER} response header names the job. If the job fails
+ *         once the response has started, the connection is dropped without the terminating chunk, so the client
+ *         sees a truncated transfer rather than an archive that looks complete, and can confirm the failure with
+ *         <code>GET /jobs/job-1</code>.</li>
+ * </ul>
+ * Finished jobs are listed, and their metrics kept, for {@link #JOB_RETENTION} after they finish.
+ */
+public class ArchiveService {
+
+    static final Gauge jobsRunning = Gauge.build().name("service_jobs_running")
+            .help("Count of archive jobs currently running.").register();
+    static final Gauge jobElapsed = Gauge.build().name("service_job_elapsed_seconds")
+            .help("Elapsed time of each completed archive job.").labelNames("job").register();
+
+    private static final Logger logger = LogManager.getLogger(ArchiveService.class);
+
+    /**
+     * How long a finished job is remembered before it expires
+     */
+    static final Duration JOB_RETENTION = Duration.ofHours(1);
+
+    /**
+     * The response header of a streamed archive that names its job
+     */
+    static final String JOB_HEADER = "X-Archive-Job";
+
+    /**
+     * Service configuration. Threaded options apply to each job.
+     */
+    private final Args args;
+
+    /**
+     * Shared by all jobs
+     */
+    private final BinaryService binaryService;
+
+    /**
+     * Shared by all jobs
+     */
+    private final LoaderScheduler scheduler;
+
+    /**
+     * Submitted archives are created in this directory or its subdirectories
+     */
+    private final Path outputDir;
+
+    /**
+     * Runs the jobs
+     */
+    private final ExecutorService jobExecutor = Executors.newCachedThreadPool();
+
+    /**
+     * Submitted jobs, by name, until they expire
+     */
+    private final Map<String, ArchiveJob> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * Names jobs
+     */
+    private final AtomicLong jobCounter = new AtomicLong(0);
+
+    /**
+     * The submission API
+     */
+    private HttpServer server;
+
+    /**
+     * Constructor
+     *
+     * @param args service configuration from the command line
+     */
+    ArchiveService(Args args) {
+        this.args = args;
+        outputDir = Paths.get(args.outputDir);
+        binaryService = new BinaryService(ArchiveCreatorFactory.providerFromArgs(args));
+        scheduler = new LoaderScheduler(args.threadCount, binaryService);
+    }
+
+    /**
+     * Starts the submission API on the configured port, on the loopback interface unless another address is
+     * configured
+     *
+     * @throws IOException if the server can't be started
+     */
+    void start() throws IOException {
+        InetAddress address = args.serviceBind == null ? InetAddress.getLoopbackAddress() :
+                InetAddress.getByName(args.serviceBind);
+        server = HttpServer.create(new InetSocketAddress(address, args.servicePort), 0);
+        server.createContext("/jobs", this::handle);
+        server.createContext("/stream", this::handleStream);
+        // streamed jobs run on the request thread, so requests can't share the default single thread
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        logger.info("Accepting jobs on {}:{}", address.getHostAddress(), args.servicePort);
+    }
+
+    /**
+     * Stops accepting jobs, interrupts running jobs, and shuts down the shared loaders and provider
+     */
+    void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+        jobExecutor.shutdownNow();
+        scheduler.shutdown();
+        binaryService.shutDownProvider();
+    }
+
+    /**
+     * Submits a job to run as soon as possible
+     *
+     * @param archiveFqpn   the archive to create
+     * @param documentCount the number of documents
+     * @param weight        the job's share of the loaders
+     * @return the job
+     */
+    ArchiveJob submit(String archiveFqpn, int documentCount, int weight) {
+        ArchiveJob job = newJob(archiveFqpn, ArchiveCreatorFactory.fileSink(args, archiveFqpn), 1, documentCount,
+                weight, TarSegment.whole);
+        jobExecutor.submit(() -> run(job));
+        logger.info("Submitted {}", job);
+        return job;
+    }
+
+    /**
+     * Creates and records a job, without running it
+     */
+    private ArchiveJob newJob(String target, ArchiveSink sink, long firstDocument, int documentCount, int weight,
+                              TarSegment segment) {
+        ArchiveJob job = new ArchiveJob("job-" + jobCounter.incrementAndGet(), target, sink, firstDocument,
+                documentCount, weight, segment);
+        expireJobs();
+        jobs.put(job.getName(), job);
+        return job;
+    }
+
+    /**
+     * Forgets the jobs that finished more than {@link #JOB_RETENTION} ago, and removes their metrics. Called
+     * whenever jobs are submitted or listed, so the service doesn't accumulate jobs while it runs.
+     */
+    private void expireJobs() {
+        Instant cutoff = Instant.now().minus(JOB_RETENTION);
+        jobs.values().removeIf(job -> {
+            Instant finished = job.getFinished();
+            if (finished == null || finished.isAfter(cutoff)) {
+                return false;
+            }
+            jobElapsed.remove(job.getName());
+            logger.info("Expired {}", job.getName());
+            return true;
+        });
+    }
+
+    /**
+     * Runs one job to completion on the calling thread
+     */
+    private void run(ArchiveJob job) {
+        job.setState(ArchiveJob.State.running);
+        jobsRunning.inc();
+        Instant start = Instant.now();
+        try {
+            ArchiveCreator creator = ArchiveCreatorFactory.forJob(args, scheduler, binaryService, job);
+            creator.getMetrics().start();
+            creator.createArchive();
+            creator.getMetrics().finishAndPrint();
+            job.setState(ArchiveJob.State.done);
+        } catch (RuntimeException e) {
+            logger.error("Job {} failed: {}", job.getName(), e.getMessage());
+            job.setState(ArchiveJob.State.failed);
+        } finally {
+            jobsRunning.dec();
+            jobElapsed.labels(job.getName()).set(Duration.between(start, Instant.now()).toMillis() / 1000D);
+        }
+        logger.info("Finished {}", job);
+    }
+
+    /**
+     * Handles the <code>/jobs</code> context. See the class comments.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+        try {
+            if (method.equals("POST") && path.equals("/jobs")) {
+                Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+                Path archive = resolveArchive(outputDir, params.get("archive"));
+                if (archive == null) {
+                    respond(exchange, 400, "archive must name a file in an existing directory under "
+                            + outputDir + ": " + params.get("archive"));
+                    return;
+                }
+                int documents = parseDocuments(params);
+                int weight = parseWeight(params);
+                if (documents < 0 || weight < 1) {
+                    respond(exchange, 400, "documents must be >= 0 and weight must be >= 1");
+                    return;
+                }
+                respond(exchange, 202, submit(archive.toString(), documents, weight).getName());
+            } else if (method.equals("GET") && (path.equals("/jobs") || path.equals("/jobs/"))) {
+                expireJobs();
+                respond(exchange, 200, jobs.values().stream().map(ArchiveJob::toString).sorted()
+                        .collect(Collectors.joining("\n")));
+            } else if (method.equals("GET")) {
+                ArchiveJob job = jobs.get(path.substring("/jobs/".length()));
+                if (job == null) {
+                    respond(exchange, 404, "No such job");
+                } else {
+                    respond(exchange, 200, job.toString());
+                }
+            } else {
+                respond(exchange, 405, "Unsupported method: " + method);
+            }
+        } catch (NumberFormatException e) {
+            respond(exchange, 400, "Invalid number: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Handles the <code>/stream</code> context. Runs a job on the request thread, with the response body as
+     * the job's sink. See the class comments. The job's writer closes the sink even when it fails, so the sink
+     * is the response body behind a close that only flushes, and only a successful job ends the chunked body.
+     *
+     * @throws IOException to have the server drop the connection if the job failed after the response started
+     */
+    private void handleStream(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            respond(exchange, 405, "Unsupported method: " + exchange.getRequestMethod());
+            return;
+        }
+        long first;
+        int documents;
+        int weight;
+        TarSegment segment;
+        try {
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            first = Long.parseLong(params.getOrDefault("first", "1"));
+            documents = parseDocuments(params);
+            weight = parseWeight(params);
+            segment = TarSegment.valueOf(params.getOrDefault("segment", TarSegment.whole.name()));
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, "Invalid parameter: " + e.getMessage());
+            return;
+        }
+        if (first < 1 || documents < 0 || weight < 1) {
+            respond(exchange, 400, "first must be >= 1, documents must be >= 0, and weight must be >= 1");
+            return;
+        }
+        boolean zip = args.format == ArchiveFormat.zip;
+        if (zip && segment != TarSegment.whole) {
+            respond(exchange, 400, "Segments are only supported for the tgz format");
+            return;
+        }
+        ArchiveJob job = newJob("stream to " + exchange.getRemoteAddress(), () -> {
+            exchange.getResponseHeaders().set("Content-Type", zip ? "application/zip" : "application/gzip");
+            exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"archive."
+                    + (zip ? "zip" : "tar.gz") + "\"");
+            // a response length of zero selects chunked transfer encoding
+            exchange.sendResponseHeaders(200, 0);
+            return new FilterOutputStream(exchange.getResponseBody()) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+        }, first, documents, weight, segment);
+        exchange.getResponseHeaders().set(JOB_HEADER, job.getName());
+        logger.info("Streaming {}", job);
+        run(job);
+        if (job.getState() == ArchiveJob.State.done) {
+            exchange.close();
+        } else if (exchange.getResponseCode() == -1) {
+            respond(exchange, 500, job.getName() + " failed");
+        } else {
+            // closing the exchange would write the terminating chunk, making the truncated archive look complete
+            throw new IOException("Dropping the response of " + job.getName() + ", which failed");
+        }
+    }
+
+    /**
+     * Resolves a submitted archive path against the output directory. Symbolic links are followed before the
+     * check, so a link can't lead out of the directory, and an existing archive that is itself a link is refused.
+     *
+     * @param outputDir the directory to confine archives to
+     * @param archive   the path from the request, relative to the output directory, or absolute
+     * @return the real path to create the archive at, or null if the path is missing, invalid, outside the
+     * output directory, or names a directory or a link
+     */
+    static Path resolveArchive(Path outputDir, String archive) {
+        if (archive == null) {
+            return null;
+        }
+        try {
+            Path root = outputDir.toRealPath();
+            Path path = root.resolve(archive).normalize();
+            Path parent = path.getParent();
+            if (parent == null || !Files.isDirectory(parent)) {
+                return null;
+            }
+            Path resolved = parent.toRealPath().resolve(path.getFileName());
+            if (!resolved.startsWith(root) || Files.isDirectory(resolved)
+                    || Files.isSymbolicLink(resolved)) {
+                return null;
+            }
+            return resolved;
+        } catch (InvalidPathException | IOException e) {
+            return null;
+        }
+    }
+
+    private int parseDocuments(Map<String, String> params) {
+        return Integer.parseInt(params.getOrDefault("documents", String.valueOf(args.documentCount)));
+    }
+
+    private static int parseWeight(Map<String, String> params) {
+        return Integer.parseInt(params.getOrDefault("weight", "1"));
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = (body + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            String[] kv = pair.split("=", 2);
+            params.put(URLDecoder.decode(kv[0], StandardCharsets.UTF_8),
+                    kv.length == 2 ? URLDecoder.decode(kv[1], StandardCharsets.UTF_8) : "");
+        }
+        return params;
+    }
+}
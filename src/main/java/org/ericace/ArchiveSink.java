@@ -0,0 +1,82 @@
+package org.ericace;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Provides the stream that an {@link ArchiveCreator} writes the compressed archive to. Decouples the creators
+ * from where the archive goes - a file, an HTTP response, etc. The creator opens the sink once, writes the whole
+ * archive to it, {@link #commit commits} it once everything was written, and closes it. The creators close the
+ * stream on the way out of a failure too, so a sink that publishes the archive on close - like an upload - must be
+ * {@link Committable}, and discard the archive when it is closed without a commit.
+ */
+@FunctionalInterface
+public interface ArchiveSink {
+    /**
+     * Opens the stream. Called once per archive.
+     *
+     * @return the stream to write the archive to
+     * @throws IOException if the stream can't be opened
+     */
+    OutputStream open() throws IOException;
+
+    /**
+     * Commits a stream opened by a sink, if the stream is {@link Committable}. Called by the archive creators once
+     * the whole archive was written, apart from any trailers that closing the compressor writes.
+     *
+     * @param os the stream returned by {@link #open}
+     */
+    static void commit(OutputStream os) {
+        if (os instanceof Committable) {
+            ((Committable) os).commit();
+        }
+    }
+
+    /**
+     * A sink stream that only publishes the archive if it was committed before it is closed. Closing it without a
+     * commit discards what was written.
+     */
+    interface Committable {
+        /**
+         * Marks the archive complete, so that closing the stream publishes it
+         */
+        void commit();
+    }
+
+    /**
+     * Opens the passed sink now, e.g. so that creating the file or starting the upload isn't timed as part of
+     * the archive
+     *
+     * @param sink the sink to open
+     * @return a sink that returns the already open stream
+     * @throws IOException if the stream can't be opened
+     */
+    static ArchiveSink preOpened(ArchiveSink sink) throws IOException {
+        OutputStream os = sink.open();
+        return () -> os;
+    }
+
+    /**
+     * Creates a sink that writes to a file
+     *
+     * @param fqpn the fully-qualified path name of the file
+     * @return the sink
+     */
+    static ArchiveSink toFile(String fqpn) {
+        return () -> new FileOutputStream(fqpn);
+    }
+
+    /**
+     * Creates a sink that writes to a file through a {@link WriteBehindOutputStream}, so the archive writer
+     * doesn't block on the disk
+     *
+     * @param fqpn       the fully-qualified path name of the file
+     * @param bufferSize the size of each write-behind buffer
+     * @param fsync      when to force the file to the storage device
+     * @return the sink
+     */
+    static ArchiveSink toFile(String fqpn, int bufferSize, WriteBehindOutputStream.FsyncPolicy fsync) {
+        return () -> new WriteBehindOutputStream(fqpn, bufferSize, WriteBehindOutputStream.DEFAULT_BUFFERS, fsync);
+    }
+}
@@ -1,5 +1,8 @@
 package org.ericace;
 
+import org.ericace.binary.FaultInjectingBinaryProvider;
+import org.ericace.binary.KeyCatalog;
+
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -23,14 +26,43 @@ class Args {
     List<Integer> binarySizes = new ArrayList<>();
     int cacheSize = 0;
     int threadCount = 0;
+    int dispatchWindow = 0;
+    int documentReaders = 0;
+    int spillCapacity = 0;
     int metricsPort = 0;
+    int servicePort = 0;
+    String serviceBind = null;
+    String outputDir = null;
     String archiveFqpn = null;
+    String uploadUri = null;
+    String endpoint = null;
+    int uploadParts = 0;
+    ArchiveFormat format = null;
+    int writeBufferMb = -1;
+    WriteBehindOutputStream.FsyncPolicy fsync = null;
+    int blockMb = 0;
+    int blockEntries = 0;
+    int dictionarySamples = 0;
+    int dedup = 0;
+    String extractEntry = null;
+    Set<EntryDigester.Algorithm> checksums = EnumSet.noneOf(EntryDigester.Algorithm.class);
+    boolean verifyETags = false;
+    List<String> since = new ArrayList<>();
+    String benchmark = null;
+    int benchmarkRuns = 0;
+    String baseline = null;
+    int tolerance = -1;
+    String report = null;
+    String inject = null;
+    int warmUp = 0;
     String bucketName = null;
     String region = null;
     boolean showConfig = false;
-    List<String> keys = new ArrayList<>();
+    KeyCatalog keys = null;
     String keysArg = null;
     List<String> loggers = new ArrayList<>();
+    List<String> workers = new ArrayList<>();
+    int arenaMb = -1;
     int maxConcurrency = 50;
     int maxPendingConnectionAcquires = 10_000;
 
@@ -54,21 +86,53 @@ class Args {
     void showConfig() {
         String cfg = "Scenario: " + scenario + "\n" +
                 "Binary Provider: " + binaryProvider + "\n" +
+                "Inject: " + inject + "\n" +
+                "Warm Up: " + warmUp + "\n" +
                 "Document Count: " + documentCount + "\n" +
                 "Metrics Port: " + metricsPort + "\n" +
                 "TAR File: " + archiveFqpn + "\n" +
+                "Format: " + format + "\n" +
+                "Upload: " + uploadUri + "\n" +
+                "Upload Parts: " + uploadParts + "\n" +
+                "Endpoint: " + endpoint + "\n" +
+                "Write Buffer MB: " + writeBufferMb + "\n" +
+                "Fsync: " + fsync + "\n" +
+                "Block MB: " + blockMb + "\n" +
+                "Block Entries: " + blockEntries + "\n" +
+                "Dictionary Samples: " + dictionarySamples + "\n" +
+                "Dedup: " + dedup + "\n" +
+                "Extract: " + extractEntry + "\n" +
+                "Checksums: " + checksums + "\n" +
+                "Verify ETags: " + verifyETags + "\n" +
+                "Since: " + since + "\n" +
+                "Benchmark: " + benchmark + "\n" +
+                "Benchmark Runs: " + benchmarkRuns + "\n" +
+                "Baseline: " + baseline + "\n" +
+                "Tolerance: " + tolerance + "\n" +
                 "Show Config: " + showConfig + "\n" +
                 "Loggers: " + loggers + "\n";
-        if (scenario == Scenario.multi) {
+        if (scenario == Scenario.service) {
+            cfg += "Service Port: " + servicePort + "\n" +
+                    "Service Bind: " + serviceBind + "\n" +
+                    "Output Dir: " + outputDir + "\n";
+        }
+        if (scenario == Scenario.coordinator) {
+            cfg += "Workers: " + workers + "\n";
+        }
+        if (scenario == Scenario.multi || scenario == Scenario.service) {
             cfg += "Cache Size: " + cacheSize + "\n" +
-                    "Thread Count: " + threadCount + "\n";
+                    "Thread Count: " + threadCount + "\n" +
+                    "Dispatch Window: " + dispatchWindow + "\n" +
+                    "Document Readers: " + documentReaders + "\n" +
+                    "Spill Capacity: " + spillCapacity + "\n";
         }
         if (binaryProvider == BinaryProvider.fake) {
             cfg += "Binary Sizes: " + binarySizes + "\n";
         }
         if (binaryProvider == BinaryProvider.s3client || binaryProvider == BinaryProvider.transfermanager
-                || binaryProvider == BinaryProvider.s3asyncclient) {
-            cfg += "Max Concurrency: " + maxConcurrency + "\n" +
+                || binaryProvider == BinaryProvider.s3asyncclient || binaryProvider == BinaryProvider.httpclient) {
+            cfg += "Arena MB: " + arenaMb + "\n" +
+                    "Max Concurrency: " + maxConcurrency + "\n" +
                     "Max Pending Connection Acquires: " + maxPendingConnectionAcquires + "\n" +
                     "Bucket Name: " + bucketName + "\n" +
                     "Region: " + region + "\n" +
@@ -97,6 +161,94 @@ class Args {
         while (parsedOk & (arg = argQueue.poll()) != null) {
             try {
                 switch (arg.toLowerCase()) {
+                    case "--workers":
+                        if (!parseWorkers(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "--service-bind":
+                        if (!parseServiceBind(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "--output-dir":
+                        if (!parseOutputDir(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "--block-mb":
+                        if (!parseBlockMb(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "--warm-up":
+                        if (!parseWarmUp(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "--block-entries":
+                        if (!parseBlockEntries(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "--dictionary-samples":
+                        if (!parseDictionarySamples(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "--dedup":
+                        if (!parseDedup(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "--checksum":
+                        if (!parseChecksums(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "--verify-etag":
+                        verifyETags = true;
+                        break;
+                    case "--since":
+                        if (!parseSince(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "--inject":
+                        if (!parseInject(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "--benchmark":
+                        if (!parseBenchmark(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "--runs":
+                        if (!parseBenchmarkRuns(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "--baseline":
+                        if (!parseBaseline(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "--tolerance":
+                        if (!parseTolerance(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "--report":
+                        if (!parseReport(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "--extract":
+                        if (!parseExtract(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
                     case "-l":
                     case "--loggers":
                         if (!parseLoggers(argQueue.poll())) {
@@ -139,12 +291,71 @@ class Args {
                             parsedOk = false;
                         }
                         break;
+                    case "-w":
+                    case "--dispatch-window":
+                        if (!parseDispatchWindow(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "--document-readers":
+                        if (!parseDocumentReaders(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "-o":
+                    case "--spill-capacity":
+                        if (!parseSpillCapacity(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
                     case "-a":
                     case "--archive":
                         if (!parseArchiveFqpn(argQueue.poll())) {
                             parsedOk = false;
                         }
                         break;
+                    case "-q":
+                    case "--upload":
+                        if (!parseUploadUri(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "-j":
+                    case "--upload-parts":
+                        if (!parseUploadParts(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "-g":
+                    case "--format":
+                        if (!parseFormat(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "-n":
+                    case "--arena":
+                        if (!parseArenaMb(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "-i":
+                    case "--write-buffer":
+                        if (!parseWriteBufferMb(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "-x":
+                    case "--fsync":
+                        if (!parseFsync(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
+                    case "-e":
+                    case "--endpoint":
+                        if (!parseEndpoint(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
                     case "-u":
                     case "--bucket":
                         if (!parseBucketName(argQueue.poll())) {
@@ -181,6 +392,12 @@ class Args {
                             parsedOk = false;
                         }
                         break;
+                    case "-v":
+                    case "--service-port":
+                        if (!parseServicePort(argQueue.poll())) {
+                            parsedOk = false;
+                        }
+                        break;
                     case "-f":
                     case "--show-config":
                         showConfig = true;
@@ -220,14 +437,30 @@ class Args {
      * Sets default values for various options
      */
     private void setDefaults() {
+        if (benchmark != null) {
+            if (benchmarkRuns == 0) benchmarkRuns = 3;
+            if (tolerance == -1) tolerance = 10;
+            return;
+        }
         if (scenario == null) scenario = Scenario.single;
         if (binaryProvider == null) binaryProvider = BinaryProvider.fake;
         if (documentCount == 0) documentCount = 50_000;
         if (metricsPort == 0) metricsPort = 1234;
+        if (format == null) format = ArchiveFormat.tgz;
+        if (format == ArchiveFormat.tzst && dictionarySamples == 0) dictionarySamples = 1000;
+        if ((binaryProvider == BinaryProvider.s3client || binaryProvider == BinaryProvider.s3asyncclient
+                || binaryProvider == BinaryProvider.httpclient) && arenaMb == -1) arenaMb = 128;
+        if (uploadUri != null && uploadParts == 0) uploadParts = 4;
+        if (uploadUri == null && writeBufferMb == -1) writeBufferMb = 0;
+        if (uploadUri == null && fsync == null) fsync = WriteBehindOutputStream.FsyncPolicy.none;
         if (binaryProvider == BinaryProvider.fake && binarySizes.size() == 0) binarySizes.add(1000);
-        if (scenario == Scenario.multi) {
+        if (scenario == Scenario.service && servicePort == 0) servicePort = 8080;
+        if (scenario == Scenario.service && outputDir == null) outputDir = System.getProperty("java.io.tmpdir");
+        if (scenario == Scenario.multi || scenario == Scenario.service) {
             if (cacheSize == 0) cacheSize = 10_000;
             if (threadCount == 0) threadCount = 10;
+            if (dispatchWindow == 0) dispatchWindow = cacheSize + spillCapacity;
+            if (documentReaders == 0) documentReaders = 1;
         }
     }
 
@@ -237,22 +470,125 @@ class Args {
      * @return true if valid, else false
      */
     private boolean optsAreValid() {
-        if (archiveFqpn == null) {
-            parseMessage = "Missing required FQPN of TAR file to create";
+        if (benchmark != null) {
+            return true;
+        } else if (benchmarkRuns != 0 || baseline != null || tolerance != -1) {
+            parseMessage = "Runs, baseline and tolerance are only valid with a benchmark";
+            return false;
+        }
+        if (archiveFqpn == null && uploadUri == null && scenario != Scenario.service) {
+            parseMessage = "Missing required FQPN of TAR file to create, or S3 URI to upload it to";
+            return false;
+        } else if (archiveFqpn != null && uploadUri != null) {
+            parseMessage = "Specify only one of: archive FQPN, or S3 URI to upload the archive to";
+            return false;
+        } else if ((archiveFqpn != null || uploadUri != null) && scenario == Scenario.service) {
+            parseMessage = "The service scenario gets the archive FQPN from each submitted job";
+            return false;
+        }
+        if (uploadUri != null && region == null) {
+            parseMessage = "Uploading the archive to S3 requires a region";
+            return false;
+        }
+        if (uploadParts != 0 && uploadUri == null) {
+            parseMessage = "Upload parts only valid when uploading the archive to S3";
+            return false;
+        }
+        if (uploadUri != null && (writeBufferMb != -1 || fsync != null)) {
+            parseMessage = "Write buffer and fsync only valid when writing the archive to a file";
+            return false;
+        }
+        if (writeBufferMb == 0 && fsync != WriteBehindOutputStream.FsyncPolicy.none) {
+            parseMessage = "Fsync requires a write buffer - specify --write-buffer";
+            return false;
+        }
+        if ((blockMb != 0 || blockEntries != 0) && (format != ArchiveFormat.tgz || archiveFqpn == null
+                || scenario == Scenario.coordinator)) {
+            parseMessage = "Block-gzip is only valid for a tgz archive file built by the single or multi scenario";
+            return false;
+        }
+        if (format == ArchiveFormat.tzst && (archiveFqpn == null || (scenario != Scenario.single
+                && scenario != Scenario.multi))) {
+            parseMessage = "The tzst format is only valid for an archive file built by the single or multi scenario,"
+                    + " since its dictionary is written beside it";
+            return false;
+        }
+        if (dictionarySamples != 0 && format != ArchiveFormat.tzst && (format != ArchiveFormat.zip
+                || scenario != Scenario.multi)) {
+            parseMessage = "Dictionary samples are only valid for the tzst format, or a zip built by the multi "
+                    + "scenario";
+            return false;
+        }
+        if (dedup != 0 && (format == ArchiveFormat.zip || blockMb != 0 || blockEntries != 0
+                || !checksums.isEmpty() || (scenario != Scenario.single && scenario != Scenario.multi))) {
+            parseMessage = "Dedup is only valid for a tgz or tzst archive built by the single or multi scenario, "
+                    + "without block-gzip or checksums";
+            return false;
+        }
+        if (!checksums.isEmpty() && (archiveFqpn == null || (scenario != Scenario.single
+                && scenario != Scenario.multi))) {
+            parseMessage = "Checksums are only valid for an archive file built by the single or multi scenario";
+            return false;
+        }
+        if (verifyETags && checksums.isEmpty()) {
+            parseMessage = "ETag verification requires checksums";
+            return false;
+        }
+        if (!since.isEmpty() && checksums.isEmpty()) {
+            parseMessage = "An incremental archive requires checksums, so that the next run has a manifest";
+            return false;
+        }
+        if (warmUp != 0 && scenario != Scenario.single && scenario != Scenario.multi) {
+            parseMessage = "Warm-up is only valid for the single and multi scenarios";
+            return false;
+        }
+        if (extractEntry != null && (archiveFqpn == null || scenario != Scenario.single)) {
+            parseMessage = "Extract requires the FQPN of a block-gzip archive, and no scenario";
+            return false;
+        }
+        if (scenario == Scenario.coordinator && workers.size() == 0) {
+            parseMessage = "The coordinator scenario requires workers";
+            return false;
+        } else if (scenario != Scenario.coordinator && workers.size() != 0) {
+            parseMessage = "Workers only valid for the coordinator scenario";
+            return false;
+        } else if (scenario == Scenario.coordinator && (format != ArchiveFormat.tgz
+                || binaryProvider != BinaryProvider.fake)) {
+            parseMessage = "The coordinator scenario only supports the tgz format, and binaries are loaded by "
+                    + "the workers";
+            return false;
+        }
+        if (servicePort != 0 && scenario != Scenario.service) {
+            parseMessage = "Service port only valid for the service scenario";
+            return false;
+        }
+        if ((serviceBind != null || outputDir != null) && scenario != Scenario.service) {
+            parseMessage = "Service bind and output dir only valid for the service scenario";
             return false;
         }
         if (binaryProvider == BinaryProvider.s3client || binaryProvider == BinaryProvider.transfermanager
-                || binaryProvider == BinaryProvider.s3asyncclient) {
-            if (region == null || bucketName == null || keys.size() == 0) {
+                || binaryProvider == BinaryProvider.s3asyncclient || binaryProvider == BinaryProvider.httpclient) {
+            if (region == null || bucketName == null || keys == null) {
                 parseMessage = "The s3 binary providers require all three of: bucket, region, and keys";
                 return false;
             }
-        } else if (region != null || bucketName != null || keys.size() != 0) {
+        } else if ((region != null && uploadUri == null) || bucketName != null || keys != null) {
             parseMessage = "The fake binary provider doesn't use: bucket, region, or keys";
             return false;
         }
-        if (scenario == Scenario.single && (threadCount != 0 || cacheSize != 0)) {
-            parseMessage = "Thread count and cache size only valid for the multi-threaded scenario";
+        if (arenaMb != -1 && binaryProvider != BinaryProvider.s3client
+                && binaryProvider != BinaryProvider.s3asyncclient && binaryProvider != BinaryProvider.httpclient) {
+            parseMessage = "Arena only valid for the s3client, s3asyncclient, and httpclient binary providers";
+            return false;
+        }
+        if (endpoint != null && uploadUri == null && binaryProvider != BinaryProvider.httpclient) {
+            parseMessage = "Endpoint only valid when uploading the archive, or for the httpclient binary provider";
+            return false;
+        }
+        if ((scenario == Scenario.single || scenario == Scenario.coordinator) && (threadCount != 0
+                || cacheSize != 0 || dispatchWindow != 0 || spillCapacity != 0 || documentReaders != 0)) {
+            parseMessage = "Thread count, cache size, dispatch window, spill capacity, and document readers only "
+                    + "valid for the multi-threaded scenario";
             return false;
         }
         return true;
@@ -265,7 +601,8 @@ class Args {
      */
     private boolean parseScenario(String param) {
         if (notParseable(param)) return false;
-        List<String> scenarios = Arrays.asList(Scenario.single.name(), Scenario.multi.name());
+        List<String> scenarios = Arrays.asList(Scenario.single.name(), Scenario.multi.name(),
+                Scenario.service.name(), Scenario.coordinator.name());
         if (!scenarios.contains(param)) {
             parseMessage = "Unknown scenario: " + param;
             return false;
@@ -282,7 +619,8 @@ class Args {
     private boolean parseBinaryProvider(String param) {
         if (notParseable(param)) return false;
         List<String> binaryProviders = Arrays.asList(BinaryProvider.fake.name(), BinaryProvider.s3client.name(),
-                BinaryProvider.transfermanager.name(), BinaryProvider.s3asyncclient.name());
+                BinaryProvider.transfermanager.name(), BinaryProvider.s3asyncclient.name(),
+                BinaryProvider.httpclient.name());
         if (!binaryProviders.contains(param)) {
             parseMessage = "Unknown binary provider: " + param;
             return false;
@@ -321,6 +659,21 @@ class Args {
         return true;
     }
 
+    /**
+     * Parses the --service-port opt
+     *
+     * @return true if ok
+     */
+    private boolean parseServicePort(String param) {
+        if (notParseable(param)) return false;
+        servicePort = safeParseInt(param);
+        if (servicePort <= 0) {
+            parseMessage = "Invalid value for service port: " + param;
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Parses the --binary-size opt
      *
@@ -373,6 +726,51 @@ class Args {
         return true;
     }
 
+    /**
+     * Parses the --dispatch-window opt
+     *
+     * @return true if ok
+     */
+    private boolean parseDispatchWindow(String param) {
+        if (notParseable(param)) return false;
+        dispatchWindow = safeParseInt(param);
+        if (dispatchWindow < 0) {
+            parseMessage = "Invalid value for dispatch window: " + param;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the --document-readers opt
+     *
+     * @return true if ok
+     */
+    private boolean parseDocumentReaders(String param) {
+        if (notParseable(param)) return false;
+        documentReaders = safeParseInt(param);
+        if (documentReaders < 1) {
+            parseMessage = "Invalid value for document readers: " + param;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the --spill-capacity opt
+     *
+     * @return true if ok
+     */
+    private boolean parseSpillCapacity(String param) {
+        if (notParseable(param)) return false;
+        spillCapacity = safeParseInt(param);
+        if (spillCapacity < 0) {
+            parseMessage = "Invalid value for spill capacity: " + param;
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Parses the --archive opt
      *
@@ -395,6 +793,318 @@ class Args {
         return true;
     }
 
+    /**
+     * Parses the --upload opt
+     *
+     * @return true if ok
+     */
+    private boolean parseUploadUri(String param) {
+        if (notParseable(param)) return false;
+        if (!param.matches("^s3://[^/]+/.+")) {
+            parseMessage = "Upload must be an S3 URI like s3://bucket/key: " + param;
+            return false;
+        }
+        uploadUri = param;
+        return true;
+    }
+
+    /**
+     * Parses the --upload-parts opt
+     *
+     * @return true if ok
+     */
+    private boolean parseUploadParts(String param) {
+        if (notParseable(param)) return false;
+        uploadParts = safeParseInt(param);
+        if (uploadParts <= 0) {
+            parseMessage = "Invalid value for upload parts: " + param;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the --format opt
+     *
+     * @return true if ok
+     */
+    private boolean parseFormat(String param) {
+        if (notParseable(param)) return false;
+        try {
+            format = ArchiveFormat.valueOf(param);
+        } catch (IllegalArgumentException e) {
+            parseMessage = "Unknown archive format: " + param;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the --arena opt
+     *
+     * @return true if ok
+     */
+    private boolean parseArenaMb(String param) {
+        if (notParseable(param)) return false;
+        arenaMb = safeParseInt(param);
+        if (arenaMb < 0) {
+            parseMessage = "Invalid value for arena: " + param;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the --write-buffer opt
+     *
+     * @return true if ok
+     */
+    private boolean parseWriteBufferMb(String param) {
+        if (notParseable(param)) return false;
+        writeBufferMb = safeParseInt(param);
+        if (writeBufferMb < 0) {
+            parseMessage = "Invalid value for write buffer: " + param;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the --block-mb opt
+     *
+     * @return true if ok
+     */
+    private boolean parseBlockMb(String param) {
+        if (notParseable(param)) return false;
+        blockMb = safeParseInt(param);
+        if (blockMb < 1) {
+            parseMessage = "Invalid value for block MB: " + param;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the --warm-up opt
+     *
+     * @return true if ok
+     */
+    private boolean parseWarmUp(String param) {
+        if (notParseable(param)) return false;
+        warmUp = safeParseInt(param);
+        if (warmUp < 1) {
+            parseMessage = "Invalid value for warm-up connections: " + param;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the --block-entries opt
+     *
+     * @return true if ok
+     */
+    private boolean parseBlockEntries(String param) {
+        if (notParseable(param)) return false;
+        blockEntries = safeParseInt(param);
+        if (blockEntries < 1) {
+            parseMessage = "Invalid value for block entries: " + param;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the --dictionary-samples opt
+     *
+     * @return true if ok
+     */
+    private boolean parseDictionarySamples(String param) {
+        if (notParseable(param)) return false;
+        dictionarySamples = safeParseInt(param);
+        if (dictionarySamples < 1) {
+            parseMessage = "Invalid value for dictionary samples: " + param;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the --dedup opt
+     *
+     * @return true if ok
+     */
+    private boolean parseDedup(String param) {
+        if (notParseable(param)) return false;
+        dedup = safeParseInt(param);
+        if (dedup < 1) {
+            parseMessage = "Invalid value for dedup: " + param;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the --checksum opt
+     *
+     * @return true if ok
+     */
+    private boolean parseChecksums(String param) {
+        if (notParseable(param)) return false;
+        for (String checksum : param.split(",")) {
+            try {
+                checksums.add(EntryDigester.Algorithm.valueOf(checksum));
+            } catch (IllegalArgumentException e) {
+                parseMessage = "Unknown checksum: " + checksum;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the --since opt
+     *
+     * @return true if ok
+     */
+    private boolean parseSince(String param) {
+        if (notParseable(param)) return false;
+        since = Arrays.asList(param.split(","));
+        for (String manifest : since) {
+            if (!Files.isRegularFile(Paths.get(manifest))) {
+                parseMessage = "Manifest does not exist: " + manifest;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses the --inject opt
+     *
+     * @return true if ok
+     */
+    private boolean parseInject(String param) {
+        if (notParseable(param)) return false;
+        try {
+            FaultInjectingBinaryProvider.Spec.parse(param);
+        } catch (IllegalArgumentException e) {
+            parseMessage = e.getMessage();
+            return false;
+        }
+        inject = param;
+        return true;
+    }
+
+    /**
+     * Parses the --benchmark opt
+     *
+     * @return true if ok
+     */
+    private boolean parseBenchmark(String param) {
+        if (notParseable(param)) return false;
+        if (!Files.isRegularFile(Paths.get(param))) {
+            parseMessage = "Benchmark matrix does not exist: " + param;
+            return false;
+        }
+        benchmark = param;
+        return true;
+    }
+
+    /**
+     * Parses the --runs opt
+     *
+     * @return true if ok
+     */
+    private boolean parseBenchmarkRuns(String param) {
+        if (notParseable(param)) return false;
+        benchmarkRuns = safeParseInt(param);
+        if (benchmarkRuns < 1) {
+            parseMessage = "Invalid value for runs: " + param;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the --baseline opt
+     *
+     * @return true if ok
+     */
+    private boolean parseBaseline(String param) {
+        if (notParseable(param)) return false;
+        if (!Files.isRegularFile(Paths.get(param))) {
+            parseMessage = "Baseline does not exist: " + param;
+            return false;
+        }
+        baseline = param;
+        return true;
+    }
+
+    /**
+     * Parses the --tolerance opt
+     *
+     * @return true if ok
+     */
+    private boolean parseTolerance(String param) {
+        if (notParseable(param)) return false;
+        tolerance = safeParseInt(param);
+        if (tolerance < 0) {
+            parseMessage = "Invalid value for tolerance: " + param;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the --report opt. Not in the help: the benchmark runner passes it to the runs it starts.
+     *
+     * @return true if ok
+     */
+    private boolean parseReport(String param) {
+        if (notParseable(param)) return false;
+        report = param;
+        return true;
+    }
+
+    /**
+     * Parses the --extract opt
+     *
+     * @return true if ok
+     */
+    private boolean parseExtract(String param) {
+        if (notParseable(param)) return false;
+        extractEntry = param;
+        return true;
+    }
+
+    /**
+     * Parses the --fsync opt
+     *
+     * @return true if ok
+     */
+    private boolean parseFsync(String param) {
+        if (notParseable(param)) return false;
+        try {
+            fsync = WriteBehindOutputStream.FsyncPolicy.valueOf(param);
+        } catch (IllegalArgumentException e) {
+            parseMessage = "Unknown fsync policy: " + param;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the --endpoint opt
+     *
+     * @return true if ok
+     */
+    private boolean parseEndpoint(String param) {
+        if (notParseable(param)) return false;
+        endpoint = param;
+        return true;
+    }
+
     /**
      * Parses the --bucket opt
      *
@@ -439,6 +1149,49 @@ class Args {
         return true;
     }
 
+    /**
+     * Parses the --service-bind opt
+     *
+     * @return true if ok
+     */
+    private boolean parseServiceBind(String param) {
+        if (notParseable(param)) return false;
+        serviceBind = param;
+        return true;
+    }
+
+    /**
+     * Parses the --output-dir opt
+     *
+     * @return true if ok
+     */
+    private boolean parseOutputDir(String param) {
+        if (notParseable(param)) return false;
+        if (!Files.isDirectory(Paths.get(param))) {
+            parseMessage = "Output dir must be an existing directory: " + param;
+            return false;
+        }
+        outputDir = param;
+        return true;
+    }
+
+    /**
+     * Parses the --workers opt
+     *
+     * @return true if ok
+     */
+    private boolean parseWorkers(String param) {
+        if (notParseable(param)) return false;
+        workers = Arrays.asList(param.split(","));
+        for (String worker : workers) {
+            if (!worker.matches("^[^:/]+:\\d+$")) {
+                parseMessage = "Workers must be like host:port: " + worker;
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Parses the --loggers opt
      *
@@ -466,14 +1219,14 @@ class Args {
                 return false;
             }
             try {
-                keys = Files.readAllLines(p);
-            } catch (IOException e) {
+                keys = KeyCatalog.map(p);
+            } catch (IOException | IllegalArgumentException e) {
                 parseMessage = "Error trying to read keys file: " + p.toAbsolutePath() + ". The error was: "
                         + e.getMessage();
                 return false;
             }
         } else {
-            keys = Arrays.asList(param.split(","));
+            keys = KeyCatalog.of(Arrays.asList(param.split(",")));
         }
         return true;
     }
@@ -508,13 +1261,14 @@ class Args {
     }
 
     /**
-     * Defines the archive builder scenarios - single threaded, or multi-threaded
+     * Defines the archive builder scenarios - single threaded, multi-threaded, or a long-running service that
+     * runs many multi-threaded jobs
      */
-    enum Scenario {single, multi}
+    enum Scenario {single, multi, service, coordinator}
 
     /**
-     * Defines the binary providers - fake, s3client, transfer manager, s3 async client
+     * Defines the binary providers - fake, s3client, transfer manager, s3 async client, java.net.http client
      */
-    enum BinaryProvider {fake, s3client, transfermanager, s3asyncclient}
+    enum BinaryProvider {fake, s3client, transfermanager, s3asyncclient, httpclient}
 
 }
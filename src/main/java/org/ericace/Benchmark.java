@@ -0,0 +1,327 @@
+package org.ericace;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Runs a matrix of archive-builder configurations, each several times in a fresh JVM, and writes the median
+ * metrics of each configuration as JSON and CSV. If a baseline - the CSV of an earlier benchmark - is provided,
+ * configurations that got worse by more than a tolerance are flagged as regressions.
+ * <p>
+ * The matrix file has one dimension per line, like <code>--threads=10|50|100</code>: an option and the values to
+ * try, separated by '|'. Every combination of values is one configuration. A <code>jvm</code> dimension gives JVM
+ * options, e.g. <code>jvm=-Xmx512m|-Xmx2g</code>. Blank lines and lines starting with '#' are ignored. Each run
+ * writes its archive to a temporary directory unless the configuration names one, and reports its metrics to
+ * the runner through a file. (See {@link Metrics#writeReport}.) Only the 'single' and 'multi' scenarios
+ * terminate on their own, so only they can be benchmarked.
+ * <p>
+ * Progress is logged. The results table is the only thing written to stdout, so it can be piped or redirected
+ * on its own.
+ */
+public class Benchmark {
+
+    private static final Logger logger = LogManager.getLogger(Benchmark.class);
+
+    /**
+     * The reported metrics, in output column order. See {@link Metrics#writeReport}.
+     */
+    static final List<String> METRICS = Arrays.asList("bytesPerSec", "elapsedMillis", "warmUpMillis",
+            "getLatencyP50", "getLatencyP99", "cpuSeconds", "peakRssBytes");
+
+    /**
+     * Metrics for which a lower value is a regression. For the others, a higher value is.
+     */
+    private static final List<String> HIGHER_IS_BETTER = Collections.singletonList("bytesPerSec");
+
+    /**
+     * Metrics that are compared with the baseline. Elapsed time is left out since it is the inverse of
+     * the throughput for a fixed document count.
+     */
+    private static final List<String> COMPARED = Arrays.asList("bytesPerSec", "getLatencyP99", "cpuSeconds",
+            "peakRssBytes");
+
+    private final Path matrix;
+    private final int runs;
+    private final Path baseline;
+    private final int tolerance;
+
+    /**
+     * Constructor
+     *
+     * @param matrix    the matrix file. The results are written beside it, with '.json' and '.csv' appended.
+     * @param runs      runs per configuration
+     * @param baseline  the CSV of an earlier benchmark to compare with, or null
+     * @param tolerance percent by which a metric may be worse than the baseline before it is a regression
+     */
+    public Benchmark(Path matrix, int runs, Path baseline, int tolerance) {
+        this.matrix = matrix;
+        this.runs = runs;
+        this.baseline = baseline;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Runs the benchmark
+     *
+     * @return the number of configurations that regressed or failed
+     * @throws IOException if the matrix or baseline can't be read, or the results written
+     */
+    public int run() throws IOException {
+        Map<String, Map<String, Double>> baselineResults = baseline == null ? new HashMap<>() : readCsv(baseline);
+        Path tmpDir = Files.createTempDirectory("benchmark-");
+        List<String> configs = new ArrayList<>();
+        List<Map<String, Double>> results = new ArrayList<>();
+        List<String> verdicts = new ArrayList<>();
+        int bad = 0;
+        for (List<String[]> cell : cells(readMatrix())) {
+            String config = describe(cell);
+            logger.info("Running: {}", config);
+            Map<String, Double> result = runCell(cell, tmpDir.resolve("config-" + (configs.size() + 1)));
+            String verdict = result == null ? "failed" : compare(result, baselineResults.get(config));
+            if (!verdict.isEmpty()) {
+                ++bad;
+            }
+            configs.add(config);
+            results.add(result);
+            verdicts.add(verdict);
+            logger.info("Result: {} {}", result == null ? "" : result, verdict);
+        }
+        writeCsv(Paths.get(matrix + ".csv"), configs, results, verdicts);
+        writeJson(Paths.get(matrix + ".json"), configs, results, verdicts);
+        logger.info("Wrote {}.csv and {}.json. Regressed or failed: {}", matrix, matrix, bad);
+        printResults(configs, results, verdicts);
+        return bad;
+    }
+
+    /**
+     * Prints the results to stdout: one row per configuration, with the median of each metric, whether it
+     * regressed or failed, and the configuration last since it is the widest column
+     */
+    private static void printResults(List<String> configs, List<Map<String, Double>> results,
+                                     List<String> verdicts) {
+        StringBuilder table = new StringBuilder();
+        METRICS.forEach(metric -> table.append(String.format("%16s", metric)));
+        table.append(String.format("  %-9s  config\n", "result"));
+        for (int i = 0; i < configs.size(); ++i) {
+            Map<String, Double> result = results.get(i);
+            METRICS.forEach(metric -> table.append(result == null ? String.format("%16s", "-")
+                    : String.format("%16.1f", result.get(metric))));
+            String verdict = result == null ? "failed" : verdicts.get(i).isEmpty() ? "ok" : "regressed";
+            table.append(String.format("  %-9s  %s\n", verdict, configs.get(i)));
+            if (result != null && !verdicts.get(i).isEmpty()) {
+                table.append(String.format("%" + (16 * METRICS.size() + 13) + "s%s\n", "", verdicts.get(i)));
+            }
+        }
+        System.out.print(table);
+        System.out.flush();
+    }
+
+    /**
+     * @return the dimensions of the matrix, each an option followed by its values
+     */
+    private List<String[]> readMatrix() throws IOException {
+        List<String[]> dimensions = new ArrayList<>();
+        for (String line : Files.readAllLines(matrix, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int eq = line.indexOf('=');
+            if (eq < 1) {
+                throw new IOException("Expected option=value1|value2|... in the matrix: " + line);
+            }
+            List<String> dimension = new ArrayList<>();
+            dimension.add(line.substring(0, eq));
+            dimension.addAll(Arrays.asList(line.substring(eq + 1).split("\\|")));
+            dimensions.add(dimension.toArray(new String[0]));
+        }
+        return dimensions;
+    }
+
+    /**
+     * @return every combination of one value from each dimension, as option/value pairs
+     */
+    private static List<List<String[]>> cells(List<String[]> dimensions) {
+        List<List<String[]>> cells = new ArrayList<>();
+        cells.add(new ArrayList<>());
+        for (String[] dimension : dimensions) {
+            List<List<String[]>> expanded = new ArrayList<>();
+            for (List<String[]> cell : cells) {
+                for (int i = 1; i < dimension.length; ++i) {
+                    List<String[]> next = new ArrayList<>(cell);
+                    next.add(new String[]{dimension[0], dimension[i]});
+                    expanded.add(next);
+                }
+            }
+            cells = expanded;
+        }
+        return cells;
+    }
+
+    private static String describe(List<String[]> cell) {
+        StringBuilder config = new StringBuilder();
+        for (String[] option : cell) {
+            config.append(config.length() == 0 ? "" : " ").append(option[0]).append('=').append(option[1]);
+        }
+        return config.toString();
+    }
+
+    /**
+     * Runs one configuration {@link #runs} times
+     *
+     * @param cell the configuration
+     * @param dir  a directory for the runs' logs, reports, and archives
+     * @return the median of each metric, or null if any run failed
+     */
+    private Map<String, Double> runCell(List<String[]> cell, Path dir) throws IOException {
+        Files.createDirectories(dir);
+        Map<String, List<Double>> samples = new LinkedHashMap<>();
+        METRICS.forEach(metric -> samples.put(metric, new ArrayList<>()));
+        for (int run = 0; run < runs; ++run) {
+            Path report = dir.resolve("report.properties");
+            Path log = dir.resolve("run-" + (run + 1) + ".log");
+            Files.deleteIfExists(report);
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            boolean hasTarget = false;
+            for (String[] option : cell) {
+                if (option[0].equals("jvm")) {
+                    command.addAll(Arrays.asList(option[1].trim().split("\\s+")));
+                }
+                hasTarget |= option[0].equals("-a") || option[0].equals("--archive") || option[0].equals("-q")
+                        || option[0].equals("--upload");
+            }
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(Main.class.getName());
+            for (String[] option : cell) {
+                if (!option[0].equals("jvm")) {
+                    command.add(option[0] + "=" + option[1]);
+                }
+            }
+            if (!hasTarget) {
+                command.add("--archive=" + dir.resolve("benchmark.tar.gz"));
+            }
+            command.add("--report=" + report);
+            try {
+                Process process = new ProcessBuilder(command).redirectErrorStream(true)
+                        .redirectOutput(log.toFile()).start();
+                if (process.waitFor() != 0 || !Files.exists(report)) {
+                    logger.error("Run failed. See: {}", log);
+                    return null;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+            Files.deleteIfExists(dir.resolve("benchmark.tar.gz"));
+            Properties props = new Properties();
+            try (InputStream is = Files.newInputStream(report)) {
+                props.load(is);
+            }
+            METRICS.forEach(metric -> samples.get(metric).add(Double.parseDouble(props.getProperty(metric, "0"))));
+        }
+        Map<String, Double> medians = new LinkedHashMap<>();
+        samples.forEach((metric, values) -> {
+            Collections.sort(values);
+            int n = values.size();
+            medians.put(metric, n % 2 == 1 ? values.get(n / 2) : (values.get(n / 2 - 1) + values.get(n / 2)) / 2);
+        });
+        return medians;
+    }
+
+    /**
+     * @return the compared metrics that are worse than the baseline by more than the tolerance, separated by
+     * spaces, or an empty string if none are, or there is no baseline for the configuration
+     */
+    private String compare(Map<String, Double> result, Map<String, Double> base) {
+        if (base == null) {
+            return "";
+        }
+        StringBuilder regressions = new StringBuilder();
+        for (String metric : COMPARED) {
+            Double was = base.get(metric);
+            double is = result.get(metric);
+            if (was == null || was <= 0 || is < 0) {
+                continue;
+            }
+            double change = (is - was) / was * 100;
+            if (HIGHER_IS_BETTER.contains(metric) ? change < -tolerance : change > tolerance) {
+                regressions.append(regressions.length() == 0 ? "" : " ")
+                        .append(String.format("%s:%+.1f%%", metric, change));
+            }
+        }
+        return regressions.toString();
+    }
+
+    private static Map<String, Map<String, Double>> readCsv(Path csv) throws IOException {
+        Map<String, Map<String, Double>> results = new HashMap<>();
+        List<String> lines = Files.readAllLines(csv, StandardCharsets.UTF_8);
+        List<String> header = Arrays.asList(lines.get(0).split(","));
+        for (String line : lines.subList(1, lines.size())) {
+            int close = line.indexOf("\",", 1);
+            if (!line.startsWith("\"") || close < 0) {
+                continue;
+            }
+            String[] values = line.substring(close + 2).split(",", -1);
+            Map<String, Double> result = new HashMap<>();
+            for (int i = 0; i < values.length && i + 1 < header.size(); ++i) {
+                if (METRICS.contains(header.get(i + 1)) && !values[i].isEmpty()) {
+                    result.put(header.get(i + 1), Double.parseDouble(values[i]));
+                }
+            }
+            results.put(line.substring(1, close), result);
+        }
+        return results;
+    }
+
+    private static void writeCsv(Path csv, List<String> configs, List<Map<String, Double>> results,
+                                 List<String> verdicts) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(csv, StandardCharsets.UTF_8)) {
+            writer.write("config," + String.join(",", METRICS) + ",regressions");
+            writer.newLine();
+            for (int i = 0; i < configs.size(); ++i) {
+                StringBuilder row = new StringBuilder("\"").append(configs.get(i)).append('"');
+                for (String metric : METRICS) {
+                    row.append(',').append(results.get(i) == null ? "" : results.get(i).get(metric));
+                }
+                writer.write(row.append(',').append(verdicts.get(i)).toString());
+                writer.newLine();
+            }
+        }
+    }
+
+    private static void writeJson(Path json, List<String> configs, List<Map<String, Double>> results,
+                                  List<String> verdicts) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(json, StandardCharsets.UTF_8)) {
+            writer.write("[");
+            for (int i = 0; i < configs.size(); ++i) {
+                writer.write(i == 0 ? "\n" : ",\n");
+                StringBuilder obj = new StringBuilder("  {\"config\": \"").append(configs.get(i)
+                        .replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+                for (String metric : METRICS) {
+                    obj.append(", \"").append(metric).append("\": ")
+                            .append(results.get(i) == null ? "null" : results.get(i).get(metric));
+                }
+                writer.write(obj.append(", \"regressions\": \"").append(verdicts.get(i)).append("\"}").toString());
+            }
+            writer.write("\n]\n");
+        }
+    }
+}
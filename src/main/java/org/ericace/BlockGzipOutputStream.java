@@ -0,0 +1,187 @@
+package org.ericace;
+
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A gzip output stream that starts a new gzip member at an entry boundary every so many uncompressed bytes or
+ * entries, like BGZF, and writes a sidecar {@link ArchiveIndex} that maps each entry to the compressed offset of
+ * the member holding it, and the offset of the entry within the member's uncompressed content. Since a sequence
+ * of gzip members is a valid gzip stream, the archive is still an ordinary tar.gz. But a reader with the index can
+ * seek straight to the member holding an entry, and only decompress that member up to the entry, rather than
+ * the archive from the start.
+ * <p>
+ * The archive creator calls {@link #startEntry} before writing each entry, so the TAR stream writing through this
+ * stream must not buffer records across entries - i.e. it must have a block size of one record.
+ */
+public class BlockGzipOutputStream extends FilterOutputStream {
+
+    /**
+     * The archive stream. Counts compressed bytes to give member offsets.
+     */
+    private final CountingOutputStream archive;
+
+    /**
+     * Start a new member at the next entry once the current one holds this many uncompressed bytes
+     */
+    private final long memberBytes;
+
+    /**
+     * Start a new member at the next entry once the current one holds this many entries
+     */
+    private final int memberEntries;
+
+    private final BufferedWriter index;
+
+    /**
+     * Compressed offset of the current member
+     */
+    private long memberOffset = 0;
+
+    /**
+     * Uncompressed bytes written to the current member
+     */
+    private long memberPosition = 0;
+
+    /**
+     * Entries started in the current member
+     */
+    private int entriesInMember = 0;
+
+    private boolean closed = false;
+
+    /**
+     * Constructor
+     *
+     * @param out           the stream to write the archive to
+     * @param memberBytes   see {@link #memberBytes}. Zero for no byte limit.
+     * @param memberEntries see {@link #memberEntries}. Zero for no entry limit.
+     * @param indexFile     the sidecar index to create
+     * @throws IOException if the index or the first member can't be written
+     */
+    public BlockGzipOutputStream(OutputStream out, long memberBytes, int memberEntries, Path indexFile)
+            throws IOException {
+        super(null);
+        archive = new CountingOutputStream(out);
+        this.memberBytes = memberBytes;
+        this.memberEntries = memberEntries;
+        index = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8);
+        index.write(ArchiveIndex.HEADER);
+        index.newLine();
+        this.out = new GZIPOutputStream(archive);
+    }
+
+    /**
+     * Records an entry in the index, first starting a new member if the current one is full
+     *
+     * @param name the entry name
+     * @param size the entry content size
+     * @throws IOException if the member or the index can't be written
+     */
+    public void startEntry(String name, long size) throws IOException {
+        if (entriesInMember > 0 && ((memberBytes > 0 && memberPosition >= memberBytes)
+                || (memberEntries > 0 && entriesInMember >= memberEntries))) {
+            ((GZIPOutputStream) out).finish();
+            memberOffset = archive.count;
+            memberPosition = 0;
+            entriesInMember = 0;
+            out = new GZIPOutputStream(archive);
+        }
+        ++entriesInMember;
+        index.write(ArchiveIndex.format(name, memberOffset, memberPosition, size));
+        index.newLine();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        ++memberPosition;
+    }
+
+    /**
+     * Overridden because the <code>FilterOutputStream</code> implementation writes one byte at a time
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        memberPosition += len;
+    }
+
+    /**
+     * Finishes the last member, and closes the archive stream and the index
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.close();
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * The member limits and index file of a block-gzip archive, to open a stream with
+     */
+    public static class Layout {
+        private final long memberBytes;
+        private final int memberEntries;
+        private final Path indexFile;
+
+        /**
+         * Constructor
+         *
+         * @param memberBytes   see {@link BlockGzipOutputStream#memberBytes}. Zero for no byte limit.
+         * @param memberEntries see {@link BlockGzipOutputStream#memberEntries}. Zero for no entry limit.
+         * @param indexFile     the sidecar index to create
+         */
+        public Layout(long memberBytes, int memberEntries, Path indexFile) {
+            this.memberBytes = memberBytes;
+            this.memberEntries = memberEntries;
+            this.indexFile = indexFile;
+        }
+
+        /**
+         * Opens a block-gzip stream with this layout
+         *
+         * @param out the stream to write the archive to
+         * @return the stream
+         * @throws IOException if the index or the first member can't be written
+         */
+        public BlockGzipOutputStream open(OutputStream out) throws IOException {
+            return new BlockGzipOutputStream(out, memberBytes, memberEntries, indexFile);
+        }
+    }
+
+    /**
+     * Counts bytes written through it
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package org.ericace;
+
+import io.prometheus.client.Counter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Remembers the attachments already written to a TAR, so that a repeat is written as a hard link to the entry that
+ * holds its content rather than as another copy. An attachment is identified by its ETag and length once it is
+ * downloaded, which catches the same content under different keys. Document keys are unique, so they aren't
+ * indexed, and a binary without an ETag is not deduplicated.
+ * <p>
+ * The index is compact, so that it can remember every attachment of a large archive in bounded memory: an open
+ * addressing table of 64-bit fingerprints - the leading bytes of a SHA-256 of the ETag and length - each with the
+ * offset of the attachment's record in one packed byte array. A record holds the ETag, the length and the entry
+ * name, and a fingerprint match only links if the ETag and length in the record match too, so two attachments
+ * whose fingerprints collide are both kept. That is about sixteen bytes per attachment plus its ETag and name.
+ * Once it holds {@link #capacity} attachments, new attachments are no longer remembered, so later repeats of them
+ * are written as copies.
+ * <p>
+ * Claims must be made in archive order, so a link always refers to an entry that is earlier in the archive.
+ */
+public class DedupIndex {
+
+    static final Counter linkedEntries = Counter.build().name("archive_dedup_linked_entries")
+            .help("Count of archive entries written as a hard link to an earlier entry with the same attachment.")
+            .register();
+
+    private static final Logger logger = LogManager.getLogger(DedupIndex.class);
+
+    /**
+     * The initial number of slots in the table
+     */
+    private static final int INITIAL_SLOTS = 1024;
+
+    /**
+     * The longest entry name or ETag that can be remembered, in UTF-8 bytes
+     */
+    private static final int MAX_NAME = 0xFFFF;
+
+    /**
+     * The max number of attachments to remember
+     */
+    private final int capacity;
+
+    /**
+     * Open addressing table of fingerprints. Zero is an empty slot.
+     */
+    private long[] fingerprints = new long[INITIAL_SLOTS];
+
+    /**
+     * The offset in {@link #records} of the record of the fingerprint in the same slot
+     */
+    private int[] offsets = new int[INITIAL_SLOTS];
+
+    /**
+     * Attachment records: the ETag, the eight-byte length, and the entry name. The ETag and name are UTF-8, each
+     * with a two-byte length prefix.
+     */
+    private byte[] records = new byte[16 * 1024];
+
+    private int recordsLength = 0;
+
+    private int count = 0;
+
+    private boolean full = false;
+
+    private final MessageDigest sha256;
+
+    /**
+     * Constructor
+     *
+     * @param capacity see {@link #capacity}
+     */
+    public DedupIndex(int capacity) {
+        this.capacity = capacity;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Claims downloaded content for an entry
+     *
+     * @param eTag   the ETag the store reported for the content
+     * @param length the length of the content
+     * @param name   the name of the entry for the content
+     * @return the name of the earlier entry with the same ETag and length, or null if the content is new - in which
+     * case the passed entry must hold the content
+     */
+    public String linkForContent(String eTag, long length, String name) {
+        return claim(fingerprint(eTag, length), eTag, length, name);
+    }
+
+    /**
+     * Claims content with a given non-zero fingerprint. Package-private so tests can choose colliding fingerprints.
+     */
+    synchronized String claim(long fingerprint, String eTag, long length, String name) {
+        byte[] eTagBytes = eTag.getBytes(StandardCharsets.UTF_8);
+        int mask = fingerprints.length - 1;
+        int slot = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+        while (fingerprints[slot] != 0) {
+            if (fingerprints[slot] == fingerprint && matches(offsets[slot], eTagBytes, length)) {
+                linkedEntries.inc();
+                return nameAt(offsets[slot]);
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (count == capacity) {
+            if (!full) {
+                full = true;
+                logger.warn("Dedup index is full at {} attachments - later attachments are not deduplicated",
+                        capacity);
+            }
+            return null;
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > MAX_NAME || eTagBytes.length > MAX_NAME) {
+            return null;
+        }
+        fingerprints[slot] = fingerprint;
+        offsets[slot] = addRecord(eTagBytes, length, nameBytes);
+        if (++count > fingerprints.length / 4 * 3) {
+            grow();
+        }
+        return null;
+    }
+
+    private synchronized long fingerprint(String eTag, long length) {
+        sha256.update(eTag.getBytes(StandardCharsets.UTF_8));
+        byte[] digest = sha256.digest(Long.toString(length).getBytes(StandardCharsets.UTF_8));
+        long fingerprint = 0;
+        for (int i = 0; i < Long.BYTES; ++i) {
+            fingerprint = fingerprint << 8 | (digest[i] & 0xFF);
+        }
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    private int addRecord(byte[] eTag, long length, byte[] name) {
+        int size = 2 + eTag.length + Long.BYTES + 2 + name.length;
+        if (recordsLength + size > records.length) {
+            records = Arrays.copyOf(records, Math.max(records.length * 2, recordsLength + size));
+        }
+        int offset = recordsLength;
+        int pos = putBytes(offset, eTag);
+        for (int i = Long.BYTES - 1; i >= 0; --i) {
+            records[pos++] = (byte) (length >>> (i * 8));
+        }
+        putBytes(pos, name);
+        recordsLength += size;
+        return offset;
+    }
+
+    /**
+     * Writes bytes with a two-byte length prefix
+     *
+     * @return the offset after them
+     */
+    private int putBytes(int offset, byte[] bytes) {
+        records[offset] = (byte) (bytes.length >>> 8);
+        records[offset + 1] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, records, offset + 2, bytes.length);
+        return offset + 2 + bytes.length;
+    }
+
+    private int lengthAt(int offset) {
+        return (records[offset] & 0xFF) << 8 | (records[offset + 1] & 0xFF);
+    }
+
+    /**
+     * @return true if the record at the offset has the passed ETag and length
+     */
+    private boolean matches(int offset, byte[] eTag, long length) {
+        if (lengthAt(offset) != eTag.length || !Arrays.equals(records, offset + 2, offset + 2 + eTag.length, eTag,
+                0, eTag.length)) {
+            return false;
+        }
+        int pos = offset + 2 + eTag.length;
+        long recorded = 0;
+        for (int i = 0; i < Long.BYTES; ++i) {
+            recorded = recorded << 8 | (records[pos + i] & 0xFF);
+        }
+        return recorded == length;
+    }
+
+    private String nameAt(int offset) {
+        int pos = offset + 2 + lengthAt(offset) + Long.BYTES;
+        return new String(records, pos + 2, lengthAt(pos), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Doubles the table
+     */
+    private void grow() {
+        long[] oldFingerprints = fingerprints;
+        int[] oldOffsets = offsets;
+        fingerprints = new long[oldFingerprints.length * 2];
+        offsets = new int[oldOffsets.length * 2];
+        int mask = fingerprints.length - 1;
+        for (int i = 0; i < oldFingerprints.length; ++i) {
+            if (oldFingerprints[i] != 0) {
+                int slot = (int) (oldFingerprints[i] ^ (oldFingerprints[i] >>> 32)) & mask;
+                while (fingerprints[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                fingerprints[slot] = oldFingerprints[i];
+                offsets[slot] = oldOffsets[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package org.ericace;
+
+import io.prometheus.client.Counter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The documents archived by previous runs, loaded from their manifests, for building an incremental archive that
+ * holds only the documents that are new or changed since then.
+ * <p>
+ * The manifests are applied in order - a full archive's manifest, then the manifest of each incremental archive
+ * built on it - and the keys in each incremental archive's deletion list are removed. What is left maps each key
+ * to the version it was archived with: the version column of the manifest, which records the document's
+ * {@link Document#getVersion() version} - or "-" if the store doesn't record one - as it was read. A document is
+ * unchanged if its key is present and its version now equals the archived version. The ETag column isn't used:
+ * it comes from the binary store, so it can't be compared without getting the binary. Unchanged documents are skipped by the {@link DocumentReader}, so they are never dispatched
+ * to a loader or downloaded.
+ * <p>
+ * The index holds a 64-bit hash of each key and of each version in two open-addressed arrays, rather than the
+ * strings, so a few million documents take tens of megabytes. The key strings are only needed for the deletion
+ * list - the keys that no document in this run matched - which is written by streaming the manifests again.
+ * A hash collision between two keys would make one look unchanged; at 64 bits that is vanishingly unlikely for
+ * any realistic document count.
+ */
+public class DeltaIndex {
+
+    static final Counter skippedDocuments = Counter.build().name("archive_delta_skipped_documents")
+            .help("Documents left out of an incremental archive because they were unchanged.").register();
+
+    /**
+     * The deletion list file extension, appended to the archive file name
+     */
+    public static final String EXTENSION = ".deleted";
+
+    /**
+     * Marks an empty slot in {@link #keys}. A key that hashes to it is stored as {@link #ZERO_KEY}.
+     */
+    private static final long EMPTY = 0;
+    private static final long ZERO_KEY = 1;
+
+    /**
+     * Marks a slot whose key was deleted
+     */
+    private static final long DELETED = 0;
+
+    private final List<Path> manifests;
+
+    /**
+     * Key hashes
+     */
+    private long[] keys = new long[1024];
+
+    /**
+     * Version hashes, parallel to {@link #keys}. Never {@link #DELETED} for a present key.
+     */
+    private long[] versions = new long[1024];
+
+    private int size = 0;
+
+    /**
+     * Slots whose key was looked up in this run, so isn't deleted
+     */
+    private final BitSet seen = new BitSet();
+
+    /**
+     * Constructor. Loads the manifests.
+     *
+     * @param manifests manifests of previous runs, oldest first
+     * @throws IOException if a manifest or deletion list can't be read
+     */
+    public DeltaIndex(List<Path> manifests) throws IOException {
+        this.manifests = manifests;
+        for (Path manifest : manifests) {
+            try (BufferedReader reader = open(manifest)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", 4);
+                    put(hash(fields[0]), versionHash(fields[2]));
+                }
+            }
+            Path deleted = deletionList(manifest);
+            if (Files.exists(deleted)) {
+                for (String key : Files.readAllLines(deleted, StandardCharsets.UTF_8)) {
+                    int slot = find(hash(key));
+                    if (keys[slot] != EMPTY) {
+                        versions[slot] = DELETED;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks a document up, and remembers that it is still present
+     *
+     * @param doc the document
+     * @return true if the document was archived before with the same version
+     */
+    public synchronized boolean isUnchanged(Document doc) {
+        int slot = find(hash(doc.getKey()));
+        if (keys[slot] == EMPTY || versions[slot] == DELETED) {
+            return false;
+        }
+        seen.set(slot);
+        boolean unchanged = versions[slot] == versionHash(doc.getVersion() != null ? doc.getVersion() : "-");
+        if (unchanged) {
+            skippedDocuments.inc();
+        }
+        return unchanged;
+    }
+
+    /**
+     * Writes the keys of all previously archived documents that weren't looked up in this run
+     *
+     * @param file the deletion list to write
+     * @return the number of keys written
+     * @throws IOException if a manifest can't be read or the file can't be written
+     */
+    public synchronized int writeDeletions(Path file) throws IOException {
+        BitSet written = (BitSet) seen.clone();
+        int count = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (Path manifest : manifests) {
+                try (BufferedReader reader = open(manifest)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        String key = line.substring(0, line.indexOf('\t'));
+                        int slot = find(hash(key));
+                        if (versions[slot] != DELETED && !written.get(slot)) {
+                            written.set(slot);
+                            writer.write(key);
+                            writer.newLine();
+                            ++count;
+                        }
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the deletion list written beside the archive that the passed manifest describes
+     */
+    static Path deletionList(Path manifest) {
+        String name = manifest.toString();
+        if (name.endsWith(EntryDigester.EXTENSION)) {
+            name = name.substring(0, name.length() - EntryDigester.EXTENSION.length());
+        }
+        return Paths.get(name + EXTENSION);
+    }
+
+    /**
+     * Opens a manifest, positioned after the header
+     */
+    private static BufferedReader open(Path manifest) throws IOException {
+        BufferedReader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8);
+        String header = reader.readLine();
+        if (header == null || !header.startsWith(EntryDigester.HEADER)) {
+            reader.close();
+            throw new IOException("Not a manifest: " + manifest);
+        }
+        return reader;
+    }
+
+    private void put(long key, long version) {
+        if (size * 2 >= keys.length) {
+            grow();
+        }
+        int slot = find(key);
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            ++size;
+        }
+        versions[slot] = version;
+    }
+
+    /**
+     * @return the slot holding the key, or the empty slot where it would go
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldVersions = versions;
+        keys = new long[oldKeys.length * 2];
+        versions = new long[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                versions[slot] = oldVersions[i];
+            }
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-16 chars of the string, mixed so that nearby keys spread over the table
+     */
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); ++i) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h == EMPTY ? ZERO_KEY : h;
+    }
+
+    /**
+     * Hashes a version, never returning {@link #DELETED}
+     */
+    private static long versionHash(String version) {
+        long h = hash(version);
+        return h == DELETED ? ZERO_KEY : h;
+    }
+}
@@ -52,4 +52,14 @@ public class Document {
     public String getKey() {
         return String.valueOf(docID);
     }
+
+    /**
+     * Gets the version of the attachment as recorded in the document store - e.g. the S3 ETag of the object - so
+     * that an incremental archive can tell whether the attachment changed without getting it. The fake store
+     * doesn't record versions, so this is null, meaning a document is unchanged if its key was archived before.
+     * (See {@link DeltaIndex}.)
+     */
+    public String getVersion() {
+        return null;
+    }
 }
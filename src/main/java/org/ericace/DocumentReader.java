@@ -14,23 +14,81 @@ public class DocumentReader implements Iterable<Document> {
 
     private static final Logger logger = LogManager.getLogger(DocumentReader.class);
 
+    /**
+     * The ID of the first doc this reader will return
+     */
+    private final long firstDoc;
+
     /**
      * The number of docs this reader will return
      */
     private final int numDocs;
 
+    /**
+     * If not null, documents that are unchanged since the runs it was loaded from are skipped
+     */
+    private final DeltaIndex delta;
+
     /**
      * Constructor
      *
      * @param numDocs the number of docs this reader will return
      */
     public DocumentReader(int numDocs) {
+        this(1, numDocs);
+    }
+
+    /**
+     * Constructor for a reader that only returns documents that are new or changed since previous runs
+     *
+     * @param numDocs the number of docs in the store
+     * @param delta   the documents archived by previous runs
+     */
+    public DocumentReader(int numDocs, DeltaIndex delta) {
+        this(1, numDocs, delta);
+    }
+
+    /**
+     * Constructor for a reader over a range of documents, e.g. one shard of a larger document set
+     *
+     * @param firstDoc the ID of the first doc this reader will return
+     * @param numDocs  the number of docs this reader will return
+     */
+    public DocumentReader(long firstDoc, int numDocs) {
+        this(firstDoc, numDocs, null);
+    }
+
+    private DocumentReader(long firstDoc, int numDocs, DeltaIndex delta) {
+        this.firstDoc = firstDoc;
         this.numDocs = numDocs;
+        this.delta = delta;
+    }
+
+    /**
+     * @return the number of docs in the range this reader reads, including any that a delta index skips
+     */
+    public int size() {
+        return numDocs;
+    }
+
+    /**
+     * Creates a reader over a slice of this reader's range - e.g. one page of a sliced scroll - that skips the
+     * same documents this reader does. Slices can be read concurrently.
+     *
+     * @param offset the offset of the slice in this reader's range
+     * @param count  the number of docs in the slice
+     * @return the reader
+     */
+    public DocumentReader slice(int offset, int count) {
+        if (offset < 0 || count < 0 || offset + count > numDocs) {
+            throw new IndexOutOfBoundsException("Slice " + offset + "+" + count + " of " + numDocs);
+        }
+        return new DocumentReader(firstDoc + offset, count, delta);
     }
 
     @Override
     public Iterator<Document> iterator() {
-        return new DocumentIterator(numDocs);
+        return new DocumentIterator(firstDoc, numDocs, delta);
     }
 
     /**
@@ -39,21 +97,33 @@ public class DocumentReader implements Iterable<Document> {
      */
     private static class DocumentIterator implements Iterator<Document> {
 
-        private final int numDocs;
-        private int curDoc = 0;
+        private final long lastDoc;
+        private final DeltaIndex delta;
+        private long curDoc;
 
-        DocumentIterator(int numDocs) {
-            this.numDocs = numDocs;
+        DocumentIterator(long firstDoc, int numDocs, DeltaIndex delta) {
+            this.curDoc = firstDoc - 1;
+            this.lastDoc = firstDoc - 1 + numDocs;
+            this.delta = delta;
         }
 
+        /**
+         * Skips past unchanged documents if there is a delta index, so that the next document is one that will
+         * be returned
+         */
         @Override
         public boolean hasNext() {
-            return curDoc < numDocs;
+            while (delta != null && curDoc < lastDoc && delta.isUnchanged(new Document(curDoc + 1))) {
+                ++curDoc;
+            }
+            return curDoc < lastDoc;
         }
 
         /**
-         * Creates a new document on each call. Each document creates its own unique ID starting with '1' and
-         * monotonically increasing for each subsequent document.
+         * Creates a new document on each call. Each document gets an ID starting with the reader's first ID - '1'
+         * unless a range was specified - and monotonically increasing for each subsequent document. IDs are
+         * per-iterator, so concurrent readers (e.g. concurrent jobs in service mode) each produce 'file-1',
+         * 'file-2', ...
          */
         @Override
         public Document next() {
@@ -61,7 +131,7 @@ public class DocumentReader implements Iterable<Document> {
                 throw new IllegalStateException();
             }
             ++curDoc;
-            Document doc = new Document();
+            Document doc = new Document(curDoc);
             return doc;
         }
     }
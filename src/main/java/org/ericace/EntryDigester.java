@@ -0,0 +1,419 @@
+package org.ericace;
+
+import io.prometheus.client.Counter;
+
+import java.io.BufferedWriter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32C;
+
+/**
+ * Computes checksums of archive entries while their content streams into the archive, and writes them to a
+ * manifest beside the archive, so an archive can be verified without reading it back.
+ * <p>
+ * The archive writer reads each binary through a {@link DigestingInputStream}. CRC32C is cheap - the JVM uses the
+ * CPU's CRC instructions - so it is computed inline. SHA-256 is not, so a stream created with <code>offload</code>
+ * copies each chunk it reads and hands it to a small hashing pool, and the writer carries on. Chunks of one entry
+ * are hashed in order, and different entries are hashed concurrently. The bytes handed off but not yet hashed are
+ * bounded by {@link #MAX_PENDING_BYTES}, so a slow pool throttles the writer rather than exhausting the heap.
+ * Where the content is already being read on a loader thread - e.g. to deflate a ZIP entry - the stream is created
+ * without offloading, and everything is computed on the loader.
+ * <p>
+ * If ETag verification is enabled and a binary has an ETag that looks like a plain MD5, its MD5 is computed too, and
+ * the manifest can't be written if they differ. Verification is opt-in because the store can't be trusted to say
+ * what an ETag is: an object encrypted with SSE-KMS or SSE-C has a 32 hex digit ETag that is not the MD5 of its
+ * content, which would look like a mismatch. Without verification, the ETag is just recorded.
+ * <p>
+ * Lines are written in archive order as soon as their checksums are complete, so only the entries still being
+ * hashed are held in memory. The manifest is written under a {@link #PARTIAL} name and renamed once complete, so
+ * a failed run doesn't leave a manifest that a later incremental run would trust.
+ * <p>
+ * The manifest has one line per entry in archive order, tab separated: the document key, the entry size, the
+ * document's {@link Document#getVersion() version} or "-", the ETag or "-", one column per configured checksum in
+ * {@link Algorithm} order, and the entry name - last, as in {@link ArchiveIndex}. The first line names the columns.
+ * The version is what the document store reported when the document was read, so a later incremental run can
+ * compare it with the store's current version without getting the binary. (See {@link DeltaIndex}.)
+ */
+public class EntryDigester {
+
+    static final Counter eTagMismatches = Counter.build().name("archive_entry_etag_mismatches")
+            .help("Archive entries whose content did not match the MD5 ETag reported by the store.").register();
+
+    /**
+     * The manifest file extension, appended to the archive file name
+     */
+    public static final String EXTENSION = ".manifest";
+
+    /**
+     * The first line of a manifest, followed by the checksum column names and "name"
+     */
+    static final String HEADER = "# key\tsize\tversion\tetag";
+
+    /**
+     * Appended to the manifest file name while it is being written
+     */
+    static final String PARTIAL = ".partial";
+
+    /**
+     * Upper bound on the bytes handed to the hashing pool and not yet hashed
+     */
+    static final int MAX_PENDING_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Supported checksums
+     */
+    public enum Algorithm {
+        crc32c,
+        sha256
+    }
+
+    private final Set<Algorithm> algorithms;
+
+    /**
+     * If true, the MD5 of a binary with an MD5-like ETag is computed and compared with the ETag
+     */
+    private final boolean verifyETags;
+
+    /**
+     * The manifest to write
+     */
+    private final Path manifest;
+
+    /**
+     * Hashes chunks handed off by offloading streams
+     */
+    private final ExecutorService pool;
+
+    /**
+     * Bytes that may still be handed to the pool
+     */
+    private final Semaphore pending = new Semaphore(MAX_PENDING_BYTES);
+
+    /**
+     * The manifest lines not yet written, in archive order, completed as their checksums are. The head is still
+     * being hashed. Guarded by <code>this</code>.
+     */
+    private final Deque<CompletableFuture<String>> lines = new ArrayDeque<>();
+
+    /**
+     * Writes the manifest under its {@link #PARTIAL} name. Opened with the first line. Guarded by <code>this</code>.
+     */
+    private BufferedWriter writer;
+
+    /**
+     * The first failure to complete or write a line, after which no more lines are written. Guarded by
+     * <code>this</code>.
+     */
+    private IOException failure;
+
+    /**
+     * Constructor
+     *
+     * @param algorithms  the checksums to compute
+     * @param verifyETags see {@link #verifyETags}
+     * @param threads     the size of the hashing pool
+     * @param manifest    the manifest to write
+     */
+    public EntryDigester(Set<Algorithm> algorithms, boolean verifyETags, int threads, Path manifest) {
+        this.algorithms = EnumSet.copyOf(algorithms);
+        this.verifyETags = verifyETags;
+        this.manifest = manifest;
+        pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "entry-digester");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Wraps a binary's content stream to compute the configured checksums as it is read
+     *
+     * @param in      the content
+     * @param eTag    the binary's ETag, or null
+     * @param offload true to hash SHA-256 and MD5 on the hashing pool, false to hash on the calling thread
+     * @return a stream over the same content
+     */
+    public DigestingInputStream digest(InputStream in, String eTag, boolean offload) {
+        return new DigestingInputStream(in, eTag, offload);
+    }
+
+    /**
+     * Adds an entry to the manifest, which is written once it and all earlier entries have their checksums. Called
+     * in archive order.
+     *
+     * @param name    the entry name
+     * @param key     the document key
+     * @param version the document's version in the store, or null
+     * @param size    the entry size
+     * @param digests the entry's checksums, from {@link DigestingInputStream#result}
+     */
+    public void record(String name, String key, String version, long size, CompletableFuture<String> digests) {
+        String prefix = key + "\t" + size + "\t" + (version != null ? version : "-") + "\t";
+        CompletableFuture<String> line = digests.thenApply(columns -> prefix + columns + "\t" + name);
+        synchronized (this) {
+            lines.add(line);
+        }
+        line.whenComplete((text, e) -> drain());
+    }
+
+    /**
+     * Writes the completed lines at the head of {@link #lines}, stopping at the first one still being hashed
+     */
+    private synchronized void drain() {
+        while (!lines.isEmpty() && lines.peek().isDone()) {
+            CompletableFuture<String> line = lines.poll();
+            if (failure != null) {
+                continue;
+            }
+            try {
+                String text = line.join();
+                writer().write(text);
+                writer.newLine();
+            } catch (CompletionException e) {
+                failure = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                        : new IOException(e.getCause());
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+
+    /**
+     * @return the count of lines recorded but not yet written
+     */
+    synchronized int pendingLines() {
+        return lines.size();
+    }
+
+    /**
+     * @return the manifest writer, opening it and writing the header if this is the first line
+     */
+    private BufferedWriter writer() throws IOException {
+        if (writer == null) {
+            writer = Files.newBufferedWriter(partial(), StandardCharsets.UTF_8);
+            StringBuilder header = new StringBuilder(HEADER);
+            algorithms.forEach(algorithm -> header.append('\t').append(algorithm));
+            writer.write(header.append("\tname").toString());
+            writer.newLine();
+        }
+        return writer;
+    }
+
+    private Path partial() {
+        return Paths.get(manifest + PARTIAL);
+    }
+
+    /**
+     * Waits for all checksums, finishes writing the manifest, and stops the hashing pool
+     *
+     * @throws IOException if the file can't be written, or an entry didn't match its ETag
+     */
+    public void writeManifest() throws IOException {
+        try {
+            CompletableFuture<?> all;
+            synchronized (this) {
+                all = CompletableFuture.allOf(lines.toArray(new CompletableFuture<?>[0]));
+            }
+            all.handle((v, e) -> null).join();
+            synchronized (this) {
+                drain();
+                try {
+                    writer().close();
+                } catch (IOException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+            Files.move(partial(), manifest, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * The digests of one entry. Updated by one thread at a time: the reader, or the pool stages of one entry,
+     * which run in order.
+     */
+    private static class Digests {
+        final MessageDigest sha256;
+        final MessageDigest md5;
+
+        Digests(boolean sha256, boolean md5) {
+            try {
+                this.sha256 = sha256 ? MessageDigest.getInstance("SHA-256") : null;
+                this.md5 = md5 ? MessageDigest.getInstance("MD5") : null;
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void update(byte[] b, int off, int len) {
+            if (sha256 != null) {
+                sha256.update(b, off, len);
+            }
+            if (md5 != null) {
+                md5.update(b, off, len);
+            }
+        }
+    }
+
+    /**
+     * An input stream that computes checksums of the content read through it. The checksums are complete
+     * once the stream is closed.
+     */
+    public class DigestingInputStream extends FilterInputStream {
+        private final String eTag;
+        private final boolean offload;
+        private final CRC32C crc32c;
+        private final Digests digests;
+
+        /**
+         * The pool stages hashing this entry, in order. Null if not offloading.
+         */
+        private CompletableFuture<Digests> chain;
+
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        private boolean closed = false;
+
+        private DigestingInputStream(InputStream in, String eTag, boolean offload) {
+            super(in);
+            this.eTag = eTag != null && eTag.matches("[0-9a-fA-F]{32}") ? eTag.toLowerCase() : null;
+            this.offload = offload;
+            crc32c = algorithms.contains(Algorithm.crc32c) ? new CRC32C() : null;
+            digests = new Digests(algorithms.contains(Algorithm.sha256), verifyETags && this.eTag != null);
+            if (offload) {
+                chain = CompletableFuture.completedFuture(digests);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                update(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                update(b, off, n);
+            }
+            return n;
+        }
+
+        /**
+         * Overridden so skipped content is still digested
+         */
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            int r;
+            while (skipped < n && (r = read(buffer, 0, (int) Math.min(buffer.length, n - skipped))) != -1) {
+                skipped += r;
+            }
+            return skipped;
+        }
+
+        private void update(byte[] b, int off, int len) {
+            if (crc32c != null) {
+                crc32c.update(b, off, len);
+            }
+            if (digests.sha256 == null && digests.md5 == null) {
+                return;
+            }
+            if (!offload) {
+                digests.update(b, off, len);
+                return;
+            }
+            byte[] chunk = Arrays.copyOfRange(b, off, off + len);
+            int permits = Math.min(len, MAX_PENDING_BYTES);
+            pending.acquireUninterruptibly(permits);
+            chain = chain.thenApplyAsync(d -> {
+                try {
+                    d.update(chunk, 0, chunk.length);
+                } finally {
+                    pending.release(permits);
+                }
+                return d;
+            }, pool);
+        }
+
+        /**
+         * Closes the wrapped stream, and completes the {@link #result} once any handed-off chunks are hashed
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                super.close();
+            } finally {
+                if (offload) {
+                    chain.whenComplete((d, e) -> complete());
+                } else {
+                    complete();
+                }
+            }
+        }
+
+        private void complete() {
+            StringBuilder columns = new StringBuilder(eTag != null ? eTag : "-");
+            if (crc32c != null) {
+                columns.append('\t').append(String.format("%08x", crc32c.getValue()));
+            }
+            if (digests.sha256 != null) {
+                columns.append('\t').append(hex(digests.sha256.digest()));
+            }
+            if (digests.md5 != null && !eTag.equals(hex(digests.md5.digest()))) {
+                eTagMismatches.inc();
+                result.completeExceptionally(new IOException("Content does not match ETag " + eTag));
+                return;
+            }
+            result.complete(columns.toString());
+        }
+
+        /**
+         * @return the tab separated ETag and checksum columns of the entry's manifest line, completed once
+         * the stream is closed
+         */
+        public CompletableFuture<String> result() {
+            return result;
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder s = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            s.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return s.toString();
+    }
+}
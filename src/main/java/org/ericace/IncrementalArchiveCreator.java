@@ -0,0 +1,63 @@
+package org.ericace;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Creates an incremental archive: runs an archive creator whose document reader skips the documents that are
+ * unchanged since previous runs, then writes the list of previously archived documents that no longer exist
+ * beside the archive. The archive and its manifest, plus the deletion list, are the input for the next
+ * incremental run. See {@link DeltaIndex}.
+ */
+public class IncrementalArchiveCreator implements ArchiveCreator {
+
+    private static final Logger logger = LogManager.getLogger(IncrementalArchiveCreator.class);
+
+    /**
+     * Creates the archive, with a reader over the {@link #delta}
+     */
+    private final ArchiveCreator creator;
+
+    /**
+     * The documents archived by previous runs
+     */
+    private final DeltaIndex delta;
+
+    /**
+     * The deletion list to write
+     */
+    private final Path deletions;
+
+    /**
+     * Constructor
+     *
+     * @param creator   see {@link #creator}
+     * @param delta     see {@link #delta}
+     * @param deletions see {@link #deletions}
+     */
+    public IncrementalArchiveCreator(ArchiveCreator creator, DeltaIndex delta, Path deletions) {
+        this.creator = creator;
+        this.delta = delta;
+        this.deletions = deletions;
+    }
+
+    @Override
+    public void createArchive() {
+        creator.createArchive();
+        try {
+            int count = delta.writeDeletions(deletions);
+            logger.info("Skipped {} unchanged documents, and listed {} deleted documents in {}",
+                    (long) DeltaIndex.skippedDocuments.get(), count, deletions);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Metrics getMetrics() {
+        return creator.getMetrics();
+    }
+}
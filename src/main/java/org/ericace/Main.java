@@ -7,6 +7,8 @@ import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.core.config.Configurator;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
 import java.util.List;
 
 /**
@@ -31,12 +33,64 @@ public class Main {
             configureAdditionalLoggers(parsedArgs.loggers);
         }
 
+        if (parsedArgs.benchmark != null) {
+            int regressions = new Benchmark(Paths.get(parsedArgs.benchmark), parsedArgs.benchmarkRuns,
+                    parsedArgs.baseline == null ? null : Paths.get(parsedArgs.baseline), parsedArgs.tolerance).run();
+            if (regressions > 0) {
+                System.exit(1);
+            }
+            return;
+        }
+        if (parsedArgs.extractEntry != null) {
+            extract(parsedArgs);
+            return;
+        }
+
         logger.info("Starting");
+        if (parsedArgs.scenario == Args.Scenario.service) {
+            runService(parsedArgs);
+            return;
+        }
         ArchiveCreator creator = ArchiveCreatorFactory.fromArgs(parsedArgs);
         try (HTTPServer server = new HTTPServer.Builder().withPort(parsedArgs.metricsPort).build()) {
             creator.getMetrics().start();
             creator.createArchive();
             creator.getMetrics().finishAndPrint();
+            if (parsedArgs.report != null) {
+                creator.getMetrics().writeReport(Paths.get(parsedArgs.report));
+            }
+        }
+        logger.info("Exiting");
+    }
+
+    /**
+     * Copies one entry of a block-gzip archive to stdout, using the archive's index
+     *
+     * @param parsedArgs the archive and the entry
+     */
+    private static void extract(Args parsedArgs) throws IOException {
+        try (InputStream is = ArchiveIndex.open(Paths.get(parsedArgs.archiveFqpn), parsedArgs.extractEntry)) {
+            is.transferTo(System.out);
+        }
+        System.out.flush();
+    }
+
+    /**
+     * Runs the archive service until the JVM is terminated
+     *
+     * @param parsedArgs service configuration
+     */
+    private static void runService(Args parsedArgs) throws IOException {
+        ArchiveService service = new ArchiveService(parsedArgs);
+        Runtime.getRuntime().addShutdownHook(new Thread(service::stop));
+        HTTPServer server = new HTTPServer.Builder().withPort(parsedArgs.metricsPort).build();
+        try {
+            service.start();
+            Thread.currentThread().join();
+        } catch (InterruptedException e) {
+            logger.info("Interrupted");
+        } finally {
+            server.close();
         }
         logger.info("Exiting");
     }
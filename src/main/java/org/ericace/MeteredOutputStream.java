@@ -0,0 +1,81 @@
+package org.ericace;
+
+import io.prometheus.client.Counter;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An output stream filter that adds the count of bytes passing through it to a Prometheus {@link Counter}.
+ * Used by the archive creators to expose writer throughput before and after compression. Optionally also adds
+ * the time spent in the underlying stream, so the writer's output time can be told from its compression time.
+ */
+public class MeteredOutputStream extends FilterOutputStream {
+
+    /**
+     * The counter to increment with each write
+     */
+    private final Counter counter;
+
+    /**
+     * If not null, the nanoseconds spent writing to and flushing the underlying stream are added to this
+     */
+    private final LongAdder nanos;
+
+    /**
+     * Constructor
+     *
+     * @param out     the stream to write through to
+     * @param counter see {@link #counter}
+     */
+    public MeteredOutputStream(OutputStream out, Counter counter) {
+        this(out, counter, null);
+    }
+
+    /**
+     * Constructor for a stream that also times the underlying stream
+     *
+     * @param out     the stream to write through to
+     * @param counter see {@link #counter}
+     * @param nanos   see {@link #nanos}
+     */
+    public MeteredOutputStream(OutputStream out, Counter counter, LongAdder nanos) {
+        super(out);
+        this.counter = counter;
+        this.nanos = nanos;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        long start = nanos == null ? 0 : System.nanoTime();
+        out.write(b);
+        counter.inc();
+        if (nanos != null) {
+            nanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Overridden because the <code>FilterOutputStream</code> implementation writes one byte at a time
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        long start = nanos == null ? 0 : System.nanoTime();
+        out.write(b, off, len);
+        counter.inc(len);
+        if (nanos != null) {
+            nanos.add(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        long start = nanos == null ? 0 : System.nanoTime();
+        out.flush();
+        if (nanos != null) {
+            nanos.add(System.nanoTime() - start);
+        }
+    }
+}
@@ -1,20 +1,51 @@
 package org.ericace;
 
+import com.sun.management.OperatingSystemMXBean;
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * A simple class to tabulate some metrics that can be displayed to the console.
+ * A simple class to tabulate some metrics that can be displayed to the console. Also holds the Prometheus
+ * collectors that are shared by both archive creators. All accumulators are backed by striped adders so that
+ * many concurrent writers don't serialize on a single lock or CAS target.
  */
 public class Metrics {
 
+    /**
+     * Uncompressed TAR bytes handed to the compressor by the archive writer. The rate of this counter is the
+     * writer throughput before compression.
+     */
+    public static final Counter archiveUncompressedBytes = Counter.build().name("archive_uncompressed_bytes")
+            .help("TAR stream bytes written by the archive writer before compression.").register();
+
+    /**
+     * Compressed bytes written to the archive output. The rate of this counter is the writer throughput after
+     * compression.
+     */
+    public static final Counter archiveCompressedBytes = Counter.build().name("archive_compressed_bytes")
+            .help("Archive bytes written to the output after compression.").register();
+
     private static final Logger logger = LogManager.getLogger(Metrics.class);
 
     private static final DateTimeFormatter fmt = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS")
@@ -36,10 +67,15 @@ public class Metrics {
      */
     private Duration elapsed;
 
+    /**
+     * Time spent warming up before the TAR generation process started, or null if there was no warm-up
+     */
+    private Duration warmUp;
+
     /**
      * The number of binary bytes - uncompressed - written to the TAR
      */
-    private long binaryBytesWritten;
+    private final LongAdder binaryBytesWritten = new LongAdder();
 
     /**
      * The number of binary bytes downloaded from the binary provider
@@ -52,13 +88,18 @@ public class Metrics {
      */
     private long downloadElapsed;
 
+    /**
+     * Where the time of the TAR generation process went, by stage
+     */
+    private final StageTimes stages = new StageTimes();
+
     /**
      * Maintains a running tally of {@link org.ericace.binary.BinaryObject} bytes written to the TAR
      *
      * @param binaryBytesWritten for one Binary
      */
     public void addBinaryBytesWritten(long binaryBytesWritten) {
-        this.binaryBytesWritten += binaryBytesWritten;
+        this.binaryBytesWritten.add(binaryBytesWritten);
     }
 
     public void setBinaryBytesDownloaded(double binaryBytesDownloaded) {
@@ -69,13 +110,23 @@ public class Metrics {
         this.downloadElapsed = downloadElapsed;
     }
 
+    public void setWarmUp(Duration warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    public StageTimes getStages() {
+        return stages;
+    }
+
     public void start() {
         start = Instant.now();
+        stages.start();
     }
 
     public void finish() {
         finish = Instant.now();
         elapsed = Duration.between(start, finish);
+        stages.stop();
     }
 
     public void finishAndPrint() {
@@ -85,17 +136,96 @@ public class Metrics {
 
     public void print() {
         StringBuilder metrics = new StringBuilder("\n");
+        if (warmUp != null) {
+            metrics.append(String.format("%41s: %s\n", "Warm-up (HH:MM:SS:millis)", formatElapsed(warmUp)));
+        }
         metrics.append(String.format("%41s: %s\n", "Start", fmt.format(start)));
         metrics.append(String.format("%41s: %s\n", "Finish", fmt.format(finish)));
         metrics.append(String.format("%41s: %s\n", "Elapsed (HH:MM:SS:millis)", formatElapsed(elapsed)));
-        metrics.append(String.format("%41s: %,d\n", "Binary bytes written", binaryBytesWritten));
+        metrics.append(String.format("%41s: %,d\n", "Binary bytes written", binaryBytesWritten.sum()));
+        metrics.append(String.format("%41s: %,d\n", "Archive bytes written (compressed)",
+                (long) archiveCompressedBytes.get()));
         metrics.append(String.format("%41s: %,f\n", "Binary bytes downloaded", binaryBytesDownloaded));
 
         float bpsec = ((float) binaryBytesDownloaded / (float) downloadElapsed) * 1000F;
         metrics.append(String.format("%41s: %,f\n", "Binary bytes downloaded/sec", bpsec));
         metrics.append(String.format("%41s: %s\n", "Binary download elapsed (HH:MM:SS:millis)", formatElapsed(downloadElapsed)));
+        metrics.append(stages.summary(elapsed.toNanos()));
 
         logger.info(metrics);
+        logger.info("Stages: {}", stages.toJson(elapsed.toNanos()));
+    }
+
+    /**
+     * Writes the metrics of a finished run for the {@link Benchmark} runner that started this process
+     *
+     * @param report the file to write
+     * @throws IOException if the file can't be written
+     */
+    public void writeReport(Path report) throws IOException {
+        Properties props = new Properties();
+        double seconds = elapsed.toMillis() / 1000D;
+        props.setProperty("elapsedMillis", String.valueOf(elapsed.toMillis()));
+        props.setProperty("warmUpMillis", String.valueOf(warmUp == null ? 0 : warmUp.toMillis()));
+        props.setProperty("binaryBytesWritten", String.valueOf(binaryBytesWritten.sum()));
+        props.setProperty("archiveBytes", String.valueOf((long) archiveCompressedBytes.get()));
+        props.setProperty("bytesPerSec", String.valueOf(seconds == 0 ? 0 : binaryBytesWritten.sum() / seconds));
+        props.setProperty("getLatencyP50", String.valueOf(quantile("binary_get_latency_seconds", .5)));
+        props.setProperty("getLatencyP99", String.valueOf(quantile("binary_get_latency_seconds", .99)));
+        OperatingSystemMXBean os = (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        props.setProperty("cpuSeconds", String.valueOf(os.getProcessCpuTime() / 1_000_000_000D));
+        props.setProperty("peakRssBytes", String.valueOf(peakRss()));
+        try (OutputStream out = Files.newOutputStream(report)) {
+            props.store(out, null);
+        }
+    }
+
+    /**
+     * Estimates a quantile of a histogram in the default registry, summed over all its label values, as the
+     * upper bound of the bucket holding the quantile
+     *
+     * @param histogram the histogram name
+     * @param q         the quantile, like .99
+     * @return the estimate in the histogram's unit, or 0 if nothing was observed
+     */
+    static double quantile(String histogram, double q) {
+        TreeMap<Double, Double> buckets = new TreeMap<>();
+        for (Collector.MetricFamilySamples family :
+                Collections.list(CollectorRegistry.defaultRegistry.metricFamilySamples())) {
+            for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+                if (sample.name.equals(histogram + "_bucket")) {
+                    String bound = sample.labelValues.get(sample.labelNames.indexOf("le"));
+                    double le = bound.equals("+Inf") ? Double.POSITIVE_INFINITY : Double.parseDouble(bound);
+                    buckets.merge(le, sample.value, Double::sum);
+                }
+            }
+        }
+        double total = buckets.isEmpty() ? 0 : buckets.lastEntry().getValue();
+        if (total == 0) {
+            return 0;
+        }
+        for (Map.Entry<Double, Double> bucket : buckets.entrySet()) {
+            if (bucket.getValue() >= q * total) {
+                return bucket.getKey();
+            }
+        }
+        return buckets.lastKey();
+    }
+
+    /**
+     * @return the peak resident set size of this process from procfs, or -1 if not on Linux
+     */
+    private static long peakRss() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // fall through
+        }
+        return -1;
     }
 
     private String formatElapsed(Duration elapsed) {
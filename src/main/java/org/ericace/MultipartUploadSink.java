@@ -0,0 +1,221 @@
+package org.ericace;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClientBuilder;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * An {@link ArchiveSink} that uploads the archive to S3 with a multipart upload while it is being generated. The
+ * compressed stream is cut into parts of {@link #PART_SIZE} bytes, and each part is uploaded asynchronously as
+ * soon as it is full while the writer carries on filling the next one. At most <code>maxParts</code> parts are
+ * buffered or in flight at once - when that many are outstanding, the writer blocks until one completes. So
+ * upload overlaps generation, and memory use is bounded at roughly <code>(maxParts + 1) * PART_SIZE</code>
+ * with no local copy of the archive at all.
+ * <p>
+ * The upload is only completed if the stream is {@link ArchiveSink#commit committed} before it is closed. A stream
+ * closed without a commit - because the archive writer failed partway - aborts the upload, so a truncated archive
+ * is never published at the key.
+ * <p>
+ * An endpoint can be specified to upload to an S3-compatible service other than AWS, like a local stand-in
+ * for testing. In that case path-style addressing is used.
+ */
+public class MultipartUploadSink implements ArchiveSink {
+
+    private static final Logger logger = LogManager.getLogger(MultipartUploadSink.class);
+
+    /**
+     * Part size: 8 megabytes. (S3 requires at least 5 megabytes for all parts but the last.)
+     */
+    static final int PART_SIZE = 8 * 1024 * 1024;
+
+    private final S3AsyncClient client;
+    private final String bucket;
+    private final String key;
+    private final int maxParts;
+
+    /**
+     * Constructor
+     *
+     * @param uri      the upload target, like "s3://bucket/path/to/archive.tar.gz"
+     * @param region   the region of the bucket
+     * @param endpoint an S3-compatible endpoint, or null for AWS
+     * @param maxParts the max parts buffered or in flight
+     */
+    public MultipartUploadSink(String uri, String region, String endpoint, int maxParts) {
+        URI parsed = URI.create(uri);
+        this.bucket = parsed.getHost();
+        this.key = parsed.getPath().replaceFirst("^/", "");
+        this.maxParts = maxParts;
+        S3AsyncClientBuilder builder = S3AsyncClient.builder().region(Region.of(region));
+        if (endpoint != null) {
+            builder.endpointOverride(URI.create(endpoint))
+                    .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build());
+        }
+        client = builder.build();
+    }
+
+    /**
+     * Starts the multipart upload
+     *
+     * @return a stream that uploads what is written to it
+     * @throws IOException if the upload could not be started
+     */
+    @Override
+    public OutputStream open() throws IOException {
+        try {
+            String uploadId = client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                    .bucket(bucket).key(key).build()).join().uploadId();
+            logger.info("Started multipart upload {} to s3://{}/{}", uploadId, bucket, key);
+            return new UploadStream(uploadId);
+        } catch (CompletionException e) {
+            throw new IOException("Unable to start multipart upload to s3://" + bucket + "/" + key, e.getCause());
+        }
+    }
+
+    /**
+     * Buffers writes into parts and uploads them. See the class comments.
+     */
+    private class UploadStream extends OutputStream implements Committable {
+        private final String uploadId;
+        private final Semaphore partPermits = new Semaphore(maxParts);
+        private final List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+        private byte[] buffer = new byte[PART_SIZE];
+        private int position = 0;
+        private boolean closed = false;
+        private boolean committed = false;
+        private volatile Throwable failure = null;
+
+        UploadStream(String uploadId) {
+            this.uploadId = uploadId;
+        }
+
+        @Override
+        public void commit() {
+            committed = true;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Multipart upload " + uploadId + " is closed");
+            }
+            while (len > 0) {
+                int n = Math.min(len, buffer.length - position);
+                System.arraycopy(b, off, buffer, position, n);
+                position += n;
+                off += n;
+                len -= n;
+                if (position == buffer.length) {
+                    uploadPart();
+                }
+            }
+        }
+
+        /**
+         * Uploads the buffer as the next part, blocking first if {@link #maxParts} are outstanding
+         */
+        private void uploadPart() throws IOException {
+            try {
+                partPermits.acquire();
+            } catch (InterruptedException e) {
+                abort();
+                throw new IOException("Interrupted waiting to upload a part");
+            }
+            if (failure != null) {
+                abort();
+                throw new IOException("Multipart upload failed", failure);
+            }
+            int partNumber = parts.size() + 1;
+            AsyncRequestBody body = AsyncRequestBody.fromBytes(position == buffer.length ? buffer :
+                    Arrays.copyOf(buffer, position));
+            CompletableFuture<CompletedPart> part = client.uploadPart(UploadPartRequest.builder().bucket(bucket)
+                            .key(key).uploadId(uploadId).partNumber(partNumber).build(), body)
+                    .thenApply(resp -> CompletedPart.builder().partNumber(partNumber).eTag(resp.eTag()).build())
+                    .whenComplete((resp, err) -> {
+                        if (err != null) {
+                            failure = err;
+                        }
+                        partPermits.release();
+                    });
+            parts.add(part);
+            logger.info("Uploading part {} of {} bytes", partNumber, position);
+            buffer = new byte[PART_SIZE];
+            position = 0;
+        }
+
+        /**
+         * Uploads the final part and completes the upload if the stream was committed. Aborts the upload if it
+         * wasn't, or if any part failed.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            if (!committed) {
+                logger.error("Multipart upload {} was closed without a commit", uploadId);
+                abort();
+                return;
+            }
+            closed = true;
+            if (position > 0 || parts.isEmpty()) {
+                uploadPart();
+            }
+            List<CompletedPart> completed = new ArrayList<>();
+            try {
+                for (CompletableFuture<CompletedPart> part : parts) {
+                    completed.add(part.join());
+                }
+                completed.sort(Comparator.comparing(CompletedPart::partNumber));
+                client.completeMultipartUpload(CompleteMultipartUploadRequest.builder().bucket(bucket).key(key)
+                        .uploadId(uploadId).multipartUpload(CompletedMultipartUpload.builder().parts(completed)
+                                .build()).build()).join();
+                logger.info("Completed multipart upload {} with {} parts", uploadId, completed.size());
+            } catch (CompletionException e) {
+                abort();
+                throw new IOException("Multipart upload failed", e.getCause());
+            }
+            client.close();
+        }
+
+        /**
+         * Aborts the upload so S3 discards the uploaded parts, and releases the client. Waits for the parts in
+         * flight first, since a part that completes after the abort may be kept. Subsequent calls to
+         * {@link #close} do nothing.
+         */
+        private void abort() {
+            logger.error("Aborting multipart upload {}", uploadId);
+            closed = true;
+            CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).exceptionally(err -> null).join();
+            client.abortMultipartUpload(AbortMultipartUploadRequest.builder().bucket(bucket).key(key)
+                    .uploadId(uploadId).build()).exceptionally(err -> null).join();
+            client.close();
+        }
+    }
+}
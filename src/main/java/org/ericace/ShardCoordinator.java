@@ -0,0 +1,268 @@
+package org.ericace;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Generates one tar.gz archive on many worker processes - possibly on many hosts - to scale one logical export
+ * beyond one JVM and one NIC. The workers are instances of the {@link ArchiveService}. The coordinator partitions
+ * the documents into one contiguous range per worker, and concurrently requests a {@link TarSegment} for each
+ * range from the worker's <code>/stream</code> endpoint. The segments are byte-concatenated into the archive in
+ * range order with no recompression. The first segment is streamed straight into the archive as it arrives, and
+ * the others are buffered in temporary files until the segments before them are done.
+ * <p>
+ * A worker whose job fails drops the connection, which fails the segment's transfer. In addition, each segment is
+ * validated as it is appended: it is decompressed, so the CRC and length in each gzip trailer are checked, and its
+ * TAR entries are counted against the documents in its range. Then the worker is asked whether the segment's job
+ * is done. If any segment fails, the whole archive fails.
+ */
+public class ShardCoordinator implements ArchiveCreator {
+
+    private static final Logger logger = LogManager.getLogger(ShardCoordinator.class);
+
+    /**
+     * The workers, like "host1:8080"
+     */
+    private final List<String> workers;
+
+    /**
+     * The number of documents in the archive
+     */
+    private final int documentCount;
+
+    /**
+     * Identifies the archive in logging
+     */
+    private final String tarFQPN;
+
+    /**
+     * Where the archive is written
+     */
+    private final ArchiveSink sink;
+
+    /**
+     * Where segments are buffered until they can be appended to the archive
+     */
+    private final Path tmpDir;
+
+    private final Metrics metrics;
+
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    /**
+     * Constructor for builder
+     */
+    private ShardCoordinator(Builder builder) {
+        this.workers = builder.workers;
+        this.documentCount = builder.documentCount;
+        this.tarFQPN = builder.tarFQPN;
+        this.sink = builder.sink != null ? builder.sink : ArchiveSink.toFile(builder.tarFQPN);
+        this.tmpDir = builder.tmpDir;
+        this.metrics = builder.metrics;
+    }
+
+    /**
+     * Requests all segments concurrently, and concatenates them into the archive in order
+     *
+     * @throws RuntimeException if a segment could not be generated, or is not valid
+     */
+    @Override
+    public void createArchive() {
+        logger.info("Creating archive: {} on {} workers", tarFQPN, workers.size());
+        CompletableFuture<HttpResponse<InputStream>> first = null;
+        List<CompletableFuture<HttpResponse<Path>>> rest = new ArrayList<>();
+        List<Path> files = new ArrayList<>();
+        int[] counts = new int[workers.size()];
+        long firstDocument = 1;
+        for (int i = 0; i < workers.size(); ++i) {
+            int count = counts[i] = documentCount / workers.size() + (i < documentCount % workers.size() ? 1 : 0);
+            TarSegment segment = i == workers.size() - 1 ? TarSegment.last : TarSegment.part;
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://" + workers.get(i) + "/stream?first="
+                    + firstDocument + "&documents=" + count + "&segment=" + segment)).build();
+            logger.info("Requesting documents {} to {} from {}", firstDocument, firstDocument + count - 1,
+                    workers.get(i));
+            if (i == 0) {
+                first = client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream());
+            } else {
+                try {
+                    Path file = Files.createTempFile(tmpDir, "segment-" + i + "-", ".tar.gz");
+                    files.add(file);
+                    rest.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofFile(file)));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            firstDocument += count;
+        }
+        OutputStream out;
+        try (OutputStream os = new MeteredOutputStream(out = sink.open(), Metrics.archiveCompressedBytes)) {
+            HttpResponse<InputStream> response = first.join();
+            checkStatus(response, 0);
+            try (InputStream is = response.body()) {
+                append(is, os, 0, counts[0]);
+            }
+            checkJob(response, 0);
+            for (int i = 0; i < rest.size(); ++i) {
+                HttpResponse<Path> segmentResponse = rest.get(i).join();
+                checkStatus(segmentResponse, i + 1);
+                try (InputStream is = Files.newInputStream(files.get(i))) {
+                    append(is, os, i + 1, counts[i + 1]);
+                }
+                checkJob(segmentResponse, i + 1);
+                Files.delete(files.get(i));
+                logger.info("Appended segment {}", i + 1);
+            }
+            ArchiveSink.commit(out);
+        } catch (IOException | InterruptedException | CompletionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            rest.forEach(f -> f.cancel(true));
+            files.forEach(f -> f.toFile().delete());
+        }
+        logger.info("Done creating archive");
+    }
+
+    private void checkStatus(HttpResponse<?> response, int segment) {
+        if (response.statusCode() != 200) {
+            throw new RuntimeException("Worker " + workers.get(segment) + " failed segment " + segment
+                    + " with status " + response.statusCode());
+        }
+    }
+
+    /**
+     * Copies a segment into the archive, validating it on the way: every gzip member is decompressed so its
+     * trailer is checked, and the TAR entries are counted
+     *
+     * @param is       the segment
+     * @param os       the archive
+     * @param segment  the segment number
+     * @param expected the number of documents in the segment's range
+     * @throws IOException if the segment is not valid, or has the wrong number of entries
+     */
+    private void append(InputStream is, OutputStream os, int segment, int expected) throws IOException {
+        InputStream copying = new FilterInputStream(is) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    os.write(b);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    os.write(b, off, n);
+                }
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                // read rather than skip, so that every byte is copied
+                return Math.max(0, read(new byte[(int) Math.min(n, 8192)]));
+            }
+        };
+        GZIPInputStream gzis = new GZIPInputStream(copying);
+        TarArchiveInputStream tar = new TarArchiveInputStream(gzis);
+        int entries = 0;
+        while (tar.getNextTarEntry() != null) {
+            ++entries;
+        }
+        gzis.transferTo(OutputStream.nullOutputStream());
+        copying.transferTo(OutputStream.nullOutputStream());
+        if (entries != expected) {
+            throw new IOException("Segment " + segment + " from worker " + workers.get(segment) + " has " + entries
+                    + " entries rather than " + expected);
+        }
+    }
+
+    /**
+     * Asks the worker whether the job that generated a segment is done, since a failed job's response could
+     * otherwise only be told apart by the transfer failing
+     */
+    private void checkJob(HttpResponse<?> response, int segment) throws IOException, InterruptedException {
+        String job = response.headers().firstValue(ArchiveService.JOB_HEADER).orElseThrow(() -> new IOException(
+                "Worker " + workers.get(segment) + " did not name the job for segment " + segment));
+        HttpResponse<String> status = client.send(HttpRequest.newBuilder(URI.create("http://" + workers.get(segment)
+                + "/jobs/" + job)).build(), HttpResponse.BodyHandlers.ofString());
+        if (status.statusCode() != 200 || !status.body().startsWith(job + " " + ArchiveJob.State.done + " ")) {
+            throw new IOException("Worker " + workers.get(segment) + " did not finish segment " + segment + ": "
+                    + status.body().trim());
+        }
+    }
+
+    @Override
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Builder pattern
+     */
+    public static class Builder {
+        private List<String> workers;
+        private int documentCount;
+        private String tarFQPN;
+        private ArchiveSink sink;
+        private Path tmpDir;
+        private Metrics metrics;
+
+        public Builder workers(List<String> workers) {
+            this.workers = workers;
+            return this;
+        }
+
+        public Builder documentCount(int documentCount) {
+            this.documentCount = documentCount;
+            return this;
+        }
+
+        public Builder tarFQPN(String tarFQPN) {
+            this.tarFQPN = tarFQPN;
+            return this;
+        }
+
+        /**
+         * Writes the archive to the passed sink rather than to the file named by {@link #tarFQPN}, which is then
+         * only used to identify the archive in logging
+         */
+        public Builder sink(ArchiveSink sink) {
+            this.sink = sink;
+            return this;
+        }
+
+        public Builder tmpDir(Path tmpDir) {
+            this.tmpDir = tmpDir;
+            return this;
+        }
+
+        public Builder metrics(Metrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public ShardCoordinator build() {
+            return new ShardCoordinator(this);
+        }
+    }
+}
@@ -3,17 +3,22 @@ package org.ericace;
 import org.apache.commons.compress.archivers.ArchiveOutputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 import org.apache.commons.compress.utils.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.ericace.binary.BinaryObject;
 import org.ericace.binary.BinaryService;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.sql.Date;
 import java.time.Instant;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -33,6 +38,12 @@ public class SingleThreadArchiveCreator implements ArchiveCreator {
     private final DocumentReader reader;
     private final BinaryService binaryService;
     private final String tarFQPN;
+    private final ArchiveSink sink;
+    private final ArchiveFormat format;
+    private final BlockGzipOutputStream.Layout blockGzip;
+    private final EntryDigester digester;
+    private final ZstdDictionary zstd;
+    private final DedupIndex dedup;
     private final Metrics metrics;
 
     /**
@@ -42,38 +53,128 @@ public class SingleThreadArchiveCreator implements ArchiveCreator {
         this.reader = builder.reader;
         this.binaryService = builder.binaryService;
         this.tarFQPN = builder.tarFQPN;
+        this.sink = builder.sink != null ? builder.sink : ArchiveSink.toFile(builder.tarFQPN);
+        this.format = builder.format;
+        this.blockGzip = builder.blockGzip;
+        this.digester = builder.digester;
+        this.zstd = builder.zstd;
+        this.dedup = builder.dedup;
         this.metrics = builder.metrics;
     }
 
     /**
      * Creates a TAR in a single thread. The total amount of time will be throttled by the time required to
-     * sequentially get each binary attachment.
+     * sequentially get each binary attachment. The thread's time is attributed to the stages - reading,
+     * loading, and writing - as in the multi-threaded creator, so the bottleneck summary is comparable.
      */
     @Override
     public void createArchive() {
         logger.info("Creating archive: {}", tarFQPN);
-        try (GZIPOutputStream gzos = new GZIPOutputStream(new FileOutputStream(tarFQPN));
-             ArchiveOutputStream aos = new TarArchiveOutputStream(gzos)) {
-            for (Document doc : reader) {
-                TarArchiveEntry entry = new TarArchiveEntry(doc.getName());
+        StageTimes stages = metrics != null ? metrics.getStages() : new StageTimes();
+        LongAdder outputNanos = new LongAdder();
+        LongAdder inputNanos = new LongAdder();
+        long writeNanos = 0;
+        BlockGzipOutputStream blocks = null;
+        ZstdDictionaryOutputStream zstdOut = null;
+        long closeStart = 0;
+        OutputStream out;
+        try (OutputStream os = new MeteredOutputStream(out = sink.open(), Metrics.archiveCompressedBytes, outputNanos);
+             ArchiveOutputStream aos = format == ArchiveFormat.zip ? new ZipArchiveOutputStream(os) :
+                     blockGzip != null ? new TarArchiveOutputStream(new MeteredOutputStream(
+                             blocks = blockGzip.open(os), Metrics.archiveUncompressedBytes), TarConstants.DEFAULT_RCDSIZE) :
+                     zstd != null ? new TarArchiveOutputStream(new MeteredOutputStream(
+                             zstdOut = new ZstdDictionaryOutputStream(os, zstd), Metrics.archiveUncompressedBytes),
+                             TarConstants.DEFAULT_RCDSIZE) :
+                     new TarArchiveOutputStream(new MeteredOutputStream(new GZIPOutputStream(os),
+                             Metrics.archiveUncompressedBytes))) {
+            Iterator<Document> docs = reader.iterator();
+            while (true) {
+                long start = System.nanoTime();
+                Document doc = docs.hasNext() ? docs.next() : null;
+                long read = System.nanoTime();
+                stages.addBusy(StageTimes.Stage.reader, read - start);
+                if (doc == null) {
+                    break;
+                }
                 BinaryObject obj = binaryService.getBinary(doc.getKey());
-                entry.setSize(obj.getLength());
+                long loaded = System.nanoTime();
+                stages.addBusy(StageTimes.Stage.loaders, loaded - read);
+                String linkName = null;
+                if (dedup != null && obj.getETag() != null) {
+                    linkName = dedup.linkForContent(obj.getETag(), obj.getLength(), doc.getName());
+                }
+                if (linkName != null) {
+                    obj.getInputStream().close();
+                    if (zstdOut != null) {
+                        zstdOut.startEntry();
+                    }
+                    TarArchiveEntry entry = new TarArchiveEntry(doc.getName(), TarConstants.LF_LINK);
+                    entry.setLinkName(linkName);
+                    entry.setModTime(Date.from(Instant.now()));
+                    aos.putArchiveEntry(entry);
+                    aos.closeArchiveEntry();
+                    writeNanos += System.nanoTime() - loaded;
+                    logger.info("Linked entry for {} to {}", doc.getName(), linkName);
+                    continue;
+                }
                 if (metrics != null) {
                     metrics.addBinaryBytesWritten(obj.getLength());
                 }
-                entry.setModTime(Date.from(Instant.now()));
-                aos.putArchiveEntry(entry);
-                try (InputStream ois = obj.getInputStream()) {
-                    IOUtils.copy(ois, aos);
+                if (format == ArchiveFormat.zip) {
+                    ZipArchiveEntry entry = new ZipArchiveEntry(doc.getName());
+                    entry.setSize(obj.getLength());
+                    entry.setTime(System.currentTimeMillis());
+                    Metrics.archiveUncompressedBytes.inc(obj.getLength());
+                    aos.putArchiveEntry(entry);
+                } else {
+                    TarArchiveEntry entry = new TarArchiveEntry(doc.getName());
+                    entry.setSize(obj.getLength());
+                    entry.setModTime(Date.from(Instant.now()));
+                    if (blocks != null) {
+                        blocks.startEntry(doc.getName(), obj.getLength());
+                    } else if (zstdOut != null) {
+                        zstdOut.startEntry();
+                    }
+                    aos.putArchiveEntry(entry);
+                }
+                if (digester == null) {
+                    try (InputStream ois = new TimedInputStream(obj.getInputStream(), inputNanos)) {
+                        IOUtils.copy(ois, aos);
+                    }
+                } else {
+                    EntryDigester.DigestingInputStream dis = digester.digest(new TimedInputStream(
+                            obj.getInputStream(), inputNanos), obj.getETag(), true);
+                    try (InputStream ois = dis) {
+                        IOUtils.copy(ois, aos);
+                    }
+                    digester.record(doc.getName(), doc.getKey(), doc.getVersion(), obj.getLength(), dis.result());
                 }
                 aos.closeArchiveEntry();
+                writeNanos += System.nanoTime() - loaded;
                 logger.info("Created entry for {}", doc.getName());
             }
+            long finishStart = System.nanoTime();
             aos.finish();
+            ArchiveSink.commit(out);
             logger.info("Done creating archive");
+            closeStart = System.nanoTime();
+            writeNanos += closeStart - finishStart;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        writeNanos += System.nanoTime() - closeStart;
+        long output = Math.min(writeNanos, outputNanos.sum());
+        long input = Math.min(writeNanos - output, inputNanos.sum());
+        stages.addBusy(StageTimes.Stage.writer, Math.max(0, writeNanos - output - input));
+        stages.addBlocked(StageTimes.Stage.writer, output);
+        stages.addWriterInput(input);
+        if (digester != null) {
+            try {
+                digester.writeManifest();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
     }
 
     @Override
@@ -88,6 +189,12 @@ public class SingleThreadArchiveCreator implements ArchiveCreator {
         private DocumentReader reader;
         private BinaryService binaryService;
         private String tarFQPN;
+        private ArchiveSink sink;
+        private ArchiveFormat format = ArchiveFormat.tgz;
+        private BlockGzipOutputStream.Layout blockGzip;
+        private EntryDigester digester;
+        private ZstdDictionary zstd;
+        private DedupIndex dedup;
         private Metrics metrics;
 
         public SingleThreadArchiveCreator.Builder reader(DocumentReader reader) {
@@ -105,6 +212,56 @@ public class SingleThreadArchiveCreator implements ArchiveCreator {
             return this;
         }
 
+        /**
+         * Writes the archive to the passed sink rather than to the file named by {@link #tarFQPN}, which is then
+         * only used to identify the archive in logging
+         */
+        public SingleThreadArchiveCreator.Builder sink(ArchiveSink sink) {
+            this.sink = sink;
+            return this;
+        }
+
+        /**
+         * Sets the archive format. The default is a gzipped TAR.
+         */
+        public SingleThreadArchiveCreator.Builder format(ArchiveFormat format) {
+            this.format = format;
+            return this;
+        }
+
+        /**
+         * Writes a block-gzip TAR with a sidecar index, rather than a TAR compressed as one gzip member
+         */
+        public SingleThreadArchiveCreator.Builder blockGzip(BlockGzipOutputStream.Layout blockGzip) {
+            this.blockGzip = blockGzip;
+            return this;
+        }
+
+        /**
+         * Computes checksums of the entries as they are written, and writes a manifest beside the archive
+         */
+        public SingleThreadArchiveCreator.Builder digester(EntryDigester digester) {
+            this.digester = digester;
+            return this;
+        }
+
+        /**
+         * Writes a zstd TAR compressed with a dictionary trained on the first entries, rather than a gzipped TAR
+         */
+        public SingleThreadArchiveCreator.Builder zstd(ZstdDictionary zstd) {
+            this.zstd = zstd;
+            return this;
+        }
+
+        /**
+         * Writes a repeated attachment - one with the same ETag and length as an earlier one - as a hard link to the
+         * TAR entry that holds its content
+         */
+        public SingleThreadArchiveCreator.Builder dedup(DedupIndex dedup) {
+            this.dedup = dedup;
+            return this;
+        }
+
         public SingleThreadArchiveCreator.Builder metrics(Metrics metrics) {
             this.metrics = metrics;
             return this;
@@ -0,0 +1,294 @@
+package org.ericace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Attributes the elapsed time of an archive creator to its stages, to say which stage limited throughput. Each
+ * stage - the document reader, the binary loaders, and the archive writer - adds the time its threads were
+ * <i>busy</i> doing the stage's own work, and <i>blocked</i> on the stage downstream of it. The rest of the
+ * time its threads were <i>idle</i>, waiting for work from upstream. For the writer, busy is building the TAR and
+ * compressing it, and blocked is writing the output - to disk, or to an upload - so the two separate compression
+ * CPU from output time. The writer's time reading each binary - from the spool, the arena, or a provider's stream
+ * - is its <i>input</i> time, kept apart from both so slow binary reads aren't taken for compression. The writer's
+ * <i>head-of-line</i> wait is the part of its idle time spent waiting for the next document while later documents
+ * were already downloaded: one slow download holding up the archive.
+ * <p>
+ * Queue occupancy is sampled every {@link #SAMPLE_MILLIS} while the archive is created.
+ * <p>
+ * The stage that was busiest, as a share of its threads' time, is the bottleneck. See {@link #summary} and
+ * {@link #toJson}.
+ */
+public class StageTimes {
+
+    public enum Stage {reader, loaders, writer}
+
+    /**
+     * How often queue occupancy is sampled
+     */
+    static final int SAMPLE_MILLIS = 100;
+
+    /**
+     * The most points of occupancy over time in the JSON. Samples are averaged down to this many.
+     */
+    private static final int MAX_SERIES = 60;
+
+    private final LongAdder[] busy = new LongAdder[Stage.values().length];
+    private final LongAdder[] blocked = new LongAdder[Stage.values().length];
+
+    /**
+     * The number of threads that run each stage
+     */
+    private final int[] threads = new int[Stage.values().length];
+
+    private final LongAdder headOfLine = new LongAdder();
+
+    private final LongAdder writerInput = new LongAdder();
+
+    /**
+     * The sampled queues
+     */
+    private final List<Occupancy> queues = new ArrayList<>();
+
+    private ScheduledExecutorService sampler;
+
+    public StageTimes() {
+        for (int i = 0; i < busy.length; ++i) {
+            busy[i] = new LongAdder();
+            blocked[i] = new LongAdder();
+        }
+        Arrays.fill(threads, 1);
+    }
+
+    /**
+     * Sets the number of threads that run a stage. One, if not set.
+     */
+    public void setThreads(Stage stage, int count) {
+        threads[stage.ordinal()] = Math.max(1, count);
+    }
+
+    public void addBusy(Stage stage, long nanos) {
+        busy[stage.ordinal()].add(nanos);
+    }
+
+    public void addBlocked(Stage stage, long nanos) {
+        blocked[stage.ordinal()].add(nanos);
+    }
+
+    public void addHeadOfLine(long nanos) {
+        headOfLine.add(nanos);
+    }
+
+    public void addWriterInput(long nanos) {
+        writerInput.add(nanos);
+    }
+
+    /**
+     * Samples the occupancy of a queue from {@link #start} to {@link #stop}
+     *
+     * @param name     the name of the queue
+     * @param size     gets the count of items in the queue
+     * @param capacity the capacity of the queue
+     */
+    public synchronized void track(String name, IntSupplier size, int capacity) {
+        queues.add(new Occupancy(name, size, capacity));
+    }
+
+    public synchronized void start() {
+        if (queues.isEmpty() || sampler != null) {
+            return;
+        }
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stage-sampler");
+            t.setDaemon(true);
+            return t;
+        });
+        sampler.scheduleAtFixedRate(this::sample, 0, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (sampler != null) {
+            sampler.shutdownNow();
+        }
+    }
+
+    private synchronized void sample() {
+        for (Occupancy queue : queues) {
+            queue.sample();
+        }
+    }
+
+    /**
+     * @return the share of the stage's threads' time that it was busy, blocked, idle, and for the writer reading
+     * input, in that order
+     */
+    private double[] shares(Stage stage, long elapsedNanos) {
+        double total = (double) elapsedNanos * threads[stage.ordinal()];
+        if (total <= 0) {
+            return new double[]{0, 0, 1, 0};
+        }
+        double b = Math.min(1, busy[stage.ordinal()].sum() / total);
+        double k = Math.min(1 - b, blocked[stage.ordinal()].sum() / total);
+        double in = stage == Stage.writer ? Math.min(1 - b - k, writerInput.sum() / total) : 0;
+        return new double[]{b, k, 1 - b - k - in, in};
+    }
+
+    /**
+     * Finds the bottleneck: the stage with the highest share of its time spent busy, or for the writer, busy,
+     * blocked on its output, or reading input, since those are all the writer's own time
+     *
+     * @param elapsedNanos the elapsed time of the run
+     * @return the bottleneck, like <code>writer compression-bound 78%</code>, and what to try
+     */
+    String[] bottleneck(long elapsedNanos) {
+        double reader = shares(Stage.reader, elapsedNanos)[0];
+        double loaders = shares(Stage.loaders, elapsedNanos)[0];
+        double[] writer = shares(Stage.writer, elapsedNanos);
+        double hol = headOfLineShare(elapsedNanos);
+        if (writer[0] + writer[1] + writer[3] >= loaders && writer[0] + writer[1] + writer[3] >= reader) {
+            if (writer[3] > writer[0] && writer[3] > writer[1]) {
+                return new String[]{"writer input-bound " + pct(writer[3]),
+                        "a larger arena, so fewer binaries are read back from the spool"};
+            }
+            return writer[0] >= writer[1] ?
+                    new String[]{"writer compression-bound " + pct(writer[0]),
+                            "more compression cores - the zip format, which deflates on the loader threads"} :
+                    new String[]{"writer output-bound " + pct(writer[1]),
+                            "a faster output - a larger write buffer, or more upload parts"};
+        } else if (loaders >= reader || hol > reader) {
+            return hol > loaders ?
+                    new String[]{"writer head-of-line-bound " + pct(hol),
+                            "a larger cache or spill capacity, so one slow download holds up less"} :
+                    new String[]{"loaders download-bound " + pct(loaders),
+                            threads[Stage.loaders.ordinal()] == 1 ? "the multi scenario" : "more loader threads"};
+        }
+        return new String[]{"reader-bound " + pct(reader), "more document readers"};
+    }
+
+    private double headOfLineShare(long elapsedNanos) {
+        return elapsedNanos <= 0 ? 0 : Math.min(1, headOfLine.sum() / (double) elapsedNanos);
+    }
+
+    /**
+     * @param elapsedNanos the elapsed time of the run
+     * @return a table of the share of time each stage was busy, blocked and idle, the queue occupancy, and the
+     * bottleneck
+     */
+    public String summary(long elapsedNanos) {
+        StringBuilder s = new StringBuilder();
+        s.append(String.format("%41s: %8s %8s %8s\n", "Stage (threads)", "busy", "blocked", "idle"));
+        for (Stage stage : Stage.values()) {
+            double[] shares = shares(stage, elapsedNanos);
+            s.append(String.format("%41s: %8s %8s %8s\n", stage + " (" + threads[stage.ordinal()] + ")",
+                    pct(shares[0]), pct(shares[1]), pct(shares[2])));
+        }
+        s.append(String.format("%41s: %s\n", "Writer input read", pct(shares(Stage.writer, elapsedNanos)[3])));
+        s.append(String.format("%41s: %s\n", "Writer head-of-line wait", pct(headOfLineShare(elapsedNanos))));
+        synchronized (this) {
+            for (Occupancy queue : queues) {
+                s.append(String.format("%41s: mean %.0f, max %d of %d\n", queue.name + " queue occupancy",
+                        queue.mean(), queue.max, queue.capacity));
+            }
+        }
+        String[] bottleneck = bottleneck(elapsedNanos);
+        s.append(String.format("%41s: %s\n", "Bottleneck", bottleneck[0]));
+        s.append(String.format("%41s: %s\n", "Try", bottleneck[1]));
+        return s.toString();
+    }
+
+    /**
+     * @param elapsedNanos the elapsed time of the run
+     * @return the summary as one line of JSON, with occupancy over time
+     */
+    public String toJson(long elapsedNanos) {
+        StringBuilder json = new StringBuilder("{\"elapsedMillis\": ").append(elapsedNanos / 1_000_000)
+                .append(", \"stages\": {");
+        for (Stage stage : Stage.values()) {
+            double[] shares = shares(stage, elapsedNanos);
+            json.append(stage.ordinal() == 0 ? "" : ", ").append('"').append(stage).append("\": {\"threads\": ")
+                    .append(threads[stage.ordinal()])
+                    .append(", \"busy\": ").append(round(shares[0]))
+                    .append(", \"blocked\": ").append(round(shares[1]))
+                    .append(", \"idle\": ").append(round(shares[2])).append('}');
+        }
+        json.append("}, \"writerInput\": ").append(round(shares(Stage.writer, elapsedNanos)[3]))
+                .append(", \"headOfLine\": ").append(round(headOfLineShare(elapsedNanos))).append(", \"queues\": {");
+        synchronized (this) {
+            for (int i = 0; i < queues.size(); ++i) {
+                Occupancy queue = queues.get(i);
+                json.append(i == 0 ? "" : ", ").append('"').append(queue.name).append("\": {\"capacity\": ")
+                        .append(queue.capacity).append(", \"mean\": ").append(round(queue.mean()))
+                        .append(", \"max\": ").append(queue.max).append(", \"series\": ")
+                        .append(Arrays.toString(queue.series())).append('}');
+            }
+        }
+        String[] bottleneck = bottleneck(elapsedNanos);
+        return json.append("}, \"bottleneck\": \"").append(bottleneck[0]).append("\", \"try\": \"")
+                .append(bottleneck[1]).append("\"}").toString();
+    }
+
+    private static String pct(double share) {
+        return Math.round(share * 100) + "%";
+    }
+
+    private static double round(double d) {
+        return Math.round(d * 1000) / 1000D;
+    }
+
+    /**
+     * The sampled occupancy of one queue. Guarded by the enclosing instance.
+     */
+    private static class Occupancy {
+        final String name;
+        final IntSupplier size;
+        final int capacity;
+        int[] samples = new int[64];
+        int count;
+        long sum;
+        int max;
+
+        Occupancy(String name, IntSupplier size, int capacity) {
+            this.name = name;
+            this.size = size;
+            this.capacity = capacity;
+        }
+
+        void sample() {
+            int n = size.getAsInt();
+            if (count == samples.length) {
+                samples = Arrays.copyOf(samples, count * 2);
+            }
+            samples[count++] = n;
+            sum += n;
+            max = Math.max(max, n);
+        }
+
+        double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @return the samples, averaged down to at most {@link #MAX_SERIES} points
+         */
+        int[] series() {
+            int points = Math.min(count, MAX_SERIES);
+            int[] series = new int[points];
+            for (int p = 0; p < points; ++p) {
+                int from = (int) ((long) p * count / points);
+                int to = (int) ((long) (p + 1) * count / points);
+                long total = 0;
+                for (int i = from; i < to; ++i) {
+                    total += samples[i];
+                }
+                series[p] = (int) (total / (to - from));
+            }
+            return series;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.ericace;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Serializes TAR entry headers to bytes, so that they can be built on the binary loader threads ahead of the
+ * archive writer. A header is one 512-byte ustar record with its checksum, preceded by a PAX extended header if the
+ * name or link name doesn't fit its ustar field. The bytes are those the Commons Compress 1.21
+ * <code>TarArchiveOutputStream</code> writes, with its PAX long file mode, for an entry with the same name, size and
+ * modification time: mode 0100644, zero uid and gid, empty user and group names, and numeric fields of zero-padded
+ * octal digits and a space.
+ * <p>
+ * Stateless and thread safe.
+ */
+public final class TarHeader {
+
+    /**
+     * The TAR record size
+     */
+    public static final int RECORD = 512;
+
+    private static final byte TYPE_FILE = '0';
+    private static final byte TYPE_LINK = '1';
+    private static final byte TYPE_PAX = 'x';
+
+    /**
+     * The mode of a regular file with rw-r--r-- permissions
+     */
+    private static final int FILE_MODE = 0100644;
+
+    private static final int NAME_LENGTH = 100;
+    private static final int MODE_OFFSET = 100;
+    private static final int UID_OFFSET = 108;
+    private static final int GID_OFFSET = 116;
+    private static final int SIZE_OFFSET = 124;
+    private static final int MTIME_OFFSET = 136;
+    private static final int CHECKSUM_OFFSET = 148;
+    private static final int TYPE_OFFSET = 156;
+    private static final int LINK_NAME_OFFSET = 157;
+    private static final int MAGIC_OFFSET = 257;
+    private static final int DEV_MAJOR_OFFSET = 329;
+    private static final int DEV_MINOR_OFFSET = 337;
+
+    /**
+     * The ustar magic, with its version
+     */
+    private static final byte[] MAGIC = "ustar\00000".getBytes(StandardCharsets.US_ASCII);
+
+    private TarHeader() {}
+
+    /**
+     * Serializes the header of a regular file entry
+     *
+     * @param name         the entry name
+     * @param size         the size of the content
+     * @param mtimeSeconds the modification time, in seconds since the epoch
+     * @return the header: one record, or more with a PAX extended header
+     */
+    public static byte[] file(String name, long size, long mtimeSeconds) {
+        return header(name, null, TYPE_FILE, size, mtimeSeconds);
+    }
+
+    /**
+     * Serializes the header of a hard link entry, which has no content
+     *
+     * @param name         the entry name
+     * @param linkName     the name of the earlier entry that holds the content
+     * @param mtimeSeconds the modification time, in seconds since the epoch
+     * @return the header: one record, or more with a PAX extended header
+     */
+    public static byte[] link(String name, String linkName, long mtimeSeconds) {
+        return header(name, linkName, TYPE_LINK, 0, mtimeSeconds);
+    }
+
+    /**
+     * @param size the size of an entry's content
+     * @return the count of zero bytes that pad the content to a whole record
+     */
+    public static int padding(long size) {
+        return (int) ((RECORD - size % RECORD) % RECORD);
+    }
+
+    private static byte[] header(String name, String linkName, byte type, long size, long mtime) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] linkBytes = linkName == null ? new byte[0] : linkName.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length <= NAME_LENGTH && linkBytes.length <= NAME_LENGTH) {
+            byte[] header = new byte[RECORD];
+            fill(header, 0, nameBytes, linkBytes, type, size, mtime);
+            return header;
+        }
+        StringBuilder records = new StringBuilder();
+        if (nameBytes.length > NAME_LENGTH) {
+            paxRecord(records, "path", name);
+        }
+        if (linkBytes.length > NAME_LENGTH) {
+            paxRecord(records, "linkpath", linkName);
+        }
+        byte[] pax = records.toString().getBytes(StandardCharsets.UTF_8);
+        int paxRecords = RECORD + pax.length + padding(pax.length);
+        byte[] header = new byte[paxRecords + RECORD];
+        fill(header, 0, paxName(name), new byte[0], TYPE_PAX, pax.length, mtime);
+        System.arraycopy(pax, 0, header, RECORD, pax.length);
+        fill(header, paxRecords, nameBytes, linkBytes, type, size, mtime);
+        return header;
+    }
+
+    /**
+     * Names the PAX extended header entry as Commons Compress does: the entry name stripped to seven bits, with
+     * separators and NULs replaced, under <code>./PaxHeaders.X/</code> and cut to one less than the name field
+     */
+    private static byte[] paxName(String name) {
+        StringBuilder paxName = new StringBuilder("./PaxHeaders.X/");
+        for (int i = 0; i < name.length() && paxName.length() < NAME_LENGTH - 1; ++i) {
+            char c = (char) (name.charAt(i) & 0x7F);
+            paxName.append(c == 0 || c == '/' || c == '\\' ? '_' : c);
+        }
+        return paxName.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Appends a PAX record, which is prefixed by its own length in bytes
+     */
+    private static void paxRecord(StringBuilder records, String key, String value) {
+        int length = key.length() + value.getBytes(StandardCharsets.UTF_8).length + 3;
+        int total = length + String.valueOf(length).length();
+        if (String.valueOf(total).length() > String.valueOf(length).length()) {
+            ++total;
+        }
+        records.append(total).append(' ').append(key).append('=').append(value).append('\n');
+    }
+
+    /**
+     * Fills one ustar record at the passed offset, truncating the names to their fields
+     */
+    private static void fill(byte[] header, int offset, byte[] name, byte[] linkName, byte type, long size,
+                             long mtime) {
+        System.arraycopy(name, 0, header, offset, Math.min(name.length, NAME_LENGTH));
+        octal(header, offset + MODE_OFFSET, FILE_MODE, 8);
+        octal(header, offset + UID_OFFSET, 0, 8);
+        octal(header, offset + GID_OFFSET, 0, 8);
+        octal(header, offset + SIZE_OFFSET, size, 12);
+        octal(header, offset + MTIME_OFFSET, mtime, 12);
+        header[offset + TYPE_OFFSET] = type;
+        System.arraycopy(linkName, 0, header, offset + LINK_NAME_OFFSET, Math.min(linkName.length, NAME_LENGTH));
+        System.arraycopy(MAGIC, 0, header, offset + MAGIC_OFFSET, MAGIC.length);
+        octal(header, offset + DEV_MAJOR_OFFSET, 0, 8);
+        octal(header, offset + DEV_MINOR_OFFSET, 0, 8);
+        Arrays.fill(header, offset + CHECKSUM_OFFSET, offset + CHECKSUM_OFFSET + 8, (byte) ' ');
+        long checksum = 0;
+        for (int i = offset; i < offset + RECORD; ++i) {
+            checksum += header[i] & 0xFF;
+        }
+        octal(header, offset + CHECKSUM_OFFSET, checksum, 7);
+        header[offset + CHECKSUM_OFFSET + 6] = 0;
+    }
+
+    /**
+     * Writes a value as zero-padded octal digits followed by a space, filling the passed length
+     */
+    private static void octal(byte[] header, int offset, long value, int length) {
+        header[offset + length - 1] = ' ';
+        for (int i = offset + length - 2; i >= offset; --i) {
+            header[i] = (byte) ('0' + (value & 7));
+            value >>>= 3;
+        }
+        if (value != 0) {
+            throw new IllegalArgumentException("Value too large for a " + length + " byte TAR header field");
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.ericace;
+
+/**
+ * How much of a tar.gz archive an archive creator generates. A tar.gz archive can be split into segments that are
+ * generated independently - even on separate hosts - and byte-concatenated in order without recompression, since
+ * a sequence of gzip members is a valid gzip stream, and a sequence of tar records is a valid tar as long as only
+ * the final segment ends with the end-of-archive records. See {@link ShardCoordinator}.
+ */
+public enum TarSegment {
+    /**
+     * A complete archive
+     */
+    whole,
+    /**
+     * A segment that other segments follow: one gzip member holding tar entries with no end-of-archive records
+     */
+    part,
+    /**
+     * The final segment: one gzip member holding tar entries followed by the end-of-archive records
+     */
+    last
+}
@@ -0,0 +1,80 @@
+package org.ericace;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes TAR entries whose headers were serialized ahead of time by {@link TarHeader}, so the archive writer
+ * thread only copies bytes: the header, the content through one reused buffer, and the zero padding to a whole
+ * record. Nothing is allocated per entry.
+ * <p>
+ * Each entry is written through to the output stream before the next begins, and there is no block padding, so
+ * the writer suits segments and block-gzip as well as whole archives.
+ */
+public class TarWriter {
+
+    /**
+     * Enough zeros for the padding of one entry, or the end-of-archive records
+     */
+    private static final byte[] ZEROS = new byte[2 * TarHeader.RECORD];
+
+    private final OutputStream out;
+
+    /**
+     * Copies the content of each entry
+     */
+    private final byte[] buffer = new byte[64 * 1024];
+
+    /**
+     * Constructor
+     *
+     * @param out the stream to write the TAR to
+     */
+    public TarWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Writes an entry
+     *
+     * @param header the serialized header
+     * @param body   the content, which is read but not closed
+     * @param size   the size of the content, as recorded in the header
+     * @throws IOException if the content is not the recorded size, or if the write fails
+     */
+    public void write(byte[] header, InputStream body, long size) throws IOException {
+        out.write(header);
+        long copied = 0;
+        int n;
+        while ((n = body.read(buffer)) != -1) {
+            if ((copied += n) > size) {
+                break;
+            }
+            out.write(buffer, 0, n);
+        }
+        if (copied != size) {
+            throw new IOException("Entry content is not the " + size + " bytes recorded in its header");
+        }
+        out.write(ZEROS, 0, TarHeader.padding(size));
+    }
+
+    /**
+     * Writes an entry without content, like a hard link
+     *
+     * @param header the serialized header
+     * @throws IOException if the write fails
+     */
+    public void write(byte[] header) throws IOException {
+        out.write(header);
+    }
+
+    /**
+     * Writes the two zero records that end an archive
+     *
+     * @throws IOException if the write fails
+     */
+    public void finish() throws IOException {
+        out.write(ZEROS);
+    }
+}
@@ -0,0 +1,60 @@
+package org.ericace;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An input stream filter that adds the time spent in the underlying stream to a total. Used by the archive
+ * creators to time reading each binary - from the spool, the arena, or a provider's stream - apart from building
+ * and compressing the archive, so slow binary reads aren't mistaken for compression.
+ */
+public class TimedInputStream extends FilterInputStream {
+
+    /**
+     * The nanoseconds spent reading and skipping the underlying stream are added to this
+     */
+    private final LongAdder nanos;
+
+    /**
+     * Constructor
+     *
+     * @param in    the stream to read from
+     * @param nanos see {@link #nanos}
+     */
+    public TimedInputStream(InputStream in, LongAdder nanos) {
+        super(in);
+        this.nanos = nanos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        long start = System.nanoTime();
+        try {
+            return in.read();
+        } finally {
+            nanos.add(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return in.read(b, off, len);
+        } finally {
+            nanos.add(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return in.skip(n);
+        } finally {
+            nanos.add(System.nanoTime() - start);
+        }
+    }
+}
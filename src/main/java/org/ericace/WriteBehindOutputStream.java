@@ -0,0 +1,229 @@
+package org.ericace;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An output stream that decouples the archive writer from the disk. Writes fill a large direct {@link ByteBuffer}.
+ * When it is full, it is handed to a dedicated I/O thread that writes it to a {@link FileChannel}, and the writer
+ * carries on filling the next free buffer. With the default of two buffers the stream is double-buffered: the
+ * writer and compressor only block on the disk if a whole buffer can't be written in the time it takes to fill
+ * another one. So a write latency spike on a network-attached volume is absorbed rather than stalling the ordered
+ * pipeline behind the writer.
+ * <p>
+ * Durability is governed by {@link FsyncPolicy}. {@link #flush} doesn't hand off a partially filled buffer - the
+ * point of the class is that the writer never waits on the disk - so the file is only known to be complete when
+ * {@link #close} returns.
+ */
+public class WriteBehindOutputStream extends OutputStream {
+
+    static final Counter writerStalled = Counter.build().name("archive_writer_io_stalled_seconds")
+            .help("Time the archive writer waited for a free write-behind buffer.").register();
+    static final Histogram writeLatency = Histogram.build().name("archive_write_latency_seconds")
+            .help("Latency of writing one write-behind buffer to the archive file, including any fsync.")
+            .register();
+
+    private static final Logger logger = LogManager.getLogger(WriteBehindOutputStream.class);
+
+    /**
+     * When to force written data to the storage device
+     */
+    public enum FsyncPolicy {
+        /**
+         * Never - leave it to the OS
+         */
+        none,
+        /**
+         * Once, when the stream is closed
+         */
+        close,
+        /**
+         * After each buffer is written, and when the stream is closed
+         */
+        buffer
+    }
+
+    /**
+     * Default buffer count: double-buffered
+     */
+    public static final int DEFAULT_BUFFERS = 2;
+
+    /**
+     * Handed to the I/O thread to stop it
+     */
+    private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+    private final FileChannel channel;
+    private final FsyncPolicy fsync;
+
+    /**
+     * Empty buffers, waiting to be filled by the writer
+     */
+    private final BlockingQueue<ByteBuffer> free;
+
+    /**
+     * Filled buffers, waiting to be written by the I/O thread
+     */
+    private final BlockingQueue<ByteBuffer> filled;
+
+    private final Thread ioThread;
+
+    /**
+     * The buffer the writer is currently filling
+     */
+    private ByteBuffer current;
+
+    private boolean closed = false;
+
+    /**
+     * The first error encountered by the I/O thread, which is re-thrown to the writer
+     */
+    private volatile IOException failure = null;
+
+    /**
+     * Constructor. Opens - or truncates - the file, and starts the I/O thread.
+     *
+     * @param fqpn       the file to write
+     * @param bufferSize the size of each buffer
+     * @param buffers    the number of buffers. Must be at least two for writes to overlap the disk.
+     * @param fsync      see {@link FsyncPolicy}
+     * @throws IOException if the file can't be opened
+     */
+    public WriteBehindOutputStream(String fqpn, int bufferSize, int buffers, FsyncPolicy fsync) throws IOException {
+        channel = FileChannel.open(Paths.get(fqpn), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.fsync = fsync;
+        free = new ArrayBlockingQueue<>(buffers);
+        filled = new ArrayBlockingQueue<>(buffers + 1);
+        for (int i = 1; i < buffers; ++i) {
+            free.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+        current = ByteBuffer.allocateDirect(bufferSize);
+        ioThread = new Thread(this::writeBehind, "write-behind");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        current.put((byte) b);
+        if (!current.hasRemaining()) {
+            handOff();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, current.remaining());
+            current.put(b, off, n);
+            off += n;
+            len -= n;
+            if (!current.hasRemaining()) {
+                handOff();
+            }
+        }
+    }
+
+    /**
+     * Hands the current buffer to the I/O thread, and takes the next free buffer, blocking only if all
+     * buffers are waiting to be written
+     */
+    private void handOff() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        current.flip();
+        try {
+            filled.put(current);
+            current = free.poll();
+            if (current == null) {
+                long start = System.nanoTime();
+                current = free.take();
+                writerStalled.inc((System.nanoTime() - start) / 1_000_000_000D);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for a write-behind buffer");
+        }
+    }
+
+    /**
+     * Writes the remaining buffered data, waits for the I/O thread to finish, applies the fsync policy, and
+     * closes the file
+     *
+     * @throws IOException if any write failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (current.position() > 0) {
+                handOff();
+            }
+            filled.put(EOF);
+            ioThread.join();
+            if (failure != null) {
+                throw failure;
+            }
+            if (fsync != FsyncPolicy.none) {
+                channel.force(true);
+            }
+        } catch (InterruptedException e) {
+            ioThread.interrupt();
+            throw new InterruptedIOException("Interrupted waiting for write-behind to finish");
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * The I/O thread. Writes filled buffers in order and recycles them. After a failure, keeps recycling
+     * buffers without writing them so the writer doesn't block, and the writer sees the failure on its next
+     * hand-off.
+     */
+    private void writeBehind() {
+        try {
+            while (true) {
+                ByteBuffer buffer = filled.take();
+                if (buffer == EOF) {
+                    break;
+                }
+                if (failure == null) {
+                    Histogram.Timer timer = writeLatency.startTimer();
+                    try {
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                        if (fsync == FsyncPolicy.buffer) {
+                            channel.force(false);
+                        }
+                    } catch (IOException e) {
+                        logger.error("Write-behind failed: {}", e.getMessage());
+                        failure = e;
+                    } finally {
+                        timer.observeDuration();
+                    }
+                }
+                buffer.clear();
+                free.put(buffer);
+            }
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException("Write-behind interrupted");
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.ericace;
+
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictTrainer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A zstd dictionary trained on the first binaries of an archive. Archives of many tiny attachments compress
+ * poorly with per-entry compression, and each entry - or the start of a stream - has no history to find matches
+ * in. A dictionary trained on a sample of the attachments gives every entry that history up front.
+ * <p>
+ * The first {@link #samples} binaries are sampled as they are written or loaded, and the dictionary is trained
+ * as soon as there are enough - or when the archive ends first. If training fails, e.g. because the samples are
+ * too few or too alike, there is no dictionary, and the archive is compressed with plain zstd. The dictionary is
+ * shipped with the archive so that it can be decompressed: as a sidecar for a zstd TAR, and as a stored entry
+ * for a ZIP.
+ * <p>
+ * Thread safe, since the loaders sample concurrently for a ZIP.
+ */
+public class ZstdDictionary {
+
+    private static final Logger logger = LogManager.getLogger(ZstdDictionary.class);
+
+    /**
+     * The extension of a ZIP entry holding a zstd frame
+     */
+    public static final String FRAME_EXTENSION = ".zst";
+
+    /**
+     * The zstd compression level: the zstd default
+     */
+    public static final int LEVEL = 3;
+
+    /**
+     * The sidecar extension of a zstd TAR's dictionary
+     */
+    public static final String EXTENSION = ".dict";
+
+    /**
+     * The name of a ZIP's dictionary entry
+     */
+    public static final String ZIP_ENTRY = "zstd.dict";
+
+    /**
+     * The dictionary size: the zstd CLI default
+     */
+    static final int DICTIONARY_SIZE = 110 * 1024;
+
+    /**
+     * Only the start of a binary larger than this is sampled
+     */
+    static final int MAX_SAMPLE = 128 * 1024;
+
+    /**
+     * Training stops sampling once the samples total this many bytes
+     */
+    static final int SAMPLE_BUDGET = 16 * 1024 * 1024;
+
+    /**
+     * The number of binaries to sample
+     */
+    private final int samples;
+
+    /**
+     * Where to write the dictionary beside a zstd TAR, or null
+     */
+    private final Path sidecar;
+
+    /**
+     * Collects the samples. Null once trained.
+     */
+    private ZstdDictTrainer trainer = new ZstdDictTrainer(SAMPLE_BUDGET, DICTIONARY_SIZE);
+
+    private int sampled = 0;
+
+    private volatile boolean trained = false;
+
+    /**
+     * The trained dictionary, or null if training failed
+     */
+    private byte[] dictionary;
+
+    private ZstdDictCompress compressor;
+
+    /**
+     * Constructor
+     *
+     * @param samples see {@link #samples}
+     * @param sidecar see {@link #sidecar}
+     */
+    public ZstdDictionary(int samples, Path sidecar) {
+        this.samples = samples;
+        this.sidecar = sidecar;
+    }
+
+    /**
+     * @return true once the dictionary is trained - or training failed - and no more samples are taken
+     */
+    public boolean isTrained() {
+        return trained;
+    }
+
+    /**
+     * Adds the start of a binary to the samples, and trains the dictionary once there are enough. Does nothing
+     * once trained.
+     *
+     * @param b   the binary
+     * @param off the offset of the binary in the array
+     * @param len the length of the binary
+     */
+    public synchronized void sample(byte[] b, int off, int len) {
+        if (trained || len == 0) {
+            return;
+        }
+        if (!trainer.addSample(Arrays.copyOfRange(b, off, off + Math.min(len, MAX_SAMPLE)))
+                || ++sampled == samples) {
+            train();
+        }
+    }
+
+    /**
+     * Trains the dictionary on the samples so far, if it isn't trained yet
+     */
+    public synchronized void train() {
+        if (trained) {
+            return;
+        }
+        try {
+            if (sampled > 0) {
+                dictionary = trainer.trainSamples();
+                compressor = new ZstdDictCompress(dictionary, LEVEL);
+                logger.info("Trained a {} byte zstd dictionary on {} samples", dictionary.length, sampled);
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Could not train a zstd dictionary on {} samples - compressing without one: {}",
+                    sampled, e.getMessage());
+            dictionary = null;
+        }
+        trainer = null;
+        trained = true;
+    }
+
+    /**
+     * @return the dictionary, or null if it isn't trained, or training failed
+     */
+    public synchronized byte[] get() {
+        return dictionary;
+    }
+
+    /**
+     * @return the dictionary prepared for compression at {@link #LEVEL}, or null if there is no dictionary
+     */
+    public synchronized ZstdDictCompress getCompressor() {
+        return compressor;
+    }
+
+    /**
+     * Writes the dictionary to the sidecar, if there is a sidecar and a dictionary
+     *
+     * @throws IOException if the sidecar can't be written
+     */
+    public void writeSidecar() throws IOException {
+        byte[] dict = get();
+        if (sidecar != null && dict != null) {
+            Files.write(sidecar, dict);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.ericace;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A zstd output stream for a TAR that trains a {@link ZstdDictionary} on its first entries, and compresses the
+ * whole stream with it. Until the dictionary is trained, the uncompressed bytes are held in memory - a few
+ * megabytes for small entries - and each entry's bytes are a sample. Then the stream is compressed as one zstd
+ * frame with the dictionary, starting with the held bytes. On close, the dictionary is written to its sidecar,
+ * since <code>zstd -d -D</code> needs it to decompress the archive.
+ * <p>
+ * The archive creator calls {@link #startEntry} before writing each entry, so the TAR stream writing through this
+ * stream must not buffer records across entries - i.e. it must have a block size of one record.
+ */
+public class ZstdDictionaryOutputStream extends OutputStream {
+
+    /**
+     * The archive stream
+     */
+    private final OutputStream archive;
+
+    private final ZstdDictionary dictionary;
+
+    /**
+     * The bytes written before the dictionary is trained. Null once it is.
+     */
+    private Held held = new Held();
+
+    /**
+     * The offset in {@link #held} where the current entry starts
+     */
+    private int entryStart = 0;
+
+    /**
+     * Compresses into the archive stream once the dictionary is trained
+     */
+    private OutputStream zstd;
+
+    private boolean closed = false;
+
+    /**
+     * Constructor
+     *
+     * @param out        the stream to write the archive to
+     * @param dictionary the dictionary to train, and compress with
+     */
+    public ZstdDictionaryOutputStream(OutputStream out, ZstdDictionary dictionary) {
+        this.archive = out;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Samples the entry that just ended, and starts compressing if that trained the dictionary
+     *
+     * @throws IOException if the held bytes can't be compressed
+     */
+    public void startEntry() throws IOException {
+        if (zstd == null) {
+            sampleEntry();
+            if (dictionary.isTrained() || held.size() >= ZstdDictionary.SAMPLE_BUDGET) {
+                startFrame();
+            }
+        }
+    }
+
+    private void sampleEntry() {
+        dictionary.sample(held.bytes(), entryStart, held.size() - entryStart);
+        entryStart = held.size();
+    }
+
+    /**
+     * Trains the dictionary if it isn't yet, and compresses the held bytes with it
+     */
+    private void startFrame() throws IOException {
+        dictionary.train();
+        ZstdOutputStream frame = new ZstdOutputStream(archive, ZstdDictionary.LEVEL);
+        frame.setChecksum(true);
+        if (dictionary.getCompressor() != null) {
+            frame.setDict(dictionary.getCompressor());
+        }
+        zstd = frame;
+        held.writeTo(zstd);
+        held = null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (zstd != null) {
+            zstd.write(b);
+        } else {
+            held.write(b);
+        }
+    }
+
+    /**
+     * Overridden because the <code>OutputStream</code> implementation writes one byte at a time
+     */
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (zstd != null) {
+            zstd.write(b, off, len);
+        } else {
+            held.write(b, off, len);
+        }
+    }
+
+    /**
+     * Flushes the compressed stream. Does nothing while the bytes are held.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (zstd != null) {
+            zstd.flush();
+        }
+    }
+
+    /**
+     * Ends the frame - training the dictionary on what was written if there weren't enough entries - closes the
+     * archive stream, and writes the sidecar
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (zstd == null) {
+            sampleEntry();
+            startFrame();
+        }
+        zstd.close();
+        dictionary.writeSidecar();
+    }
+
+    /**
+     * Gives access to the held bytes without copying them
+     */
+    private static class Held extends ByteArrayOutputStream {
+        byte[] bytes() {
+            return buf;
+        }
+    }
+}
@@ -9,12 +9,9 @@ import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
 
 /**
@@ -42,28 +39,32 @@ public class AmazonS3BinaryProvider implements BinaryProvider {
     private final String bucketName;
 
     /**
-     * A list of keys. These will be used by the {@link #getBinary} method instead of the key passed to that
+     * The keys. These will be used by the {@link #getBinary} method instead of the key passed to that
      * method.
      */
-    private final List<String> keys;
+    private final KeyCatalog keys;
 
     /**
-     * A temp dir to download objects from S3 into
+     * Holds downloaded objects until the archive writer consumes them. A {@link MemoryArena} over a
+     * {@link Spool}, or just the spool if the arena budget is zero.
      */
-    private final String tmpDir;
+    private final BinaryStore store;
 
     /**
      * Constructor. Creates the instance from params.
      *
-     * @param bucketName The bucket name
-     * @param regionStr  The region - has to match the bucket
-     * @param tmpDir     A temp dir to download S3 objects from. (The class removes the object as soon as its
-     *                   input stream is closed.)
-     * @param keys       A list of keys from which to randomly select objects to download. (See {@link #getBinary}.)
+     * @param bucketName  The bucket name
+     * @param regionStr   The region - has to match the bucket
+     * @param tmpDir      A temp dir in which to create the spool that S3 objects are downloaded into. (Spool space
+     *                    is reclaimed as objects' input streams are closed.)
+     * @param arenaBudget Bytes of off-heap memory to hold downloaded objects in before using the spool. Zero to
+     *                    always use the spool.
+     * @param keys        A catalog of keys from which to randomly select objects to download. (See
+     *                    {@link #getBinary}.)
      */
-    public AmazonS3BinaryProvider(String bucketName, String regionStr, String tmpDir, List<String> keys) {
+    public AmazonS3BinaryProvider(String bucketName, String regionStr, String tmpDir, long arenaBudget,
+                                  KeyCatalog keys) {
         this.bucketName = bucketName;
-        this.tmpDir = tmpDir;
         this.keys = keys;
         Regions region = Regions.fromName(regionStr);
         AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard().withRegion(region);
@@ -71,39 +72,44 @@ public class AmazonS3BinaryProvider implements BinaryProvider {
         if (!Files.exists(Paths.get(tmpDir)) || !Files.isDirectory(Paths.get(tmpDir))) {
             throw new RuntimeException("Temp dir does not exist or is not a directory: " + tmpDir);
         }
+        store = BinaryStore.forDownloads(tmpDir, arenaBudget);
     }
 
     /**
      * Ignores the key and gets a binary from the S3 instance bucket using a random key name from the instance
-     * <code>ArrayList</code> {@link #keys}.
+     * {@link #keys} catalog.
      *
      * @param key Ignored. (This class is a test class that randomizes object downloads.)
      * @return the Object
      */
     @Override
     public BinaryObject getBinary(String key) {
-        File binFile;
         try {
             int randomKey = keys.size() == 1 ? 0 : ThreadLocalRandom.current().nextInt(0, keys.size());
             logger.info("Getting object for key {}", key);
             S3Object o = s3.getObject(bucketName, keys.get(randomKey));
-            binFile = File.createTempFile("aws", ".bin", new File(tmpDir));
-            try (S3ObjectInputStream s3is = o.getObjectContent(); FileOutputStream fos = new FileOutputStream(binFile)) {
-                byte[] buffer = new byte[8192];
-                int len;
-                while ((len = s3is.read(buffer)) > 0) {
-                    fos.write(buffer, 0, len);
-                }
+            try (S3ObjectInputStream s3is = o.getObjectContent()) {
+                return BinaryObject.withETag(store.append(s3is,
+                        Math.toIntExact(o.getObjectMetadata().getContentLength())), o.getObjectMetadata().getETag());
             }
-        } catch (AmazonServiceException | IOException e) {
+        } catch (AmazonServiceException | IOException | ArithmeticException e) {
             logger.error("Could not get binary");
             throw new RuntimeException("Could not get binary: " + key);
         }
-        return new LocalFileBinaryObject(binFile);
+    }
+
+    @Override
+    public void warmUp(int connections) {
+        WarmUp.blocking(connections, keys, object -> s3.getObjectMetadata(bucketName, object));
+        try {
+            store.warmUp();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     @Override
     public void shutDownNow() {
-        // NOP
+        store.close();
     }
 }
@@ -0,0 +1,87 @@
+package org.ericace.binary;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A binary object held in {@link MemoryArena} slabs. Closing the stream returned by {@link #getInputStream}
+ * returns the slabs to the arena.
+ */
+public class ArenaBinaryObject implements BinaryObject {
+
+    /**
+     * Where the slabs go back to
+     */
+    private final MemoryArena arena;
+
+    /**
+     * The content, in order. Each slab is a full {@link MemoryArena#SLAB_SIZE} except possibly the last, which may
+     * be a smaller size class.
+     */
+    private final List<ByteBuffer> slabs;
+
+    /**
+     * Content length
+     */
+    private final int length;
+
+    /**
+     * Constructor
+     *
+     * @param arena  see {@link #arena}
+     * @param slabs  see {@link #slabs}
+     * @param length see {@link #length}
+     */
+    ArenaBinaryObject(MemoryArena arena, List<ByteBuffer> slabs, int length) {
+        this.arena = arena;
+        this.slabs = slabs;
+        this.length = length;
+    }
+
+    @Override
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns a stream over the slabs. Closing the stream releases the slabs, after which the content is gone.
+     *
+     * @return the stream
+     */
+    @Override
+    public InputStream getInputStream() {
+        return new InputStream() {
+            private int position = 0;
+            private boolean closed = false;
+
+            @Override
+            public int read() {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (position >= length) {
+                    return -1;
+                }
+                ByteBuffer slab = slabs.get(position / MemoryArena.SLAB_SIZE).duplicate();
+                int slabOffset = position % MemoryArena.SLAB_SIZE;
+                int n = Math.min(len, Math.min(length - position, MemoryArena.SLAB_SIZE - slabOffset));
+                slab.position(slabOffset);
+                slab.get(b, off, n);
+                position += n;
+                return n;
+            }
+
+            @Override
+            public void close() {
+                if (!closed) {
+                    closed = true;
+                    arena.release(slabs);
+                }
+            }
+        };
+    }
+}
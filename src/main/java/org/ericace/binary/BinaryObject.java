@@ -20,4 +20,59 @@ public interface BinaryObject {
      * @return the stream
      */
     InputStream getInputStream() throws IOException;
+
+    /**
+     * Gets the ETag the store reported for the binary, if any. For an S3 object uploaded in one part this is the
+     * hex MD5 of the content, which lets the archive writer verify the content as it writes it.
+     *
+     * @return the ETag without quotes, or null if the store doesn't provide one
+     */
+    default String getETag() {
+        return null;
+    }
+
+    /**
+     * Tells whether the content is held in a file rather than in memory, so that spilling it to disk to free memory
+     * would only copy it
+     *
+     * @return true if the content is in a file
+     */
+    default boolean isOnDisk() {
+        return false;
+    }
+
+    /**
+     * Attaches an ETag to a binary
+     *
+     * @param object the binary
+     * @param eTag   the ETag, with or without quotes. If null, the binary is returned as is.
+     * @return a binary with the passed content that returns the ETag from {@link #getETag}
+     */
+    static BinaryObject withETag(BinaryObject object, String eTag) {
+        if (eTag == null) {
+            return object;
+        }
+        String unquoted = eTag.replace("\"", "");
+        return new BinaryObject() {
+            @Override
+            public int getLength() {
+                return object.getLength();
+            }
+
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return object.getInputStream();
+            }
+
+            @Override
+            public String getETag() {
+                return unquoted;
+            }
+
+            @Override
+            public boolean isOnDisk() {
+                return object.isOnDisk();
+            }
+        };
+    }
 }
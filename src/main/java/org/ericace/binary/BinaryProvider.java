@@ -12,6 +12,14 @@ public interface BinaryProvider {
      */
     BinaryObject getBinary(String key);
 
+    /**
+     * Opens connections and initializes the client eagerly, so the first GETs of an archive don't pay for it.
+     * Called before the archive clock starts. Providers that have nothing to warm up do nothing.
+     *
+     * @param connections the number of connections to open
+     */
+    default void warmUp(int connections) {}
+
     /**
      * In case the provider needs a shutdown to clean itself up
      */
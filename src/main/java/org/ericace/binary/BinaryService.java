@@ -1,12 +1,28 @@
 package org.ericace.binary;
 
+import io.prometheus.client.Histogram;
+
 /**
  * A service that retrieves binary objects based on a configured provider.
  */
 public class BinaryService {
 
+    /**
+     * GET latency per provider. Histogram buckets are backed by striped adders, so observations from hundreds of
+     * loader threads don't contend on a lock.
+     */
+    static final Histogram getLatency = Histogram.build().name("binary_get_latency_seconds")
+            .help("Latency of getting one binary from the binary provider.").labelNames("provider")
+            .buckets(.001, .005, .01, .025, .05, .1, .25, .5, 1, 2.5, 5, 10).register();
+
     private final BinaryProvider provider;
 
+    /**
+     * The {@link #getLatency} child for the instance provider, resolved once so the label lookup isn't
+     * repeated for every GET
+     */
+    private final Histogram.Child providerLatency;
+
     /**
      * Constructor
      *
@@ -14,6 +30,7 @@ public class BinaryService {
      */
     public BinaryService(BinaryProvider provider) {
         this.provider = provider;
+        providerLatency = getLatency.labels(provider.getClass().getSimpleName());
     }
 
     /**
@@ -23,7 +40,12 @@ public class BinaryService {
      * @return the BinaryObject
      */
     public BinaryObject getBinary(String key) {
-        return provider.getBinary(key);
+        Histogram.Timer timer = providerLatency.startTimer();
+        try {
+            return provider.getBinary(key);
+        } finally {
+            timer.observeDuration();
+        }
     }
 
     /**
@@ -0,0 +1,113 @@
+package org.ericace.binary;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+
+/**
+ * Somewhere to hold the content of binaries between the time they are downloaded and the time the archive writer
+ * consumes them. Content of a known length is written into a {@link Reservation}, which produces a
+ * {@link BinaryObject} over the stored content. Closing that object's stream frees the space.
+ */
+public interface BinaryStore {
+
+    /**
+     * Reserves space for content of a known length, which the caller then writes - possibly as it arrives from
+     * the network - and finishes
+     *
+     * @param length the content length
+     * @return the reservation
+     * @throws IOException if the space can't be reserved
+     */
+    Reservation reserve(int length) throws IOException;
+
+    /**
+     * Does the work that the first reservations would otherwise pay for - e.g. creating a file, or allocating
+     * memory - before the archive clock starts
+     *
+     * @throws IOException if the store can't be prepared
+     */
+    default void warmUp() throws IOException {}
+
+    /**
+     * Frees everything held by the store, whether consumed or not. Call when the store is no longer needed.
+     */
+    void close();
+
+    /**
+     * Copies the content of the passed object into the store and closes the object's stream, which releases
+     * whatever resources the passed object held.
+     *
+     * @param obj the object to copy
+     * @return an object over the stored copy
+     * @throws IOException if the content could not be read or written
+     */
+    default BinaryObject append(BinaryObject obj) throws IOException {
+        try (InputStream is = obj.getInputStream()) {
+            return append(is, obj.getLength());
+        }
+    }
+
+    /**
+     * Copies the content of the passed stream into the store. Does not close the stream.
+     *
+     * @param is     the content to copy
+     * @param length the content length
+     * @return an object over the stored copy
+     * @throws IOException if the content could not be read or written, or was not the expected length
+     */
+    default BinaryObject append(InputStream is, int length) throws IOException {
+        Reservation reservation = reserve(length);
+        try {
+            ByteBuffer buf = ByteBuffer.allocate(Math.min(Math.max(length, 1), 64 * 1024));
+            int read;
+            while ((read = is.read(buf.array(), 0, buf.capacity())) > 0) {
+                buf.limit(read);
+                reservation.write(buf);
+                buf.clear();
+            }
+            return reservation.finish();
+        } catch (IOException e) {
+            reservation.abandon();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates the store that the S3 providers download into: a {@link Spool} in the passed directory, fronted by a
+     * {@link MemoryArena} if the budget is not zero
+     *
+     * @param tmpDir      the directory in which to create the spool
+     * @param arenaBudget the arena budget in bytes, or zero for no arena
+     * @return the store
+     */
+    static BinaryStore forDownloads(String tmpDir, long arenaBudget) {
+        Spool spool = new Spool(Paths.get(tmpDir), Spool.DEFAULT_SEGMENT_SIZE);
+        return arenaBudget == 0 ? spool : new MemoryArena(arenaBudget, spool);
+    }
+
+    /**
+     * Space reserved by {@link #reserve}. Not thread safe - one writer fills each reservation.
+     */
+    interface Reservation {
+        /**
+         * Writes the remaining content of the passed buffer at the next position in the reservation
+         *
+         * @param buf content
+         * @throws IOException if the write fails, or would overflow the reservation
+         */
+        void write(ByteBuffer buf) throws IOException;
+
+        /**
+         * @return an object over the written content
+         * @throws IOException if less content was written than was reserved
+         */
+        BinaryObject finish() throws IOException;
+
+        /**
+         * Gives up the reservation, e.g. because the download filling it failed
+         */
+        void abandon();
+    }
+}
@@ -0,0 +1,177 @@
+package org.ericace.binary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * A binary object holding the raw deflated content of another binary object, along with what a ZIP entry needs
+ * to describe it: the CRC and length of the original content. {@link #getLength} and {@link #getInputStream}
+ * refer to the deflated content, which can be copied verbatim into a ZIP archive. Deflating binaries this way on
+ * many threads as they are loaded means that the archive writer only concatenates pre-compressed entries.
+ * <p>
+ * Small binaries are deflated in memory. Binaries larger than {@link #MEMORY_THRESHOLD} are deflated to a
+ * temporary file that is deleted when the stream is closed. Content compressed by some other ZIP method, e.g.
+ * a zstd frame stored in the ZIP, can be held too - see {@link #compressed}.
+ */
+public class DeflatedBinaryObject implements BinaryObject {
+
+    /**
+     * Binaries up to one megabyte are deflated in memory
+     */
+    public static final int MEMORY_THRESHOLD = 1024 * 1024;
+
+    /**
+     * The deflated content
+     */
+    private final BinaryObject deflated;
+
+    /**
+     * CRC-32 of the original content
+     */
+    private final long crc;
+
+    /**
+     * Length of the original content
+     */
+    private final long originalLength;
+
+    /**
+     * The ZIP compression method of the content
+     */
+    private final int method;
+
+    private DeflatedBinaryObject(BinaryObject deflated, long crc, long originalLength, int method) {
+        this.deflated = deflated;
+        this.crc = crc;
+        this.originalLength = originalLength;
+        this.method = method;
+    }
+
+    /**
+     * Holds content that was compressed in memory, to be written to a ZIP by the passed method
+     *
+     * @param content        the compressed content
+     * @param crc            CRC-32 of the content as written to the ZIP
+     * @param originalLength the length of the original content
+     * @param method         the ZIP compression method
+     * @return the compressed binary
+     */
+    public static DeflatedBinaryObject compressed(byte[] content, long crc, long originalLength, int method) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length);
+        bytes.writeBytes(content);
+        return new DeflatedBinaryObject(new ByteArrayBinaryObject(bytes), crc, originalLength, method);
+    }
+
+    /**
+     * Deflates the passed binary, consuming - and closing - its stream
+     *
+     * @param source the binary to deflate
+     * @param tmpDir where to hold the deflated content of large binaries
+     * @param level  the deflate level, per {@link Deflater}
+     * @return the deflated binary
+     * @throws IOException if the source can't be read, or the temporary file written
+     */
+    public static DeflatedBinaryObject deflate(BinaryObject source, Path tmpDir, int level) throws IOException {
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (source.getLength() <= MEMORY_THRESHOLD) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(source.getLength() / 2 + 64);
+                long length = deflate(source, new DeflaterOutputStream(bytes, deflater), crc);
+                return new DeflatedBinaryObject(new ByteArrayBinaryObject(bytes), crc.getValue(), length,
+                        ZipEntry.DEFLATED);
+            }
+            Path file = Files.createTempFile(tmpDir, "deflated-", ".bin");
+            long length = deflate(source, new DeflaterOutputStream(Files.newOutputStream(file), deflater), crc);
+            return new DeflatedBinaryObject(new LocalFileBinaryObject(file), crc.getValue(), length,
+                    ZipEntry.DEFLATED);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Copies the source through the passed deflating stream and closes both
+     *
+     * @return the original length
+     */
+    private static long deflate(BinaryObject source, OutputStream out, CRC32 crc) throws IOException {
+        long length = 0;
+        byte[] buffer = new byte[8192];
+        try (InputStream in = source.getInputStream(); OutputStream dos = out) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, n);
+                dos.write(buffer, 0, n);
+                length += n;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return the length of the deflated content
+     */
+    @Override
+    public int getLength() {
+        return deflated.getLength();
+    }
+
+    /**
+     * @return a stream over the raw deflated content
+     */
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return deflated.getInputStream();
+    }
+
+    /**
+     * @return true if the deflated content is in a temporary file
+     */
+    @Override
+    public boolean isOnDisk() {
+        return deflated.isOnDisk();
+    }
+
+    public long getCrc() {
+        return crc;
+    }
+
+    public long getOriginalLength() {
+        return originalLength;
+    }
+
+    public int getMethod() {
+        return method;
+    }
+
+    /**
+     * Holds deflated content in memory
+     */
+    private static class ByteArrayBinaryObject implements BinaryObject {
+        private final ByteArrayOutputStream bytes;
+
+        ByteArrayBinaryObject(ByteArrayOutputStream bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int getLength() {
+            return bytes.size();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(bytes.toByteArray());
+        }
+    }
+}
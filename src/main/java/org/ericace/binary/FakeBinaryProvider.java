@@ -23,14 +23,31 @@ public class FakeBinaryProvider implements BinaryProvider {
     private final int minLength;
     private final int maxLength;
 
+    /**
+     * If false, binaries are returned immediately rather than after a simulated transfer time - e.g. when a
+     * {@link FaultInjectingBinaryProvider} models the latency instead
+     */
+    private final boolean simulateTransfer;
+
     /**
      * Constructor. Creates an instance based on passed size. The size determines the "download" time
      *
      * @param lengths Either a single length, or two lengths: min,max
      */
     public FakeBinaryProvider(List<Integer> lengths) {
+        this(lengths, true);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param lengths          Either a single length, or two lengths: min,max
+     * @param simulateTransfer see {@link #simulateTransfer}
+     */
+    public FakeBinaryProvider(List<Integer> lengths, boolean simulateTransfer) {
         minLength = lengths.get(0);
         maxLength = lengths.size() > 1 ? lengths.get(1) : minLength;
+        this.simulateTransfer = simulateTransfer;
     }
 
     /**
@@ -48,6 +65,9 @@ public class FakeBinaryProvider implements BinaryProvider {
         } else {
             lengthActual = (int) ((Math.random() * (maxLength - minLength)) + minLength);
         }
+        if (!simulateTransfer) {
+            return new FakeBinaryObject(key, (int) lengthActual);
+        }
         // min transfer time of 1/2 second - is this accurate for AWS?
         float transferTime = Math.max(lengthActual / BYTES_PER_SEC, .5F);
         int sleepTime = (int) (transferTime * 1000);
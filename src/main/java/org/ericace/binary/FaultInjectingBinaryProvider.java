@@ -0,0 +1,227 @@
+package org.ericace.binary;
+
+import io.prometheus.client.Counter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Wraps any binary provider to inject the behaviour of a real object store under load, so the pipeline can be
+ * tested against tail latency, errors, throttling and stalls without a real store - or on top of one. Configured
+ * with a {@link Spec}, like <code>latency:lognormal:40:0.8,errors:0.01,throttle:3500,stall:0.001:2000</code>:
+ * <ul>
+ *     <li><code>latency</code> - a delay before each GET. <code>fixed:ms</code>, <code>lognormal:median-ms:sigma
+ *     </code>, or <code>pareto:min-ms:alpha</code> for a heavy tail.</li>
+ *     <li><code>errors</code> - the fraction of GETs that fail like an S3 500 InternalError</li>
+ *     <li><code>throttle</code> - GETs per second allowed per key prefix - the key up to its last '/' - beyond
+ *     which GETs fail like an S3 503 SlowDown</li>
+ *     <li><code>stall</code> - the fraction of objects whose download stalls once the GET has succeeded, and for
+ *     how many milliseconds. The stall is on the thread that called {@link #getBinary}, like a stalled network
+ *     read, so it holds up a loader rather than the archive writer.</li>
+ * </ul>
+ * Injected failures are retried with capped exponential backoff and full jitter, as the AWS SDKs retry them, so
+ * they cost latency rather than failing the archive. A GET that fails {@link #MAX_ATTEMPTS} times, when an SDK
+ * would give up, is counted as exhausted and throws, which fails the archive.
+ */
+public class FaultInjectingBinaryProvider implements BinaryProvider {
+
+    static final Counter injectedFaults = Counter.build().name("binary_injected_faults")
+            .help("Faults injected into binary GETs, by fault.").labelNames("fault").register();
+
+    private static final Logger logger = LogManager.getLogger(FaultInjectingBinaryProvider.class);
+
+    /**
+     * Attempts per GET before an SDK would give up
+     */
+    static final int MAX_ATTEMPTS = 4;
+
+    private static final long BACKOFF_BASE_MILLIS = 50;
+    private static final long BACKOFF_CAP_MILLIS = 5_000;
+
+    private final BinaryProvider provider;
+    private final Spec spec;
+
+    /**
+     * Throttling token buckets by key prefix
+     */
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor
+     *
+     * @param provider the provider to wrap
+     * @param spec     what to inject
+     */
+    public FaultInjectingBinaryProvider(BinaryProvider provider, Spec spec) {
+        this.provider = provider;
+        this.spec = spec;
+    }
+
+    @Override
+    public BinaryObject getBinary(String key) {
+        for (int attempt = 1; ; ++attempt) {
+            sleep(spec.latency());
+            String fault = null;
+            if (spec.throttle > 0 && !buckets.computeIfAbsent(prefix(key),
+                    p -> new TokenBucket(spec.throttle)).tryAcquire()) {
+                fault = "throttle";
+            } else if (spec.errorRate > 0 && ThreadLocalRandom.current().nextDouble() < spec.errorRate) {
+                fault = "error";
+            }
+            if (fault == null) {
+                break;
+            }
+            injectedFaults.labels(fault).inc();
+            if (attempt == MAX_ATTEMPTS) {
+                logger.info("Retries exhausted for {}", key);
+                injectedFaults.labels("exhausted").inc();
+                throw new RuntimeException("Injected " + fault + " for " + key + " after " + attempt + " attempts");
+            }
+            long cap = Math.min(BACKOFF_CAP_MILLIS, BACKOFF_BASE_MILLIS << Math.min(attempt, 16));
+            sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+        }
+        BinaryObject object = provider.getBinary(key);
+        if (spec.stallRate > 0 && ThreadLocalRandom.current().nextDouble() < spec.stallRate) {
+            injectedFaults.labels("stall").inc();
+            sleep(spec.stallMillis);
+        }
+        return object;
+    }
+
+    @Override
+    public void warmUp(int connections) {
+        provider.warmUp(connections);
+    }
+
+    @Override
+    public void shutDownNow() {
+        provider.shutDownNow();
+    }
+
+    private static String prefix(String key) {
+        int slash = key.lastIndexOf('/');
+        return slash < 0 ? "" : key.substring(0, slash);
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Thread was terminated");
+        }
+    }
+
+    /**
+     * Allows a number of GETs per second, with a burst of one second's worth
+     */
+    private static class TokenBucket {
+        private final double rate;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        TokenBucket(double rate) {
+            this.rate = rate;
+            this.tokens = rate;
+        }
+
+        synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - last) / 1_000_000_000D * rate);
+            last = now;
+            if (tokens >= 1) {
+                --tokens;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * What to inject. See the class comment for the format.
+     */
+    public static class Spec {
+        private String latencyModel = "fixed";
+        private double latency1 = 0;
+        private double latency2 = 0;
+        private double errorRate = 0;
+        private double throttle = 0;
+        private double stallRate = 0;
+        private long stallMillis = 0;
+
+        private Spec() {
+        }
+
+        /**
+         * Parses a spec
+         *
+         * @param spec like <code>latency:pareto:20:1.5,errors:0.01</code>
+         * @return the spec
+         * @throws IllegalArgumentException if the spec can't be parsed
+         */
+        public static Spec parse(String spec) {
+            Spec parsed = new Spec();
+            try {
+                for (String setting : spec.split(",")) {
+                    String name = setting.substring(0, setting.indexOf(':'));
+                    String[] values = setting.substring(name.length() + 1).split(":");
+                    switch (name) {
+                        case "latency":
+                            parsed.latencyModel = values[0];
+                            parsed.latency1 = Double.parseDouble(values[1]);
+                            if (values[0].equals("lognormal") || values[0].equals("pareto")) {
+                                parsed.latency2 = Double.parseDouble(values[2]);
+                            } else if (!values[0].equals("fixed")) {
+                                throw new IllegalArgumentException("Unknown latency model: " + values[0]);
+                            }
+                            break;
+                        case "errors":
+                            parsed.errorRate = Double.parseDouble(values[0]);
+                            break;
+                        case "throttle":
+                            parsed.throttle = Double.parseDouble(values[0]);
+                            break;
+                        case "stall":
+                            parsed.stallRate = Double.parseDouble(values[0]);
+                            parsed.stallMillis = Long.parseLong(values[1]);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown setting: " + name);
+                    }
+                }
+            } catch (IndexOutOfBoundsException | NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid fault injection spec: " + spec);
+            }
+            return parsed;
+        }
+
+        /**
+         * @return true if the spec injects latency, so another latency model - like the fake provider's - is
+         * redundant
+         */
+        public boolean hasLatency() {
+            return latency1 > 0;
+        }
+
+        /**
+         * @return a latency in milliseconds drawn from the configured distribution
+         */
+        long latency() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            switch (latencyModel) {
+                case "lognormal":
+                    return (long) (latency1 * Math.exp(latency2 * random.nextGaussian()));
+                case "pareto":
+                    return (long) (latency1 / Math.pow(1 - random.nextDouble(), 1 / latency2));
+                default:
+                    return (long) latency1;
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.ericace.binary;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gets objects from S3, or an S3-compatible endpoint, with the JDK's own <code>java.net.http.HttpClient</code>
+ * rather than an AWS SDK client. Requests are signed with SigV4 by a {@link SigV4Signer}, and bodies are
+ * downloaded straight into a {@link BinaryStore} by a {@link StoreBodySubscriber} from the buffers the client
+ * receives into. There is no per-request SDK machinery - no request/response model objects, interceptors or
+ * marshalling - so a GET costs little more than building the request and signing it, which is what matters for
+ * millions of tiny objects.
+ * <p>
+ * The client prefers HTTP/2, and multiplexes all requests to an endpoint over one connection where the endpoint
+ * negotiates it. Otherwise it falls back to HTTP/1.1 and opens a connection per concurrent request. Either way, the
+ * requests in flight are bounded by the max concurrency. The API is asynchronous - see {@link #getBinaryAsync} -
+ * and {@link #getBinary} just waits for the result.
+ * <p>
+ * Like the SDKs, the provider retries throttling (503), server errors (500) and I/O errors, with capped
+ * exponential backoff and full jitter.
+ */
+public class HttpClientBinaryProvider implements BinaryProvider {
+
+    private static final Logger logger = LogManager.getLogger(HttpClientBinaryProvider.class);
+
+    /**
+     * Attempts per GET before giving up, as in the SDKs' standard retry mode
+     */
+    static final int MAX_ATTEMPTS = 3;
+
+    private static final long BACKOFF_BASE_MILLIS = 100;
+    private static final long BACKOFF_CAP_MILLIS = 20_000;
+
+    private final HttpClient client;
+
+    private final SigV4Signer signer;
+
+    /**
+     * Holds downloaded objects until the archive writer consumes them. A {@link MemoryArena} over a
+     * {@link Spool}, or just the spool if the arena budget is zero.
+     */
+    private final BinaryStore store;
+
+    /**
+     * The bucket URI, ending in '/', to which encoded keys are appended
+     */
+    private final String bucketUri;
+
+    /**
+     * The keys. These will be used by the {@link #getBinary} method instead of the key passed to that
+     * method.
+     */
+    private final KeyCatalog keys;
+
+    /**
+     * Permits for requests in flight
+     */
+    private final Semaphore inFlight;
+
+    /**
+     * Constructor
+     *
+     * @param maxConcurrency the maximum requests in flight
+     * @param bucketName     The bucket name
+     * @param regionStr      The region - has to match the bucket
+     * @param endpoint       An S3-compatible endpoint like <code>http://localhost:9000</code>, addressed
+     *                       path-style, or null to address the bucket virtual-hosted style at AWS
+     * @param tmpDir         A temp dir in which to create the spool that objects are downloaded into
+     * @param arenaBudget    Bytes of off-heap memory to hold downloaded objects in before using the spool. Zero
+     *                       to always use the spool.
+     * @param keys           A catalog of keys from which to randomly select objects to download.
+     *                       (See {@link #getBinary}.)
+     */
+    public HttpClientBinaryProvider(int maxConcurrency, String bucketName, String regionStr, String endpoint,
+                                    String tmpDir, long arenaBudget, KeyCatalog keys) {
+        this.store = BinaryStore.forDownloads(tmpDir, arenaBudget);
+        this.keys = keys;
+        this.inFlight = new Semaphore(maxConcurrency);
+        this.bucketUri = endpoint != null ? endpoint.replaceAll("/+$", "") + "/" + bucketName + "/"
+                : "https://" + bucketName + ".s3." + regionStr + ".amazonaws.com/";
+        this.signer = new SigV4Signer(DefaultCredentialsProvider.create(), regionStr);
+        client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    /**
+     * Gets a binary randomly selected from the class {@link #keys} field.
+     *
+     * @param key IGNORED
+     * @return The object from the S3 bucket.
+     */
+    @Override
+    public BinaryObject getBinary(String key) {
+        try {
+            return getBinaryAsync(key).join();
+        } catch (CompletionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Starts getting a binary randomly selected from the class {@link #keys} field. Blocks while the max
+     * concurrency requests are in flight.
+     *
+     * @param key IGNORED
+     * @return a future completed with the object, or exceptionally once the retries are exhausted
+     */
+    public CompletableFuture<BinaryObject> getBinaryAsync(String key) {
+        int randomKey = keys.size() == 1 ? 0 : ThreadLocalRandom.current().nextInt(0, keys.size());
+        String object = keys.get(randomKey);
+        logger.info("Getting object for key {}", object);
+        URI uri = URI.create(bucketUri + SigV4Signer.encodePath(object));
+        inFlight.acquireUninterruptibly();
+        return attempt(uri, 1).whenComplete((obj, e) -> {
+            inFlight.release();
+            if (e != null) {
+                logger.error("Could not get binary: " + object + ". Cause: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Sends one GET, and on a retryable failure schedules the next attempt after a backoff
+     */
+    private CompletableFuture<BinaryObject> attempt(URI uri, int attempt) {
+        HttpRequest request = signer.sign(HttpRequest.newBuilder(uri).GET(), "GET", uri).build();
+        return client.sendAsync(request, StoreBodySubscriber.handler(store))
+                .handle((response, e) -> {
+                    if (e == null) {
+                        return CompletableFuture.completedFuture(response.body());
+                    }
+                    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    if (attempt == MAX_ATTEMPTS || !retryable(cause)) {
+                        return CompletableFuture.<BinaryObject>failedFuture(cause);
+                    }
+                    long cap = Math.min(BACKOFF_CAP_MILLIS, BACKOFF_BASE_MILLIS << attempt);
+                    Executor delay = CompletableFuture.delayedExecutor(
+                            ThreadLocalRandom.current().nextLong(cap + 1), TimeUnit.MILLISECONDS);
+                    return CompletableFuture.supplyAsync(() -> uri, delay)
+                            .thenCompose(u -> attempt(u, attempt + 1));
+                })
+                .thenCompose(f -> f);
+    }
+
+    private static boolean retryable(Throwable t) {
+        if (t instanceof StoreBodySubscriber.StatusException) {
+            int status = ((StoreBodySubscriber.StatusException) t).status;
+            return status == 500 || status == 503;
+        }
+        return t instanceof IOException;
+    }
+
+    /**
+     * Sends HEADs concurrently. Over HTTP/2 they share one connection per endpoint, so this mostly pays for the
+     * handshakes and the first credential resolution.
+     */
+    @Override
+    public void warmUp(int connections) {
+        WarmUp.async(connections, keys, object -> {
+            URI uri = URI.create(bucketUri + SigV4Signer.encodePath(object));
+            HttpRequest request = signer.sign(HttpRequest.newBuilder(uri)
+                    .method("HEAD", HttpRequest.BodyPublishers.noBody()), "HEAD", uri).build();
+            return client.sendAsync(request, HttpResponse.BodyHandlers.discarding());
+        });
+        try {
+            store.warmUp();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void shutDownNow() {
+        store.close();
+    }
+}
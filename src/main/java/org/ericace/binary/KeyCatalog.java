@@ -0,0 +1,336 @@
+package org.ericace.binary;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The keys that the S3 providers randomly select objects from, held compactly enough that a production key list
+ * of a hundred million keys fits a modest heap. A key file is memory-mapped rather than read, so its bytes live in
+ * the page cache and not on the heap, and a key list from the command line is packed into one byte array. Keys
+ * are UTF-8, one per line. Empty lines are ignored.
+ * <p>
+ * Rather than an offset per key, the catalog holds the offset of every {@link #SAMPLE}th key, and finds a key by
+ * scanning forward from the nearest sampled offset - a few hundred bytes at most for typical keys. So the heap
+ * cost is about half a byte per key. The key bytes are read in place: {@link #length}, {@link #copy} and
+ * {@link #indexOf} don't allocate. {@link #get} makes a String, for the SDK clients that need one.
+ * <p>
+ * Finding a key is a binary search if the keys are sorted - as an S3 listing is - and a linear scan if not.
+ * Whether they are is checked on the first search, so loading the catalog is one pass over the bytes looking for
+ * line ends.
+ */
+public final class KeyCatalog {
+
+    /**
+     * The offset of every SAMPLE'th key is held
+     */
+    static final int SAMPLE = 16;
+    private static final int SAMPLE_SHIFT = 4;
+
+    /**
+     * Key file bytes are mapped in chunks of this size, since a single mapping is limited to 2G
+     */
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    /**
+     * The key bytes
+     */
+    private final ByteBuffer[] chunks;
+
+    /**
+     * The number of key bytes
+     */
+    private final long limit;
+
+    /**
+     * The offset of every {@link #SAMPLE}th key
+     */
+    private final long[] samples;
+
+    private final int size;
+
+    /**
+     * Whether the keys are sorted. Null until {@link #isSorted} checks.
+     */
+    private volatile Boolean sorted;
+
+    private KeyCatalog(ByteBuffer[] chunks, long limit) {
+        this.chunks = chunks;
+        this.limit = limit;
+        long[] starts = new long[16];
+        int count = 0;
+        long lineStart = 0;
+        byte[] scan = new byte[64 * 1024];
+        for (long base = 0; base <= limit; base += scan.length) {
+            int n = (int) Math.min(scan.length, limit - base);
+            if (n > 0) {
+                ByteBuffer chunk = chunks[(int) (base >>> CHUNK_SHIFT)].duplicate();
+                chunk.position((int) (base & CHUNK_MASK));
+                chunk.get(scan, 0, n);
+            }
+            for (int j = 0; j < n || (j == n && base + n == limit && lineStart < limit); ++j) {
+                long pos = base + j;
+                if (j < n && scan[j] != '\n') {
+                    continue;
+                }
+                if (pos - lineStart > 1 || (pos - lineStart == 1 && at(lineStart) != '\r')) {
+                    if ((count & (SAMPLE - 1)) == 0) {
+                        if ((count >>> SAMPLE_SHIFT) == starts.length) {
+                            starts = Arrays.copyOf(starts, starts.length * 2);
+                        }
+                        starts[count >>> SAMPLE_SHIFT] = lineStart;
+                    }
+                    if (++count < 0) {
+                        throw new IllegalArgumentException("Too many keys");
+                    }
+                }
+                lineStart = pos + 1;
+            }
+        }
+        this.samples = Arrays.copyOf(starts, (count + SAMPLE - 1) >>> SAMPLE_SHIFT);
+        this.size = count;
+    }
+
+    /**
+     * Memory-maps a key file
+     *
+     * @param file the key file: UTF-8 keys, one per line
+     * @return the catalog
+     * @throws IOException if the file can't be mapped
+     */
+    public static KeyCatalog map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = channel.size();
+            ByteBuffer[] chunks = new ByteBuffer[(int) Math.max(1, (length + CHUNK_MASK) >>> CHUNK_SHIFT)];
+            for (int i = 0; i < chunks.length; ++i) {
+                long offset = (long) i << CHUNK_SHIFT;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(length - offset,
+                        1L << CHUNK_SHIFT));
+            }
+            return new KeyCatalog(chunks, length);
+        }
+    }
+
+    /**
+     * Packs a list of keys
+     *
+     * @param keys the keys
+     * @return the catalog
+     */
+    public static KeyCatalog of(List<String> keys) {
+        byte[] bytes = String.join("\n", keys).getBytes(StandardCharsets.UTF_8);
+        return new KeyCatalog(new ByteBuffer[]{ByteBuffer.wrap(bytes)}, bytes.length);
+    }
+
+    /**
+     * @return the number of keys
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if the keys are in UTF-8 byte order, so {@link #indexOf} is a binary search
+     */
+    public boolean isSorted() {
+        if (sorted == null) {
+            boolean inOrder = true;
+            long prev = -1;
+            for (long pos = firstStart(0); inOrder && pos < limit; pos = nextStart(pos)) {
+                inOrder = prev == -1 || compare(prev, pos) <= 0;
+                prev = pos;
+            }
+            sorted = inOrder;
+        }
+        return sorted;
+    }
+
+    /**
+     * @param i the index of a key
+     * @return the key
+     */
+    public String get(int i) {
+        byte[] bytes = new byte[length(i)];
+        copy(i, bytes, 0);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param i the index of a key
+     * @return the length of the key in UTF-8 bytes
+     */
+    public int length(int i) {
+        long start = start(i);
+        return (int) (end(start) - start);
+    }
+
+    /**
+     * Copies the UTF-8 bytes of a key
+     *
+     * @param i   the index of a key
+     * @param dst where to copy the key to. Must have room for {@link #length} bytes from the offset.
+     * @param off the offset in the destination
+     * @return the number of bytes copied
+     */
+    public int copy(int i, byte[] dst, int off) {
+        long start = start(i);
+        long end = end(start);
+        for (long pos = start; pos < end; ++pos) {
+            dst[off++] = at(pos);
+        }
+        return (int) (end - start);
+    }
+
+    /**
+     * Finds a key
+     *
+     * @param key the key
+     * @return its index, or -1 if the catalog doesn't hold it
+     */
+    public int indexOf(CharSequence key) {
+        if (!isSorted()) {
+            int i = 0;
+            for (long pos = firstStart(0); pos < limit; pos = nextStart(pos), ++i) {
+                if (compare(pos, key) == 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int lo = 0;
+        int hi = samples.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compare(samples[mid], key);
+            if (c == 0) {
+                return mid << SAMPLE_SHIFT;
+            } else if (c < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (hi < 0) {
+            return -1;
+        }
+        int i = hi << SAMPLE_SHIFT;
+        long pos = samples[hi];
+        for (int n = 1; n < SAMPLE && i + n < size; ++n) {
+            pos = nextStart(pos);
+            int c = compare(pos, key);
+            if (c == 0) {
+                return i + n;
+            } else if (c > 0) {
+                break;
+            }
+        }
+        return -1;
+    }
+
+    private byte at(long pos) {
+        return chunks[(int) (pos >>> CHUNK_SHIFT)].get((int) (pos & CHUNK_MASK));
+    }
+
+    /**
+     * @return the offset of key i
+     */
+    private long start(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Key " + i + " of " + size);
+        }
+        long pos = samples[i >>> SAMPLE_SHIFT];
+        for (int n = i & (SAMPLE - 1); n > 0; --n) {
+            pos = nextStart(pos);
+        }
+        return pos;
+    }
+
+    /**
+     * @return the offset just past the key that starts at the passed offset, excluding any '\r' before the '\n'
+     */
+    private long end(long start) {
+        long pos = start;
+        while (pos < limit && at(pos) != '\n') {
+            ++pos;
+        }
+        return pos > start && at(pos - 1) == '\r' ? pos - 1 : pos;
+    }
+
+    /**
+     * @return the offset of the first key at or after the passed offset, which starts a line, or the limit
+     */
+    private long firstStart(long pos) {
+        while (pos < limit && (at(pos) == '\n' || (at(pos) == '\r' && (pos + 1 == limit || at(pos + 1) == '\n')))) {
+            ++pos;
+        }
+        return pos;
+    }
+
+    /**
+     * @return the offset of the key after the key that starts at the passed offset, or the limit
+     */
+    private long nextStart(long start) {
+        long pos = start;
+        while (pos < limit && at(pos) != '\n') {
+            ++pos;
+        }
+        return firstStart(pos);
+    }
+
+    /**
+     * Compares two keys in UTF-8 byte order
+     */
+    private int compare(long a, long b) {
+        long aEnd = end(a);
+        long bEnd = end(b);
+        for (; a < aEnd && b < bEnd; ++a, ++b) {
+            int c = Integer.compare(at(a) & 0xFF, at(b) & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Long.compare(aEnd - a, bEnd - b);
+    }
+
+    /**
+     * Compares a key with a string in UTF-8 byte order, encoding the string as it goes
+     */
+    private int compare(long pos, CharSequence key) {
+        long end = end(pos);
+        for (int i = 0; i < key.length(); ) {
+            int cp = Character.codePointAt(key, i);
+            i += Character.charCount(cp);
+            int n = cp < 0x80 ? 1 : cp < 0x800 ? 2 : cp < 0x10000 ? 3 : 4;
+            for (int b = 0; b < n; ++b) {
+                if (pos == end) {
+                    return -1;
+                }
+                int c = Integer.compare(at(pos++) & 0xFF, utf8Byte(cp, n, b));
+                if (c != 0) {
+                    return c;
+                }
+            }
+        }
+        return pos == end ? 0 : 1;
+    }
+
+    /**
+     * @return byte b of the n-byte UTF-8 encoding of a code point
+     */
+    private static int utf8Byte(int cp, int n, int b) {
+        if (n == 1) {
+            return cp;
+        }
+        int shift = 6 * (n - 1 - b);
+        if (b == 0) {
+            return (0xF00 >> n & 0xF0) | (cp >> shift);
+        }
+        return 0x80 | (cp >> shift & 0x3F);
+    }
+}
@@ -1,5 +1,6 @@
 package org.ericace.binary;
 
+import io.prometheus.client.Gauge;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -14,6 +15,12 @@ import java.nio.file.Path;
  */
 public class LocalFileBinaryObject implements BinaryObject {
 
+    /**
+     * Bytes currently parked in the local spool directory by downloaded-but-not-yet-written binaries
+     */
+    static final Gauge spoolBytes = Gauge.build().name("binary_spool_bytes")
+            .help("Bytes of downloaded binaries held on the local filesystem awaiting the archive writer.").register();
+
     private static final Logger logger = LogManager.getLogger(LocalFileBinaryObject.class);
 
     /**
@@ -21,6 +28,12 @@ public class LocalFileBinaryObject implements BinaryObject {
      */
     private final File file;
 
+    /**
+     * The file length, captured when the object is created so the spool accounting in {@link #spoolBytes}
+     * is symmetrical
+     */
+    private final long length;
+
     /**
      * Constructor
      *
@@ -28,6 +41,8 @@ public class LocalFileBinaryObject implements BinaryObject {
      */
     LocalFileBinaryObject(File file) {
         this.file = file;
+        length = file.length();
+        spoolBytes.inc(length);
     }
 
     /**
@@ -36,12 +51,17 @@ public class LocalFileBinaryObject implements BinaryObject {
      * @param path a path from which to get a file for the class to wrap
      */
     LocalFileBinaryObject(Path path) {
-        this.file = path.toFile();
+        this(path.toFile());
     }
 
     @Override
     public int getLength() {
-        return (int) file.length();
+        return (int) length;
+    }
+
+    @Override
+    public boolean isOnDisk() {
+        return true;
     }
 
     /**
@@ -52,9 +72,17 @@ public class LocalFileBinaryObject implements BinaryObject {
     @Override
     public InputStream getInputStream() throws IOException {
         return new FileInputStream(file) {
+            private boolean closed = false;
+
             @Override
-            public void close() {
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                super.close();
                 file.delete();
+                spoolBytes.dec(length);
             }
         };
     }
@@ -0,0 +1,222 @@
+package org.ericace.binary;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link BinaryStore} that holds content off-heap, in pooled direct {@link ByteBuffer} slabs, within a global
+ * byte budget. When the budget is exhausted, reservations fall back to another store - normally a {@link Spool} -
+ * so small attachments never touch the filesystem while memory lasts, and large bursts spill to disk
+ * automatically. Slabs go back to the pool when the archive writer closes an object's stream, so the slabs are
+ * allocated once and reused, and heap and GC pressure stay flat regardless of the object count.
+ * <p>
+ * Slabs come in size classes - powers of two from {@link #MIN_SLAB_SIZE} to {@link #SLAB_SIZE} - each with its own
+ * pool. A binary is held in full-size slabs plus, for the remainder, one slab of the smallest class that fits, so
+ * a 1K attachment takes a 1K slab rather than 64K of the budget, and no binary wastes more than half its last slab.
+ */
+public class MemoryArena implements BinaryStore {
+
+    static final Gauge arenaBytes = Gauge.build().name("binary_arena_bytes")
+            .help("Bytes of off-heap arena slabs holding binaries awaiting the archive writer.").register();
+    static final Counter arenaFallbacks = Counter.build().name("binary_arena_fallbacks")
+            .help("Count of binaries stored on disk because the arena budget was exhausted.").register();
+
+    /**
+     * The largest slab size: 64 kilobytes. Content beyond the last whole multiple of this size goes in one smaller
+     * slab.
+     */
+    static final int SLAB_SIZE = 64 * 1024;
+
+    /**
+     * The smallest slab size: 1 kilobyte. This is the granularity of the budget.
+     */
+    static final int MIN_SLAB_SIZE = 1024;
+
+    /**
+     * The most slab bytes allocated up front by {@link #warmUp}
+     */
+    static final long WARM_UP_BYTES = 16L * 1024 * 1024;
+
+    /**
+     * The max bytes of slabs in use at once
+     */
+    private final long budget;
+
+    /**
+     * Where content goes when the budget is exhausted
+     */
+    private final BinaryStore fallback;
+
+    /**
+     * Bytes of slabs currently holding content, or reserved for it
+     */
+    private final AtomicLong used = new AtomicLong(0);
+
+    /**
+     * Slabs not currently in use, one pool per size class, indexed by {@link #sizeClass}
+     */
+    private final List<Queue<ByteBuffer>> pools = new ArrayList<>();
+
+    /**
+     * Constructor
+     *
+     * @param budget   see {@link #budget}
+     * @param fallback see {@link #fallback}
+     */
+    public MemoryArena(long budget, BinaryStore fallback) {
+        this.budget = budget;
+        this.fallback = fallback;
+        for (int size = MIN_SLAB_SIZE; size <= SLAB_SIZE; size *= 2) {
+            pools.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    /**
+     * @param length the length of content that isn't a whole multiple of {@link #SLAB_SIZE}
+     * @return the size of the smallest slab that holds it
+     */
+    static int slabSize(int length) {
+        return Math.max(MIN_SLAB_SIZE, Integer.highestOneBit(Math.max(length - 1, 1)) << 1);
+    }
+
+    /**
+     * @param slabSize a slab size
+     * @return the index of its pool in {@link #pools}
+     */
+    private static int sizeClass(int slabSize) {
+        return Integer.numberOfTrailingZeros(slabSize / MIN_SLAB_SIZE);
+    }
+
+    /**
+     * Reserves slabs for the content if the budget allows, otherwise reserves space in the fallback store
+     *
+     * @param length the content length
+     * @return the reservation
+     * @throws IOException if the fallback store can't reserve the space
+     */
+    @Override
+    public BinaryStore.Reservation reserve(int length) throws IOException {
+        int fullSlabs = length / SLAB_SIZE;
+        int lastSlab = length % SLAB_SIZE == 0 ? 0 : slabSize(length % SLAB_SIZE);
+        long bytes = (long) fullSlabs * SLAB_SIZE + lastSlab;
+        long current;
+        do {
+            current = used.get();
+            if (current + bytes > budget) {
+                arenaFallbacks.inc();
+                return fallback.reserve(length);
+            }
+        } while (!used.compareAndSet(current, current + bytes));
+        arenaBytes.inc(bytes);
+        List<ByteBuffer> taken = new ArrayList<>(fullSlabs + 1);
+        for (int i = 0; i < fullSlabs; ++i) {
+            taken.add(slab(SLAB_SIZE));
+        }
+        if (lastSlab != 0) {
+            taken.add(slab(lastSlab));
+        }
+        return new Reservation(taken, length);
+    }
+
+    /**
+     * @return a slab of the passed size from its pool, or a new one if the pool is empty
+     */
+    private ByteBuffer slab(int size) {
+        ByteBuffer slab = pools.get(sizeClass(size)).poll();
+        return slab != null ? slab : ByteBuffer.allocateDirect(size);
+    }
+
+    /**
+     * Allocates slabs into the pools, up to the budget or {@link #WARM_UP_BYTES} split evenly across the size
+     * classes, and warms up the fallback store
+     */
+    @Override
+    public void warmUp() throws IOException {
+        long perClass = Math.min(budget, WARM_UP_BYTES) / pools.size();
+        for (int size = MIN_SLAB_SIZE; size <= SLAB_SIZE; size *= 2) {
+            Queue<ByteBuffer> pool = pools.get(sizeClass(size));
+            for (long bytes = 0; bytes + size <= perClass; bytes += size) {
+                pool.offer(ByteBuffer.allocateDirect(size));
+            }
+        }
+        fallback.warmUp();
+    }
+
+    /**
+     * Drops the pooled slabs, and closes the fallback store
+     */
+    @Override
+    public void close() {
+        pools.forEach(Queue::clear);
+        fallback.close();
+    }
+
+    /**
+     * Returns slabs to the pool and their bytes to the budget
+     */
+    void release(List<ByteBuffer> slabs) {
+        long bytes = 0;
+        for (ByteBuffer slab : slabs) {
+            slab.clear();
+            bytes += slab.capacity();
+            pools.get(sizeClass(slab.capacity())).offer(slab);
+        }
+        used.addAndGet(-bytes);
+        arenaBytes.dec(bytes);
+    }
+
+    /**
+     * Slabs reserved for one binary, filled in order. All but the last are {@link #SLAB_SIZE}.
+     */
+    private class Reservation implements BinaryStore.Reservation {
+        private final List<ByteBuffer> slabs;
+        private final int length;
+        private int written = 0;
+        private boolean released = false;
+
+        Reservation(List<ByteBuffer> slabs, int length) {
+            this.slabs = slabs;
+            this.length = length;
+        }
+
+        @Override
+        public void write(ByteBuffer buf) throws IOException {
+            if (written + buf.remaining() > length) {
+                throw new IOException("Content exceeds the reserved length of " + length);
+            }
+            while (buf.hasRemaining()) {
+                ByteBuffer slab = slabs.get(written / SLAB_SIZE);
+                int n = Math.min(buf.remaining(), slab.remaining());
+                ByteBuffer chunk = buf.duplicate();
+                chunk.limit(chunk.position() + n);
+                slab.put(chunk);
+                buf.position(buf.position() + n);
+                written += n;
+            }
+        }
+
+        @Override
+        public ArenaBinaryObject finish() throws IOException {
+            if (written != length) {
+                throw new IOException("Wrote " + written + " bytes of a reserved " + length);
+            }
+            return new ArenaBinaryObject(MemoryArena.this, slabs, length);
+        }
+
+        @Override
+        public void abandon() {
+            if (!released) {
+                released = true;
+                release(slabs);
+            }
+        }
+    }
+}
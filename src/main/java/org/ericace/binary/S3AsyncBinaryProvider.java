@@ -2,22 +2,20 @@ package org.ericace.binary;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import software.amazon.awssdk.core.async.AsyncResponseTransformer;
 import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
 import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
-import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
 
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.List;
+import java.io.IOException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ThreadLocalRandom;
 
 /**
- * Uses the AWS SDK V2 SdkAsyncHttpClient and S3AsyncClient classes for Netty event-driven I/O.
+ * Uses the AWS SDK V2 SdkAsyncHttpClient and S3AsyncClient classes for Netty event-driven I/O. Objects are
+ * downloaded straight into a {@link BinaryStore} by a {@link StoreResponseTransformer}.
  */
 public class S3AsyncBinaryProvider implements BinaryProvider {
 
@@ -29,15 +27,16 @@ public class S3AsyncBinaryProvider implements BinaryProvider {
     private final S3AsyncClient client;
 
     /**
-     * A temp dir to download objects from S3 into
+     * Holds downloaded objects until the archive writer consumes them. A {@link MemoryArena} over a
+     * {@link Spool}, or just the spool if the arena budget is zero.
      */
-    private final String tmpDir;
+    private final BinaryStore store;
 
     /**
-     * A list of keys. These will be used by the {@link #getBinary} method instead of the key passed to that
+     * The keys. These will be used by the {@link #getBinary} method instead of the key passed to that
      * method.
      */
-    private final List<String> keys;
+    private final KeyCatalog keys;
 
     /**
      * The bucket name from which to get an object
@@ -52,14 +51,16 @@ public class S3AsyncBinaryProvider implements BinaryProvider {
      *                                     connection acquires.
      * @param bucketName                   The bucket name
      * @param regionStr                    The region - has to match the bucket
-     * @param tmpDir                       A temp dir to download S3 objects from. (The class removes the object
-     *                                     as soon as its input stream is closed.)
-     * @param keys                         A list of keys from which to randomly select objects to download.
+     * @param tmpDir                       A temp dir in which to create the spool that S3 objects are downloaded
+     *                                     into. (Spool space is reclaimed as objects' input streams are closed.)
+     * @param arenaBudget                  Bytes of off-heap memory to hold downloaded objects in before using
+     *                                     the spool. Zero to always use the spool.
+     * @param keys                         A catalog of keys from which to randomly select objects to download.
      *                                     (See {@link #getBinary}.)
      */
     public S3AsyncBinaryProvider(int maxConcurrency, int maxPendingConnectionAcquires, String bucketName,
-                                 String regionStr, String tmpDir, List<String> keys) {
-        this.tmpDir = tmpDir;
+                                 String regionStr, String tmpDir, long arenaBudget, KeyCatalog keys) {
+        this.store = BinaryStore.forDownloads(tmpDir, arenaBudget);
         this.keys = keys;
         this.bucketName = bucketName;
 
@@ -82,28 +83,41 @@ public class S3AsyncBinaryProvider implements BinaryProvider {
      */
     @Override
     public BinaryObject getBinary(String key) {
-        // TODO not guaranteed to avoid collisions and transfer manager will throw on file exists
-        Path tmpFile = Paths.get(tmpDir, "tmp-" + Thread.currentThread().getId() + "-" +
-                ThreadLocalRandom.current().nextLong(Long.MAX_VALUE) + ".bin").toAbsolutePath();
         int randomKey = keys.size() == 1 ? 0 : ThreadLocalRandom.current().nextInt(0, keys.size());
         String object = keys.get(randomKey);
         try {
             logger.info("Getting object for key {}", object);
 
             GetObjectRequest objectRequest = GetObjectRequest.builder().bucket(bucketName).key(object).build();
-            CompletableFuture<GetObjectResponse> future = client.getObject(objectRequest,
-                    AsyncResponseTransformer.toFile(tmpFile));
+            CompletableFuture<BinaryObject> future = client.getObject(objectRequest,
+                    new StoreResponseTransformer(store));
             future.whenComplete((resp, err) -> {
                 if (resp == null) {
                     logger.error("Could not get binary: " + object + ". Cause: " + err.getMessage());
                     throw new RuntimeException("Could not get binary: " + object);
                 }
             });
-            future.join();
-            return new LocalFileBinaryObject(tmpFile);
+            return future.join();
         } catch (Exception e) {
             logger.error("Could not get binary: " + object + ". Cause: " + e.getMessage());
             throw new RuntimeException("Could not get binary: " + object);
         }
     }
+
+    @Override
+    public void warmUp(int connections) {
+        WarmUp.async(connections, keys, object -> client.headObject(HeadObjectRequest.builder()
+                .bucket(bucketName).key(object).build()));
+        try {
+            store.warmUp();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void shutDownNow() {
+        client.close();
+        store.close();
+    }
 }
@@ -10,11 +10,13 @@ import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Performs the same function as the {@link AmazonS3BinaryProvider} class, except gets S3 binaries using the
@@ -35,21 +37,32 @@ public class S3TransferManagerBinaryProvider implements BinaryProvider {
      */
     private final TransferManager transferManager;
 
+    /**
+     * The client the transfer manager uses, for warm-up HEADs
+     */
+    private final AmazonS3 s3;
+
     /**
      * The bucket name from which to get an object
      */
     private final String bucketName;
 
     /**
-     * A list of keys. These will be used by the {@link #getBinary} method instead of the key passed to that
+     * The keys. These will be used by the {@link #getBinary} method instead of the key passed to that
      * method.
      */
-    private final List<String> keys;
+    private final KeyCatalog keys;
+
+    /**
+     * A directory to download objects from S3 into, created by the class so that file names are unique. (The
+     * transfer manager only downloads to files, so this provider doesn't use a {@link Spool}.)
+     */
+    private final Path downloadDir;
 
     /**
-     * A temp dir to download objects from S3 into
+     * Names downloaded files uniquely within {@link #downloadDir}
      */
-    private final String tmpDir;
+    private final AtomicLong fileCounter = new AtomicLong(0);
 
     /**
      * Constructor
@@ -59,13 +72,17 @@ public class S3TransferManagerBinaryProvider implements BinaryProvider {
      * @param regionStr  The region - has to match the bucket
      * @param tmpDir     A temp dir to download S3 objects from. (The class removes the object as soon as its
      *                   input stream is closed.)
-     * @param keys       A list of keys from which to randomly select objects to download. (See {@link #getBinary}.)
+     * @param keys       A catalog of keys from which to randomly select objects to download. (See {@link #getBinary}.)
      */
     public S3TransferManagerBinaryProvider(int threads, String bucketName, String regionStr, String tmpDir,
-                                           List<String> keys) {
+                                           KeyCatalog keys) {
         this.bucketName = bucketName;
-        this.tmpDir = tmpDir;
         this.keys = keys;
+        try {
+            downloadDir = Files.createTempDirectory(Paths.get(tmpDir), "transfermanager-");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
 
         Regions region = Regions.fromName(regionStr);
         ClientConfiguration clientConfiguration = new ClientConfiguration();
@@ -74,7 +91,7 @@ public class S3TransferManagerBinaryProvider implements BinaryProvider {
 
         AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
                 .withRegion(region).withClientConfiguration(clientConfiguration);
-        AmazonS3 s3 = builder.build();
+        s3 = builder.build();
 
         transferManager = TransferManagerBuilder.standard()
                 .withExecutorFactory(() -> Executors.newFixedThreadPool(threads))
@@ -91,24 +108,29 @@ public class S3TransferManagerBinaryProvider implements BinaryProvider {
      */
     @Override
     public BinaryObject getBinary(String key) {
-        // TODO not guaranteed to avoid collisions and transfer manager will throw on file exists
-        Path tmpFile = Paths.get(tmpDir, "tmp-" + Thread.currentThread().getId() + "-" +
-                ThreadLocalRandom.current().nextLong(Long.MAX_VALUE) + ".bin").toAbsolutePath();
+        Path tmpFile = downloadDir.resolve("tmp-" + fileCounter.incrementAndGet() + ".bin");
         int randomKey = keys.size() == 1 ? 0 : ThreadLocalRandom.current().nextInt(0, keys.size());
         String object = keys.get(randomKey);
+        Download d;
         try {
             logger.info("Getting object for key {}", object);
-            Download d = transferManager.download(bucketName, object, tmpFile.toFile(), 1000);
+            d = transferManager.download(bucketName, object, tmpFile.toFile(), 1000);
             d.waitForCompletion();
         } catch (Exception e) {
             logger.error("Could not get binary: " + object + ". Cause: " + e.getMessage());
             throw new RuntimeException("Could not get binary: " + object);
         }
-        return new LocalFileBinaryObject(tmpFile);
+        return BinaryObject.withETag(new LocalFileBinaryObject(tmpFile), d.getObjectMetadata().getETag());
+    }
+
+    @Override
+    public void warmUp(int connections) {
+        WarmUp.blocking(connections, keys, object -> s3.getObjectMetadata(bucketName, object));
     }
 
     @Override
     public void shutDownNow() {
         transferManager.shutdownNow(true);
+        downloadDir.toFile().delete();
     }
 }
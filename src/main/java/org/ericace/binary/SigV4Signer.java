@@ -0,0 +1,183 @@
+package org.ericace.binary;
+
+import software.amazon.awssdk.auth.credentials.AwsCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Signs S3 GET and HEAD requests with AWS Signature Version 4, for providers that talk HTTP directly rather than
+ * through an SDK client. Only what reading an object needs is supported: no query string, and an unsigned
+ * payload.
+ * Credentials are resolved from the SDK's provider chain for each request - the chain caches them, and refreshes
+ * expiring session credentials - and the derived signing key is cached for the day it is valid.
+ */
+class SigV4Signer {
+
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+    private static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+
+    private final AwsCredentialsProvider credentials;
+    private final String region;
+
+    /**
+     * The signing key last derived, with the scope - which includes the date - and secret it was derived from
+     */
+    private SigningKey signingKey;
+
+    private static class SigningKey {
+        final String scope;
+        final String secret;
+        final byte[] key;
+
+        SigningKey(String scope, String secret, byte[] key) {
+            this.scope = scope;
+            this.secret = secret;
+            this.key = key;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param credentials where to get credentials
+     * @param region      the region of the bucket
+     */
+    SigV4Signer(AwsCredentialsProvider credentials, String region) {
+        this.credentials = credentials;
+        this.region = region;
+    }
+
+    /**
+     * Adds the SigV4 headers for a request of the passed URI to a request builder
+     *
+     * @param builder a builder for the request
+     * @param method  the request method, like GET
+     * @param uri     the URI, whose path is already encoded as S3 expects
+     * @return the builder
+     */
+    HttpRequest.Builder sign(HttpRequest.Builder builder, String method, URI uri) {
+        AwsCredentials creds = credentials.resolveCredentials();
+        String amzDate = AMZ_DATE.format(ZonedDateTime.now(ZoneOffset.UTC));
+        String token = creds instanceof AwsSessionCredentials ? ((AwsSessionCredentials) creds).sessionToken()
+                : null;
+
+        SortedMap<String, String> headers = new TreeMap<>();
+        headers.put("host", uri.getRawAuthority());
+        headers.put("x-amz-content-sha256", UNSIGNED_PAYLOAD);
+        headers.put("x-amz-date", amzDate);
+        if (token != null) {
+            headers.put("x-amz-security-token", token);
+        }
+        String authorization = authorization(method, uri.getRawPath(), headers, creds.accessKeyId(),
+                creds.secretAccessKey());
+
+        builder.header("x-amz-content-sha256", UNSIGNED_PAYLOAD).header("x-amz-date", amzDate);
+        if (token != null) {
+            builder.header("x-amz-security-token", token);
+        }
+        return builder.header("Authorization", authorization);
+    }
+
+    /**
+     * Computes the Authorization header of a request without a query string. Separate from {@link #sign} so it
+     * can be checked against the examples in the S3 documentation, which sign other headers.
+     *
+     * @param method      the request method, like GET
+     * @param rawPath     the URI path, already encoded as S3 expects
+     * @param headers     the headers to sign, by lower case name. Must include 'host', 'x-amz-date', and
+     *                    'x-amz-content-sha256', whose value is the payload hash.
+     * @param accessKeyId the access key
+     * @param secret      the secret access key
+     * @return the header value
+     */
+    String authorization(String method, String rawPath, SortedMap<String, String> headers, String accessKeyId,
+                         String secret) {
+        String amzDate = headers.get("x-amz-date");
+        String date = amzDate.substring(0, 8);
+        String scope = date + "/" + region + "/s3/aws4_request";
+        StringBuilder canonicalHeaders = new StringBuilder();
+        headers.forEach((name, value) -> canonicalHeaders.append(name).append(':').append(value.trim())
+                .append('\n'));
+        String signedHeaders = String.join(";", headers.keySet());
+        String canonicalRequest = method + "\n" + rawPath + "\n\n" + canonicalHeaders + "\n" + signedHeaders
+                + "\n" + headers.get("x-amz-content-sha256");
+        String stringToSign = ALGORITHM + "\n" + amzDate + "\n" + scope + "\n" + hex(sha256(canonicalRequest));
+        String signature = hex(hmac(signingKey(scope, date, secret), stringToSign));
+        return ALGORITHM + " Credential=" + accessKeyId + "/" + scope + ", SignedHeaders=" + signedHeaders
+                + ", Signature=" + signature;
+    }
+
+    /**
+     * Encodes a key as a path for the canonical request: every byte except the unreserved characters and '/'
+     * is percent-encoded
+     *
+     * @param key an object key
+     * @return the encoded key
+     */
+    static String encodePath(String key) {
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_'
+                    || c == '.' || c == '~' || c == '/') {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+            }
+        }
+        return encoded.toString();
+    }
+
+    private synchronized byte[] signingKey(String scope, String date, String secret) {
+        SigningKey cached = signingKey;
+        if (cached == null || !cached.scope.equals(scope) || !cached.secret.equals(secret)) {
+            byte[] key = hmac(("AWS4" + secret).getBytes(StandardCharsets.UTF_8), date);
+            key = hmac(key, region);
+            key = hmac(key, "s3");
+            key = hmac(key, "aws4_request");
+            signingKey = cached = new SigningKey(scope, secret, key);
+        }
+        return cached.key;
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] sha256(String data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder s = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            s.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,270 @@
+package org.ericace.binary;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An append-only spool of binary content on the local filesystem, made of a small number of large segment
+ * files rather than one file per binary. Callers append the content of a {@link BinaryObject} and get back a
+ * {@link SpoolBinaryObject} over the slice of the segment that holds it. Space is reserved under a short lock,
+ * and the bytes are written with positional writes outside the lock, so many threads can append concurrently.
+ * <p>
+ * Each segment counts the slices in it that have not yet been consumed. When a segment is full it is sealed and a
+ * new one is started. Once a sealed segment has no unconsumed slices, its file is deleted.
+ * <p>
+ * Each segment file is extended to the segment size when it is started, so appends are positional writes within
+ * the file and never change its size. That is as close to preallocation as Java gets portably: there is no
+ * fallocate, so on most filesystems the extended file is sparse, and blocks are still allocated as they are
+ * written. A slice larger than the segment size still fits, by growing its segment past that size.
+ * <p>
+ * The S3 providers download into a spool - via {@link #reserve} when the content arrives asynchronously - so that
+ * small objects cost a slice of a shared file rather than a file create and delete each. Deleting each segment as
+ * soon as it is consumed also drops its pages from the page cache, which is the closest portable equivalent of
+ * an eviction hint.
+ */
+public class Spool implements BinaryStore {
+
+    private static final Logger logger = LogManager.getLogger(Spool.class);
+
+    /**
+     * Default segment size: 64 megabytes
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Directory holding the segment files. Created by the class, and removed by {@link #close}.
+     */
+    private final Path dir;
+
+    /**
+     * Once this many bytes have been reserved in a segment, the next append rolls to a new segment
+     */
+    private final long segmentSize;
+
+    /**
+     * Names segment files uniquely within {@link #dir}
+     */
+    private final AtomicLong segmentCounter = new AtomicLong(0);
+
+    /**
+     * The segment currently accepting appends. Guarded by <code>this</code>.
+     */
+    private Segment current;
+
+    /**
+     * Segments not yet deleted, including sealed segments that still have unconsumed slices. Each one holds an
+     * open channel until it is deleted.
+     */
+    private final Set<Segment> segments = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructor
+     *
+     * @param parentDir   A directory in which the class creates a uniquely named directory for its segments, so
+     *                    that concurrent spools don't collide. Must exist.
+     * @param segmentSize see {@link #segmentSize}
+     */
+    public Spool(Path parentDir, long segmentSize) {
+        if (!Files.isDirectory(parentDir)) {
+            throw new RuntimeException("Spool dir does not exist or is not a directory: " + parentDir);
+        }
+        try {
+            dir = Files.createTempDirectory(parentDir, "spool-");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Reserves space in the spool. Reserving is done under a short lock, and the writes are positional writes
+     * outside the lock, so many threads can fill their reservations concurrently.
+     *
+     * @param length the content length
+     * @return the reservation
+     * @throws IOException if a new segment could not be started
+     */
+    @Override
+    public Reservation reserve(int length) throws IOException {
+        synchronized (this) {
+            if (current == null || (current.reserved > 0 && current.reserved + length > segmentSize)) {
+                roll();
+            }
+            return new Reservation(current, current.reserve(length), length);
+        }
+    }
+
+    /**
+     * Starts the first segment
+     */
+    @Override
+    public synchronized void warmUp() throws IOException {
+        if (current == null) {
+            roll();
+        }
+    }
+
+    /**
+     * Deletes all segments regardless of whether they've been consumed, and the spool directory. Call when the
+     * spool is no longer needed.
+     */
+    @Override
+    public synchronized void close() {
+        for (Segment segment : new ArrayList<>(segments)) {
+            segment.delete();
+        }
+        current = null;
+        try (var paths = Files.list(dir)) {
+            paths.filter(p -> p.getFileName().toString().endsWith(".seg")).forEach(p -> p.toFile().delete());
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            logger.error("Unable to clean spool dir: {}", dir);
+        }
+    }
+
+    /**
+     * Seals the current segment and starts a new one. Caller must hold the instance lock.
+     */
+    private void roll() throws IOException {
+        if (current != null) {
+            current.seal();
+        }
+        Path path = dir.resolve("spool-" + segmentCounter.incrementAndGet() + ".seg");
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            channel.write(ByteBuffer.allocate(1), segmentSize - 1);
+        } catch (IOException e) {
+            channel.close();
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        current = new Segment(path, channel, segments);
+        segments.add(current);
+        logger.info("Started spool segment {}", path);
+    }
+
+    /**
+     * Space reserved in a segment by {@link #reserve}
+     */
+    public static class Reservation implements BinaryStore.Reservation {
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+        private long position;
+
+        private Reservation(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.position = offset;
+        }
+
+        @Override
+        public void write(ByteBuffer buf) throws IOException {
+            if (position + buf.remaining() > offset + length) {
+                throw new IOException("Content exceeds the reserved length of " + length);
+            }
+            while (buf.hasRemaining()) {
+                position += segment.channel.write(buf, position);
+            }
+        }
+
+        @Override
+        public SpoolBinaryObject finish() throws IOException {
+            if (position != offset + length) {
+                throw new IOException("Wrote " + (position - offset) + " bytes of a reserved " + length);
+            }
+            return new SpoolBinaryObject(segment, offset, length);
+        }
+
+        /**
+         * Gives up the reservation. The space isn't reused, but doesn't prevent the segment from being deleted.
+         */
+        @Override
+        public void abandon() {
+            segment.release();
+        }
+    }
+
+    /**
+     * One spool file. Tracks how many bytes have been reserved in it, and how many of its slices are still live.
+     */
+    static class Segment {
+        final Path path;
+        final FileChannel channel;
+        private final Set<Segment> segments;
+        private final AtomicInteger live = new AtomicInteger(0);
+        private final AtomicBoolean deleted = new AtomicBoolean(false);
+        private volatile boolean sealed = false;
+        private long reserved = 0;
+
+        /**
+         * @param segments the spool's set of undeleted segments, which the segment leaves when it is deleted
+         */
+        Segment(Path path, FileChannel channel, Set<Segment> segments) {
+            this.path = path;
+            this.channel = channel;
+            this.segments = segments;
+        }
+
+        /**
+         * Reserves space for one slice. Caller must hold the spool lock.
+         *
+         * @return the offset of the reserved space
+         */
+        long reserve(int length) {
+            long offset = reserved;
+            reserved += length;
+            live.incrementAndGet();
+            LocalFileBinaryObject.spoolBytes.inc(length);
+            return offset;
+        }
+
+        /**
+         * Called when a slice is consumed
+         */
+        void release() {
+            if (live.decrementAndGet() == 0 && sealed) {
+                delete();
+            }
+        }
+
+        /**
+         * Marks the segment as accepting no more slices, and deletes it if all slices are already consumed
+         */
+        void seal() {
+            sealed = true;
+            if (live.get() == 0) {
+                delete();
+            }
+        }
+
+        void delete() {
+            if (deleted.compareAndSet(false, true)) {
+                try {
+                    channel.close();
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    logger.error("Unable to delete spool segment: {}", path);
+                }
+                segments.remove(this);
+                LocalFileBinaryObject.spoolBytes.dec(reserved);
+                logger.info("Deleted spool segment {}", path);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.ericace.binary;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A binary object over a slice of a {@link Spool} segment. Closing the stream returned by
+ * {@link #getInputStream} releases the slice, which allows the segment to be deleted once all of its slices are
+ * consumed.
+ */
+public class SpoolBinaryObject implements BinaryObject {
+
+    /**
+     * The segment holding the content
+     */
+    private final Spool.Segment segment;
+
+    /**
+     * Offset of the content in the segment
+     */
+    private final long offset;
+
+    /**
+     * Content length
+     */
+    private final int length;
+
+    /**
+     * Constructor
+     *
+     * @param segment see {@link #segment}
+     * @param offset  see {@link #offset}
+     * @param length  see {@link #length}
+     */
+    SpoolBinaryObject(Spool.Segment segment, long offset, int length) {
+        this.segment = segment;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public boolean isOnDisk() {
+        return true;
+    }
+
+    /**
+     * Returns a stream that reads the slice with positional reads, so concurrent readers of the same segment
+     * don't interfere with each other. Closing the stream releases the slice.
+     *
+     * @return the stream
+     */
+    @Override
+    public InputStream getInputStream() {
+        return new InputStream() {
+            private long position = offset;
+            private final long end = offset + length;
+            private boolean closed = false;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (position >= end) {
+                    return -1;
+                }
+                int toRead = (int) Math.min(len, end - position);
+                int read = segment.channel.read(ByteBuffer.wrap(b, off, toRead), position);
+                if (read > 0) {
+                    position += read;
+                }
+                return read;
+            }
+
+            @Override
+            public void close() {
+                if (!closed) {
+                    closed = true;
+                    segment.release();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,121 @@
+package org.ericace.binary;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * Downloads an HTTP response body straight into a {@link BinaryStore}: the java.net.http counterpart of
+ * {@link StoreResponseTransformer}. Space for the content length is reserved in the store when the response
+ * arrives, and the client's buffers are written into the reservation as they arrive, so the body is never
+ * gathered into a byte array.
+ */
+class StoreBodySubscriber implements HttpResponse.BodySubscriber<BinaryObject> {
+
+    private final CompletableFuture<BinaryObject> future = new CompletableFuture<>();
+
+    private final BinaryStore.Reservation reservation;
+
+    private final String eTag;
+
+    private Flow.Subscription subscription;
+
+    /**
+     * Constructor
+     *
+     * @param reservation space for the body
+     * @param eTag        the response ETag, or null
+     */
+    private StoreBodySubscriber(BinaryStore.Reservation reservation, String eTag) {
+        this.reservation = reservation;
+        this.eTag = eTag;
+    }
+
+    /**
+     * Creates a body handler that downloads successful responses into the passed store. Any other response
+     * fails, with the status and the start of the body - S3's error document - in the message.
+     *
+     * @param store the store to download into
+     * @return the handler
+     */
+    static HttpResponse.BodyHandler<BinaryObject> handler(BinaryStore store) {
+        return info -> {
+            if (info.statusCode() != 200) {
+                return HttpResponse.BodySubscribers.mapping(
+                        HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8), body -> {
+                    throw new StatusException(info.statusCode(), body.substring(0, Math.min(body.length(), 200)));
+                });
+            }
+            long length = info.headers().firstValueAsLong("content-length").orElse(-1);
+            try {
+                if (length < 0) {
+                    throw new IOException("The response has no content length");
+                }
+                return new StoreBodySubscriber(store.reserve(Math.toIntExact(length)),
+                        info.headers().firstValue("etag").orElse(null));
+            } catch (IOException | ArithmeticException e) {
+                return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.discarding(), v -> {
+                    throw new RuntimeException("Could not store a response of length " + length, e);
+                });
+            }
+        };
+    }
+
+    @Override
+    public CompletionStage<BinaryObject> getBody() {
+        return future;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription s) {
+        subscription = s;
+        s.request(1);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> buffers) {
+        try {
+            for (ByteBuffer buf : buffers) {
+                reservation.write(buf);
+            }
+            subscription.request(1);
+        } catch (IOException e) {
+            subscription.cancel();
+            onError(e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        reservation.abandon();
+        future.completeExceptionally(t);
+    }
+
+    @Override
+    public void onComplete() {
+        try {
+            future.complete(BinaryObject.withETag(reservation.finish(), eTag));
+        } catch (IOException e) {
+            onError(e);
+        }
+    }
+
+    /**
+     * A response other than 200
+     */
+    static class StatusException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        StatusException(int status, String body) {
+            super("HTTP " + status + ": " + body);
+            this.status = status;
+        }
+    }
+}
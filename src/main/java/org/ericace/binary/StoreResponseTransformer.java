@@ -0,0 +1,126 @@
+package org.ericace.binary;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.async.SdkPublisher;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Downloads an S3 object straight into a {@link BinaryStore}. When the response arrives, space for the content
+ * length is reserved in the store, and each buffer from the response stream is written into the reservation as it
+ * arrives. So no per-object file is created, and nothing is copied after the download.
+ * <p>
+ * The SDK calls {@link #prepare} again if it retries the request, in which case any partly filled reservation is
+ * abandoned and a new one is made when the retried response arrives.
+ */
+class StoreResponseTransformer implements AsyncResponseTransformer<GetObjectResponse, BinaryObject> {
+
+    private final BinaryStore store;
+
+    private CompletableFuture<BinaryObject> future;
+
+    /**
+     * The space being filled. Null until the response arrives, and once it is finished or abandoned.
+     */
+    private BinaryStore.Reservation reservation;
+
+    /**
+     * The ETag of the response being downloaded
+     */
+    private String eTag;
+
+    /**
+     * Constructor
+     *
+     * @param store the store to download into
+     */
+    StoreResponseTransformer(BinaryStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public synchronized CompletableFuture<BinaryObject> prepare() {
+        abandon();
+        future = new CompletableFuture<>();
+        return future;
+    }
+
+    @Override
+    public synchronized void onResponse(GetObjectResponse response) {
+        try {
+            reservation = store.reserve(Math.toIntExact(response.contentLength()));
+            eTag = response.eTag();
+        } catch (IOException | ArithmeticException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public void onStream(SdkPublisher<ByteBuffer> publisher) {
+        publisher.subscribe(new Subscriber<>() {
+            private Subscription subscription;
+
+            @Override
+            public void onSubscribe(Subscription s) {
+                subscription = s;
+                if (future.isDone()) {
+                    s.cancel();
+                } else {
+                    s.request(1);
+                }
+            }
+
+            @Override
+            public void onNext(ByteBuffer buf) {
+                try {
+                    synchronized (StoreResponseTransformer.this) {
+                        reservation.write(buf);
+                    }
+                    subscription.request(1);
+                } catch (IOException e) {
+                    subscription.cancel();
+                    exceptionOccurred(e);
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                exceptionOccurred(t);
+            }
+
+            @Override
+            public void onComplete() {
+                synchronized (StoreResponseTransformer.this) {
+                    try {
+                        BinaryObject obj = BinaryObject.withETag(reservation.finish(), eTag);
+                        reservation = null;
+                        future.complete(obj);
+                    } catch (IOException e) {
+                        exceptionOccurred(e);
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public synchronized void exceptionOccurred(Throwable error) {
+        abandon();
+        future.completeExceptionally(error);
+    }
+
+    /**
+     * Gives up the current reservation, if any
+     */
+    private void abandon() {
+        if (reservation != null) {
+            reservation.abandon();
+            reservation = null;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.ericace.binary;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Opens a provider's connections before the archive clock starts, by sending one HEAD per connection
+ * concurrently. The HEADs pay for DNS, the TCP and TLS handshakes, credential resolution and the SDK's lazy
+ * initialization, and leave the connections in the client's pool. A failed HEAD is logged and counted but doesn't
+ * fail the warm-up - the GET that would have used the connection will report the real problem.
+ */
+final class WarmUp {
+
+    private static final Logger logger = LogManager.getLogger(WarmUp.class);
+
+    private WarmUp() {
+    }
+
+    /**
+     * Sends the HEADs with an async client
+     *
+     * @param connections the number of concurrent HEADs
+     * @param keys        the keys to HEAD, in turn
+     * @param head        starts a HEAD of a key
+     */
+    static void async(int connections, KeyCatalog keys, Function<String, CompletableFuture<?>> head) {
+        List<CompletableFuture<?>> heads = new ArrayList<>(connections);
+        for (int i = 0; i < connections; ++i) {
+            heads.add(head.apply(keys.get(i % keys.size())));
+        }
+        int failed = 0;
+        for (CompletableFuture<?> f : heads) {
+            try {
+                f.join();
+            } catch (RuntimeException e) {
+                if (failed++ == 0) {
+                    logger.error("Warm-up HEAD failed: {}", e.getMessage());
+                }
+            }
+        }
+        logger.info("Warmed up {} connections, {} failed", connections - failed, failed);
+    }
+
+    /**
+     * Sends the HEADs with a blocking client, on one thread per connection
+     *
+     * @param connections the number of concurrent HEADs
+     * @param keys        the keys to HEAD, in turn
+     * @param head        HEADs a key
+     */
+    static void blocking(int connections, KeyCatalog keys, Consumer<String> head) {
+        ExecutorService pool = Executors.newFixedThreadPool(connections);
+        try {
+            async(connections, keys, key -> CompletableFuture.runAsync(() -> head.accept(key), pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
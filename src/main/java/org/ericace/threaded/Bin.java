@@ -1,8 +1,11 @@
 package org.ericace.threaded;
 
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.ericace.Document;
 import org.ericace.binary.BinaryObject;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * "Bin" as in "container", not "bin" as in "binary".
  * <p>
@@ -29,6 +32,11 @@ public class Bin {
     public Document doc;
     public BinaryObject object;
     public long sequence;
+    public boolean spilled;
+    public ZipArchiveEntry zipEntry;
+    public long length;
+    public byte[] tarHeader;
+    public CompletableFuture<String> digests;
 
     public Bin(Document doc, long sequence) {
         this.doc = doc;
@@ -4,14 +4,11 @@ import io.prometheus.client.Counter;
 import io.prometheus.client.Summary;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.ericace.StageTimes;
+import org.ericace.TarHeader;
 import org.ericace.binary.BinaryObject;
 import org.ericace.binary.BinaryService;
 
-import java.time.Instant;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
-
 /**
  * Gets binaries for documents using the instance {@link BinaryService}. Reads from an incoming queue
  * containing documents but no attachments. Gets a binary attachment for a document, and places the
@@ -27,22 +24,11 @@ public class BinaryLoader implements Runnable {
             .help("Count of times the binary loader blocked trying to offer binary to outgoing queue").register();
     private static final Logger logger = LogManager.getLogger(BinaryLoader.class);
 
-    /**
-     * Earliest start - provides most accurate representation of elapsed time for all threads, along with
-     * {@link #latestFinish}
-     */
-    static AtomicLong earliestStart = new AtomicLong(Long.MAX_VALUE);
-
-    /**
-     * Latest finish, along with {@link #earliestStart}
-     */
-    static AtomicLong latestFinish = new AtomicLong(0);
-
     /**
      * Provides {@link Bin} instances holding {@link org.ericace.Document} instances but no
-     * {@link BinaryObject} instances.
+     * {@link BinaryObject} instances: this loader's lane of the dispatch queue.
      */
-    private final BlockingQueue<Bin> incomingQueue;
+    private final DispatchQueue.Lane incomingQueue;
 
     /**
      * Contains {@link Bin} instances into which a {@link BinaryObject} instance has been placed
@@ -55,6 +41,21 @@ public class BinaryLoader implements Runnable {
      */
     private final BinaryService binaryService;
 
+    /**
+     * If not null, deflates each binary into a ZIP entry after it is loaded
+     */
+    private final EntryDeflater deflater;
+
+    /**
+     * Receives the time spent loading, and blocked on the outgoing queue
+     */
+    private final StageTimes stages;
+
+    /**
+     * Receives the bytes downloaded, and when
+     */
+    private final DownloadStats downloads;
+
     /**
      * Enables clean shutdown
      */
@@ -66,46 +67,90 @@ public class BinaryLoader implements Runnable {
      * @param incomingQueue see {@link #incomingQueue}
      * @param outgoingQueue see {@link #outgoingQueue}
      * @param binaryService see {@link #binaryService}
+     * @param deflater      see {@link #deflater}
+     * @param stages        see {@link #stages}
+     * @param downloads     see {@link #downloads}
      */
-    public BinaryLoader(BlockingQueue<Bin> incomingQueue, ReorderingQueue outgoingQueue, BinaryService binaryService) {
-        this.incomingQueue = incomingQueue;
+    public BinaryLoader(DispatchQueue incomingQueue, ReorderingQueue outgoingQueue, BinaryService binaryService,
+                        EntryDeflater deflater, StageTimes stages, DownloadStats downloads) {
+        this.incomingQueue = incomingQueue.lane();
         this.outgoingQueue = outgoingQueue;
         this.binaryService = binaryService;
+        this.deflater = deflater;
+        this.stages = stages;
+        this.downloads = downloads;
     }
 
     /**
      * Takes a {@link Bin} off the instance {@link #incomingQueue} that only has a <code>Document</code> in it. Gets
      * a {@link BinaryObject} representing the document's attachment via the instance {@link BinaryService}.
      * Puts the <code>BinaryObject</code> in the <code>Bin</code>, and puts the modified <code>Bin</code> into
-     * the instance {@link ReorderingQueue}. Handles blocking and empty/full conditions on both incoming, and
-     * outgoing queues via poll/sleep.
+     * the instance {@link ReorderingQueue}. The lane parks the thread while there is no work. The incoming queue
+     * only provides bins within its dispatch window, so the outgoing queue is not expected to reject - the
+     * retry via sleep is retained as a safety net. If a binary can't be loaded, the outgoing queue is failed so
+     * the archive writer stops rather than waiting for the bin, and the loader stops.
      */
     @Override
     public void run() {
         logger.info("Started");
-        Bin bin;
         while (running) {
+            Bin bin = null;
             try {
-                if ((bin = incomingQueue.poll(100, TimeUnit.MILLISECONDS)) == null) {
-                    logger.info("Poll returned null - size = {}", incomingQueue.size());
-                    incomingQueueEmpty.inc();
-                    Thread.sleep(100);
-                } else {
-                    earliestStart.set(Math.min(Instant.now().toEpochMilli(), earliestStart.get()));
-                    bin.object = binaryService.getBinary(bin.doc.getKey());
-                    downloadedBytes.observe(bin.object.getLength());
-                    latestFinish.set(Math.max(Instant.now().toEpochMilli(), latestFinish.get()));
-                    while (!outgoingQueue.add(bin)) {
-                        logger.info("Did not add: {} - sleeping", bin.doc.getName());
-                        outgoingQueueFull.inc();
-                        Thread.sleep(100);
-                    }
-                    logger.info("Added bin with binary to result queue: {}", bin.doc.getName());
-                }
+                bin = incomingQueue.take();
+                load(bin, binaryService, deflater, outgoingQueue, stages, downloads);
             } catch (InterruptedException e) {
                 logger.info("Interrupted - stopping");
                 running = false;
+            } catch (RuntimeException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    logger.info("Interrupted - stopping");
+                } else {
+                    logger.error("Unable to load binary for {}: {}", bin == null ? null : bin.doc.getName(),
+                            e.getMessage());
+                    outgoingQueue.fail(e);
+                }
+                running = false;
             }
         }
     }
+
+    /**
+     * Gets the binary for the document in the passed bin, and adds the bin to the passed outgoing queue, retrying
+     * via sleep if the outgoing queue rejects it. Every bin's binary is downloaded, even if the archive writer
+     * then writes it as a hard link to an earlier entry. Unless the binary is deflated for a ZIP, the bin's TAR
+     * header is serialized here too, so the archive writer doesn't have to. Shared by this class and the {@link LoaderScheduler} workers.
+     *
+     * @param bin           a bin with a document but no binary
+     * @param binaryService gets the binary
+     * @param deflater      if not null, deflates the binary after it is loaded
+     * @param outgoingQueue receives the bin
+     * @param stages        if not null, receives the time spent loading, and blocked on the outgoing queue
+     * @param downloads     receives the bytes downloaded, and when
+     * @throws InterruptedException if interrupted while retrying the add
+     */
+    static void load(Bin bin, BinaryService binaryService, EntryDeflater deflater, ReorderingQueue outgoingQueue,
+                     StageTimes stages, DownloadStats downloads) throws InterruptedException {
+        long start = System.nanoTime();
+        downloads.started();
+        bin.object = binaryService.getBinary(bin.doc.getKey());
+        downloadedBytes.observe(bin.object.getLength());
+        downloads.finished(bin.object.getLength());
+        if (deflater != null) {
+            deflater.deflate(bin);
+        } else {
+            bin.tarHeader = TarHeader.file(bin.doc.getName(), bin.object.getLength(),
+                    System.currentTimeMillis() / 1000);
+        }
+        long loaded = System.nanoTime();
+        while (!outgoingQueue.add(bin)) {
+            logger.info("Did not add: {} - sleeping", bin.doc.getName());
+            outgoingQueueFull.inc();
+            Thread.sleep(100);
+        }
+        if (stages != null) {
+            stages.addBusy(StageTimes.Stage.loaders, loaded - start);
+            stages.addBlocked(StageTimes.Stage.loaders, System.nanoTime() - loaded);
+        }
+        logger.info("Added bin with binary to result queue: {}", bin.doc.getName());
+    }
 }
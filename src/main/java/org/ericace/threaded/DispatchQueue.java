@@ -0,0 +1,388 @@
+package org.ericace.threaded;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Dispatches {@link Bin} instances to {@link BinaryLoader} threads. Replaces a plain FIFO queue with two
+ * behaviors that keep the {@link ReorderingQueue} from filling up with items the archive writer can't use yet:
+ * <ol>
+ *     <li>Pending bins are handed out lowest sequence first, regardless of the order in which they were
+ *         enqueued.</li>
+ *     <li>A bin is only handed out if its sequence is within a <i>window</i> beyond the next sequence that the
+ *         <code>ReorderingQueue</code> will provide to the writer. Since the window is never larger than the
+ *         reordering queue can accept, a loader never completes a download that the reordering queue then
+ *         rejects.</li>
+ * </ol>
+ * The window resizes itself based on reordering queue occupancy: it is halved when the reordering queue is more
+ * than three-quarters full, and grows by a quarter when the reordering queue is less than one-quarter full. It
+ * never shrinks below the minimum, so every loader thread can always have work in flight.
+ * <p>
+ * {@link BinaryLoader} threads don't take bins one at a time under the queue lock. Each loader has a {@link Lane}:
+ * a local deque that it refills with a batch of dispatchable bins under one lock acquisition, and takes from the
+ * head of, touching no other loader's state. Only when its lane is empty does a loader refill it, and only when
+ * nothing is dispatchable does it steal from the tail of another loader's lane - the bins that loader would get
+ * to last - so a thief and the owner rarely contend for the same end of a deque. If there is nothing to steal
+ * either, the loader parks, until an offer, an advance of the writer, or a batch refill elsewhere unparks it.
+ * <p>
+ * So the lock is only taken once per batch, and bins are handed out in sequence order only approximately: a bin
+ * waits behind the others in its lane. The window bounds how far out of order loads complete, which is what the
+ * reordering queue needs. A batch is at most the window divided among the lanes, so one loader can't hoard the
+ * window, and a stalled loader holds up at most one batch - which idle loaders steal once the window stops them
+ * refilling. Since the window never exceeds what the reordering queue can accept and the writer's sequence only
+ * advances, a bin in a lane stays acceptable even if the window shrinks after it was taken.
+ * <p>
+ * The capacity counts bins in lanes as well as pending bins, so that lanes don't let the reader run ahead of the
+ * loaders by more than the capacity.
+ */
+public class DispatchQueue {
+
+    static final Gauge dispatchWindow = Gauge.build().name("dispatch_window")
+            .help("Count of sequences beyond the writer's next sequence that loaders may work on.").register();
+
+    static final Counter stolenBins = Counter.build().name("dispatch_stolen_bins")
+            .help("Count of bins a loader took from another loader's lane.").register();
+
+    private static final Logger logger = LogManager.getLogger(DispatchQueue.class);
+
+    /**
+     * The most bins a lane takes at once
+     */
+    static final int MAX_BATCH = 32;
+
+    /**
+     * Minimum interval between window resizes, so a burst of takes doesn't collapse the window
+     */
+    private static final long RESIZE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Pending bins, lowest sequence at the head
+     */
+    private final PriorityQueue<Bin> bins = new PriorityQueue<>(Comparator.comparingLong((Bin b) -> b.sequence));
+
+    /**
+     * Guards {@link #bins} and the window state
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled when a bin is added, or when the writer advances its sequence - either of which may make the
+     * head bin dispatchable
+     */
+    private final Condition dispatchable = lock.newCondition();
+
+    /**
+     * The queue that the loaders write to. Provides the next sequence and occupancy that drive the window.
+     */
+    private final ReorderingQueue reorderingQueue;
+
+    /**
+     * Max bins - pending or in lanes - before {@link #offer} rejects
+     */
+    private final int capacity;
+
+    /**
+     * The count of bins offered and not yet handed to a loader: those pending, and those in lanes. Only
+     * incremented under the {@link #lock}, so {@link #offer} can't exceed the {@link #capacity}.
+     */
+    private final AtomicInteger count = new AtomicInteger(0);
+
+    /**
+     * Lower bound for {@link #window}
+     */
+    private final int minWindow;
+
+    /**
+     * Upper bound for {@link #window}
+     */
+    private final int maxWindow;
+
+    /**
+     * The current window
+     */
+    private int window;
+
+    /**
+     * When the window was last resized
+     */
+    private long lastResize = System.nanoTime();
+
+    /**
+     * The loaders' lanes
+     */
+    private final List<Lane> lanes = new CopyOnWriteArrayList<>();
+
+    /**
+     * Lanes whose loaders are parked, or about to park, waiting for work
+     */
+    private final Queue<Lane> idle = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Constructor
+     *
+     * @param capacity        see {@link #capacity}
+     * @param reorderingQueue see {@link #reorderingQueue}
+     * @param minWindow       see {@link #minWindow}. Typically the number of loader threads.
+     * @param maxWindow       see {@link #maxWindow}. Clamped to what the reordering queue can accept without
+     *                        rejecting.
+     */
+    public DispatchQueue(int capacity, ReorderingQueue reorderingQueue, int minWindow, int maxWindow) {
+        this.capacity = capacity;
+        this.reorderingQueue = reorderingQueue;
+        this.maxWindow = Math.max(1, Math.min(maxWindow, reorderingQueue.getCapacity() - 1));
+        this.minWindow = Math.max(1, Math.min(minWindow, this.maxWindow));
+        window = this.maxWindow;
+        dispatchWindow.set(window);
+        reorderingQueue.setSequenceListener(this::sequenceAdvanced);
+    }
+
+    /**
+     * Adds a bin if there is capacity
+     *
+     * @param bin the bin to add
+     * @return true if added, false if the queue is full
+     */
+    public boolean offer(Bin bin) {
+        lock.lock();
+        try {
+            if (count.get() >= capacity) {
+                return false;
+            }
+            count.incrementAndGet();
+            bins.add(bin);
+            dispatchable.signal();
+        } finally {
+            lock.unlock();
+        }
+        wakeIdle(1);
+        return true;
+    }
+
+    /**
+     * Creates a lane for a loader thread to take bins from. See the class comments.
+     *
+     * @return the lane
+     */
+    public Lane lane() {
+        Lane lane = new Lane();
+        lanes.add(lane);
+        return lane;
+    }
+
+    /**
+     * Removes and returns the lowest-sequence bin, waiting up to the specified time for one to be enqueued and
+     * to fall within the window. Takes from the pending bins only, not from lanes, so it is for loaders without
+     * a lane - the {@link LoaderScheduler} workers - and must not be mixed with lanes on one queue.
+     *
+     * @param timeout how long to wait
+     * @param unit    units of <code>timeout</code>
+     * @return the bin, or null if none became dispatchable in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Bin poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            Bin head;
+            while ((head = bins.peek()) == null || head.sequence >= reorderingQueue.getNextSequence() + window) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = dispatchable.awaitNanos(nanos);
+            }
+            bins.poll();
+            count.decrementAndGet();
+            // there may be more dispatchable work behind this one
+            if (!bins.isEmpty()) {
+                dispatchable.signal();
+            }
+            return head;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the count of pending bins, including those in lanes
+     */
+    public int size() {
+        return count.get();
+    }
+
+    /**
+     * Unparks up to the passed number of idle loaders
+     */
+    private void wakeIdle(int count) {
+        Lane lane;
+        for (int i = 0; i < count && (lane = idle.poll()) != null; ++i) {
+            lane.queued.set(false);
+            LockSupport.unpark(lane.owner);
+        }
+    }
+
+    /**
+     * Called by the reordering queue each time the writer takes an item. Resizes the window if the resize
+     * interval has elapsed, and wakes loaders since the head bin may now be inside the window.
+     */
+    private void sequenceAdvanced() {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            if (now - lastResize >= RESIZE_INTERVAL_NANOS) {
+                lastResize = now;
+                resizeWindow();
+            }
+            dispatchable.signal();
+        } finally {
+            lock.unlock();
+        }
+        wakeIdle(1);
+    }
+
+    /**
+     * Shrinks or grows the window based on reordering queue occupancy. See the class comments.
+     */
+    private void resizeWindow() {
+        int occupancy = reorderingQueue.size();
+        int reorderCapacity = reorderingQueue.getCapacity();
+        int newWindow = window;
+        if (occupancy > reorderCapacity / 4 * 3) {
+            newWindow = Math.max(minWindow, window / 2);
+        } else if (occupancy < reorderCapacity / 4) {
+            newWindow = Math.min(maxWindow, window + Math.max(1, window / 4));
+        }
+        if (newWindow != window) {
+            logger.info("Resizing dispatch window from {} to {} - reordering queue occupancy={}", window,
+                    newWindow, occupancy);
+            window = newWindow;
+            dispatchWindow.set(window);
+        }
+    }
+
+    /**
+     * One loader's share of the dispatchable bins. Only its loader refills the lane or takes from its head. Other
+     * loaders steal from its tail when they have nothing else to do.
+     */
+    public class Lane {
+        private final ConcurrentLinkedDeque<Bin> local = new ConcurrentLinkedDeque<>();
+
+        /**
+         * True while the lane is in {@link #idle}, so it isn't added twice
+         */
+        private final AtomicBoolean queued = new AtomicBoolean(false);
+
+        private volatile Thread owner;
+
+        private Lane() {
+        }
+
+        /**
+         * Removes and returns the next bin for this lane's loader, parking until there is one
+         *
+         * @return the bin
+         * @throws InterruptedException if interrupted while parked
+         */
+        public Bin take() throws InterruptedException {
+            owner = Thread.currentThread();
+            while (true) {
+                Bin bin = next();
+                if (bin != null) {
+                    count.decrementAndGet();
+                    return bin;
+                }
+                if (queued.compareAndSet(false, true)) {
+                    idle.offer(this);
+                }
+                // work may have arrived before this lane was queued to be woken
+                if ((bin = next()) != null) {
+                    count.decrementAndGet();
+                    return bin;
+                }
+                BinaryLoader.incomingQueueEmpty.inc();
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        }
+
+        /**
+         * @return the bin at the head of this lane, or if the lane is empty the first bin of a refill, or if nothing
+         * is dispatchable a bin stolen from another lane, or null if there is none
+         */
+        private Bin next() {
+            Bin bin = local.pollFirst();
+            if (bin == null && (bin = refill()) == null) {
+                bin = steal();
+            }
+            return bin;
+        }
+
+        /**
+         * Takes the bin at the tail of another lane, trying the lanes from a random one so thieves spread out
+         *
+         * @return the bin, or null if every other lane is empty
+         */
+        private Bin steal() {
+            List<Lane> victims = lanes;
+            int start = ThreadLocalRandom.current().nextInt(victims.size());
+            for (int i = 0; i < victims.size(); ++i) {
+                Lane victim = victims.get((start + i) % victims.size());
+                Bin bin;
+                if (victim != this && (bin = victim.local.pollLast()) != null) {
+                    stolenBins.inc();
+                    return bin;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Takes a batch of dispatchable bins into the lane, and wakes idle loaders to steal from it
+         *
+         * @return the first bin of the batch, or null if none was dispatchable
+         */
+        private Bin refill() {
+            Bin first = null;
+            int taken = 0;
+            lock.lock();
+            try {
+                int batch = Math.max(1, Math.min(MAX_BATCH, window / lanes.size()));
+                long end = reorderingQueue.getNextSequence() + window;
+                Bin head;
+                while (taken < batch && (head = bins.peek()) != null && head.sequence < end) {
+                    bins.poll();
+                    if (first == null) {
+                        first = head;
+                    } else {
+                        local.addLast(head);
+                    }
+                    ++taken;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (taken > 1) {
+                wakeIdle(taken - 1);
+            }
+            return first;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.ericace.threaded;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The bytes downloaded for one archive, and the span of time the downloads took. Kept per archive creator rather
+ * than in statics, so that concurrent jobs on a shared {@link LoaderScheduler} each report their own downloads.
+ * Thread safe.
+ */
+public class DownloadStats {
+
+    /**
+     * Bytes downloaded
+     */
+    private final AtomicLong bytes = new AtomicLong(0);
+
+    /**
+     * Earliest start - provides most accurate representation of elapsed time for all threads, along with
+     * {@link #latestFinish}
+     */
+    private final AtomicLong earliestStart = new AtomicLong(Long.MAX_VALUE);
+
+    /**
+     * Latest finish, along with {@link #earliestStart}
+     */
+    private final AtomicLong latestFinish = new AtomicLong(0);
+
+    /**
+     * Called when a download starts
+     */
+    void started() {
+        earliestStart.accumulateAndGet(Instant.now().toEpochMilli(), Math::min);
+    }
+
+    /**
+     * Called when a download finishes
+     *
+     * @param length the bytes downloaded
+     */
+    void finished(long length) {
+        bytes.addAndGet(length);
+        latestFinish.accumulateAndGet(Instant.now().toEpochMilli(), Math::max);
+    }
+
+    /**
+     * @return the bytes downloaded
+     */
+    long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return the milliseconds from the start of the first download to the finish of the last, or zero if nothing
+     * was downloaded
+     */
+    long getElapsedMillis() {
+        return Math.max(0, latestFinish.get() - earliestStart.get());
+    }
+}
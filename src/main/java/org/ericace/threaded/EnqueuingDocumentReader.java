@@ -4,17 +4,39 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.ericace.Document;
 import org.ericace.DocumentReader;
+import org.ericace.StageTimes;
 
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Reads {@link Document} instances from a {@link DocumentReader} and enqueues them in a queue.
+ * <p>
+ * The reader can be read by more than one partition concurrently - like the slices of a sliced scroll. The
+ * documents are divided into blocks of {@link #BLOCK_SIZE}, and partition <i>p</i> of <i>n</i> reads blocks
+ * <i>p</i>, <i>p + n</i>, <i>p + 2n</i>, ... Reading a block - the part that waits on the store - is concurrent.
+ * Then the partitions take turns in block order to sequence and enqueue what they read, so the documents are
+ * sequenced exactly as a single reader would sequence them, and the {@link ReorderingQueue} restores the one global
+ * order. The turns are what make the interleave deterministic even if a delta index skips documents, since a
+ * block's sequences aren't known until the blocks before it are read. Enqueuing in sequence order also means a
+ * full queue can't be holding later documents while an earlier one waits to be enqueued. At most one block per
+ * partition is held while waiting for its turn.
  */
 public class EnqueuingDocumentReader implements Callable<Long> {
 
     private static final Logger logger = LogManager.getLogger(EnqueuingDocumentReader.class);
 
+    /**
+     * Documents per block when partitioned: a page of a scroll
+     */
+    static final int BLOCK_SIZE = 1000;
+
     /**
      * Provides documents from some external store
      */
@@ -25,49 +47,198 @@ public class EnqueuingDocumentReader implements Callable<Long> {
      * enqueues onto this queue from the {@link #reader}. Entries enqueued here have only <code>Document</code>
      * instances - not <code>BinaryObject</code> instances.
      */
-    private final BlockingQueue<Bin> binQueue;
+    private final DispatchQueue binQueue;
+
+    /**
+     * The number of partitions that read the {@link #reader} concurrently. If one, the reader is read on the
+     * calling thread, one document at a time.
+     */
+    private final int partitions;
+
+    /**
+     * Receives the time spent reading, and blocked on a full queue
+     */
+    private final StageTimes stages;
 
     /**
-     * Running count of documents read from the instance {@link #reader}. Also used as the sequencer.
+     * Running count of documents read from the instance {@link #reader}. Also used as the sequencer. Only changed
+     * by the partition whose turn it is.
      */
     private long documentCount = 0;
 
+    /**
+     * The block whose partition may enqueue. Guarded by <code>this</code>.
+     */
+    private int nextBlock = 0;
+
+    /**
+     * The first partition failure. Guarded by <code>this</code>.
+     */
+    private Throwable failure;
+
     /**
      * Constructor
      *
      * @param reader   see {@link #reader}
      * @param binQueue see {@link #binQueue}
      */
-    public EnqueuingDocumentReader(DocumentReader reader, BlockingQueue<Bin> binQueue) {
+    public EnqueuingDocumentReader(DocumentReader reader, DispatchQueue binQueue) {
+        this(reader, binQueue, 1, new StageTimes());
+    }
+
+    /**
+     * Constructor for a partitioned reader
+     *
+     * @param reader     see {@link #reader}
+     * @param binQueue   see {@link #binQueue}
+     * @param partitions see {@link #partitions}
+     * @param stages     see {@link #stages}
+     */
+    public EnqueuingDocumentReader(DocumentReader reader, DispatchQueue binQueue, int partitions,
+                                   StageTimes stages) {
         this.reader = reader;
         this.binQueue = binQueue;
+        this.partitions = Math.max(1, partitions);
+        this.stages = stages;
     }
 
     /**
      * Reads {@link Document} instances from the instance {@link #reader}. For each document, creates a {@link Bin}
      * and places the document in the bin, along with a sequence number representing the order in which the doc
      * was read. Then places the <code>Bin</code> into the instance {@link #binQueue}. Handles the queue being
-     * full by offer/sleep.
+     * full by offer/sleep. If there is more than one partition, they read on their own threads, and this thread
+     * waits for them.
      *
      * @return the count of documents that were read
      */
     @Override
     public Long call() {
-        for (Document doc : reader) {
-            ++documentCount;
-            Bin bin = new Bin(doc, documentCount);
-            while (!binQueue.offer(bin)) {
-                logger.info("Document queue full at: {}", doc.getName());
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
+        if (partitions == 1) {
+            Iterator<Document> docs = reader.iterator();
+            while (true) {
+                long start = System.nanoTime();
+                Document doc = docs.hasNext() ? docs.next() : null;
+                stages.addBusy(StageTimes.Stage.reader, System.nanoTime() - start);
+                if (doc == null) {
+                    break;
+                }
+                if (!enqueue(doc)) {
                     logger.info("Interrupted: read {} documents from reader", documentCount);
                     return documentCount;
                 }
             }
-            logger.info("Added doc to doc queue: {}", doc.getName());
+            logger.info("Done: read {} documents from reader", documentCount);
+            return documentCount;
         }
-        logger.info("Done: read {} documents from reader", documentCount);
+        int blocks = (int) (((long) reader.size() + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        ExecutorService pool = Executors.newFixedThreadPool(partitions);
+        try {
+            List<Future<?>> reads = new ArrayList<>(partitions);
+            for (int i = 0; i < partitions; ++i) {
+                int partition = i;
+                reads.add(pool.submit(() -> readPartition(partition, blocks)));
+            }
+            for (Future<?> read : reads) {
+                read.get();
+            }
+        } catch (InterruptedException e) {
+            logger.info("Interrupted: read {} documents from reader", getDocumentCount());
+            return getDocumentCount();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        logger.info("Done: read {} documents from reader in {} partitions", documentCount, partitions);
         return documentCount;
     }
+
+    /**
+     * Reads and enqueues the blocks of one partition
+     *
+     * @param partition the partition
+     * @param blocks    the number of blocks in the reader
+     */
+    private void readPartition(int partition, int blocks) {
+        try {
+            for (int block = partition; block < blocks; block += partitions) {
+                int offset = block * BLOCK_SIZE;
+                long start = System.nanoTime();
+                List<Document> docs = new ArrayList<>(BLOCK_SIZE);
+                for (Document doc : reader.slice(offset, Math.min(BLOCK_SIZE, reader.size() - offset))) {
+                    docs.add(doc);
+                }
+                stages.addBusy(StageTimes.Stage.reader, System.nanoTime() - start);
+                if (!awaitTurn(block)) {
+                    return;
+                }
+                try {
+                    for (Document doc : docs) {
+                        if (!enqueue(doc)) {
+                            return;
+                        }
+                    }
+                } finally {
+                    endTurn();
+                }
+            }
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                if (failure == null) {
+                    failure = e;
+                }
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until the passed block may be enqueued
+     *
+     * @return false if interrupted, or another partition failed
+     */
+    private synchronized boolean awaitTurn(int block) {
+        try {
+            while (nextBlock != block && failure == null) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            return false;
+        }
+        return failure == null;
+    }
+
+    private synchronized void endTurn() {
+        ++nextBlock;
+        notifyAll();
+    }
+
+    private synchronized long getDocumentCount() {
+        return documentCount;
+    }
+
+    /**
+     * Sequences a document and enqueues it. Keys are claimed here because this is in sequence order, so a link
+     * always refers to an earlier entry.
+     *
+     * @return false if interrupted while waiting for the queue to accept it
+     */
+    private boolean enqueue(Document doc) {
+        ++documentCount;
+        Bin bin = new Bin(doc, documentCount);
+        long start = System.nanoTime();
+        try {
+            while (!binQueue.offer(bin)) {
+                logger.info("Document queue full at: {}", doc.getName());
+                Thread.sleep(100);
+            }
+        } catch (InterruptedException e) {
+            return false;
+        } finally {
+            stages.addBlocked(StageTimes.Stage.reader, System.nanoTime() - start);
+        }
+        logger.info("Added doc to doc queue: {}", doc.getName());
+        return true;
+    }
 }
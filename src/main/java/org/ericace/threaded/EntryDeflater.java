@@ -0,0 +1,144 @@
+package org.ericace.threaded;
+
+import com.github.luben.zstd.Zstd;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.ericace.EntryDigester;
+import org.ericace.ZstdDictionary;
+import org.ericace.binary.BinaryObject;
+import org.ericace.binary.DeflatedBinaryObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Deflates the binary in a bin into a ZIP entry. Runs on the loader threads right after each binary is loaded,
+ * so compression is spread across all loaders, and the bins in the reordering queue hold compressed binaries.
+ * The archive writer then copies each pre-compressed entry into the archive in document order.
+ * <p>
+ * If there is a zstd dictionary, binaries up to {@link DeflatedBinaryObject#MEMORY_THRESHOLD} are compressed
+ * with zstd instead, and sampled to train the dictionary. Once it is trained, they are compressed with it. Each
+ * is a stored entry holding one zstd frame, named like the binary with a {@link ZstdDictionary#FRAME_EXTENSION}
+ * extension - since ZIP tools that support zstd entries can't use a dictionary - so that the entries can be
+ * extracted with <code>unzip</code>, and decompressed with <code>zstd -d -D</code>. Larger binaries are deflated:
+ * they compress fine on their own, and the dictionary helps the tiny ones most.
+ */
+public class EntryDeflater {
+
+    /**
+     * Where large binaries are deflated to. See {@link DeflatedBinaryObject}.
+     */
+    private final Path tmpDir;
+
+    /**
+     * If not null, computes the checksums of each binary while it is being deflated, since the loader is reading
+     * it anyway
+     */
+    private final EntryDigester digester;
+
+    /**
+     * If not null, small binaries are compressed with zstd, and train this dictionary
+     */
+    private final ZstdDictionary dictionary;
+
+    /**
+     * Constructor
+     *
+     * @param tmpDir   see {@link #tmpDir}
+     * @param digester see {@link #digester}
+     */
+    public EntryDeflater(Path tmpDir, EntryDigester digester) {
+        this(tmpDir, digester, null);
+    }
+
+    /**
+     * Constructor for zstd entries
+     *
+     * @param tmpDir     see {@link #tmpDir}
+     * @param digester   see {@link #digester}
+     * @param dictionary see {@link #dictionary}
+     */
+    public EntryDeflater(Path tmpDir, EntryDigester digester, ZstdDictionary dictionary) {
+        this.tmpDir = tmpDir;
+        this.digester = digester;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Replaces the binary in the passed bin with its deflated content, and sets the bin's ZIP entry to describe it,
+     * and the bin's length to the length of the binary. If there is a digester, also sets the bin's checksums.
+     *
+     * @param bin a bin with a document and a binary
+     */
+    void deflate(Bin bin) {
+        BinaryObject source = bin.object;
+        if (digester != null) {
+            BinaryObject loaded = bin.object;
+            source = new BinaryObject() {
+                @Override
+                public int getLength() {
+                    return loaded.getLength();
+                }
+
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    EntryDigester.DigestingInputStream dis = digester.digest(loaded.getInputStream(),
+                            loaded.getETag(), false);
+                    bin.digests = dis.result();
+                    return dis;
+                }
+            };
+        }
+        DeflatedBinaryObject deflated;
+        try {
+            if (dictionary != null && source.getLength() <= DeflatedBinaryObject.MEMORY_THRESHOLD) {
+                deflated = compressZstd(source);
+            } else {
+                deflated = DeflatedBinaryObject.deflate(source, tmpDir, Deflater.DEFAULT_COMPRESSION);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        ZipArchiveEntry entry;
+        if (deflated.getMethod() == ZipEntry.STORED) {
+            entry = new ZipArchiveEntry(bin.doc.getName() + ZstdDictionary.FRAME_EXTENSION);
+            entry.setSize(deflated.getLength());
+        } else {
+            entry = new ZipArchiveEntry(bin.doc.getName());
+            entry.setSize(deflated.getOriginalLength());
+        }
+        entry.setMethod(deflated.getMethod());
+        entry.setCompressedSize(deflated.getLength());
+        entry.setCrc(deflated.getCrc());
+        entry.setTime(System.currentTimeMillis());
+        bin.object = deflated;
+        bin.zipEntry = entry;
+        bin.length = deflated.getOriginalLength();
+    }
+
+    /**
+     * Compresses a small binary into a zstd frame - with the dictionary if it is trained, else sampling it - to
+     * be stored in the ZIP
+     */
+    private DeflatedBinaryObject compressZstd(BinaryObject source) throws IOException {
+        byte[] raw;
+        try (InputStream is = source.getInputStream()) {
+            raw = is.readAllBytes();
+        }
+        byte[] compressed;
+        if (!dictionary.isTrained()) {
+            dictionary.sample(raw, 0, raw.length);
+            compressed = Zstd.compress(raw, ZstdDictionary.LEVEL);
+        } else if (dictionary.getCompressor() != null) {
+            compressed = Zstd.compress(raw, dictionary.getCompressor());
+        } else {
+            compressed = Zstd.compress(raw, ZstdDictionary.LEVEL);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(compressed);
+        return DeflatedBinaryObject.compressed(compressed, crc.getValue(), raw.length, ZipEntry.STORED);
+    }
+}
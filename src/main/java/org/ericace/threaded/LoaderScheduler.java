@@ -0,0 +1,291 @@
+package org.ericace.threaded;
+
+import io.prometheus.client.Counter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.ericace.binary.BinaryService;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pool of binary loader threads shared by many concurrent archive jobs. Each job registers its
+ * {@link DispatchQueue} and {@link ReorderingQueue} as a {@link Source}. The workers use one shared
+ * {@link BinaryService}, so all jobs share one provider and its connection pool.
+ * <p>
+ * Sources are served by weighted-fair scheduling. Each source has a virtual time that advances by
+ * <code>1 / weight</code> each time a worker takes a bin from it, and a worker always serves the source with
+ * the lowest virtual time that has dispatchable work. So two jobs with equal weight get an equal share of the
+ * loaders regardless of their size, and a job with weight 2 gets twice the share of a job with weight 1.
+ * <p>
+ * The ready sources are kept in a priority queue by virtual time. A worker takes the first source out of the queue
+ * under the lock, but polls it for a bin outside the lock, so the workers only serialize on the queue operations.
+ * A source with no dispatchable work is set aside as idle, and the idle sources are checked again every
+ * {@link #IDLE_WAIT_MILLIS}. A newly registered or reactivated source starts no earlier than the virtual time of
+ * the source served last, so it gets no credit for the time before it arrived or while it was idle - which would
+ * otherwise let it take every loader in a burst and starve the other jobs.
+ */
+public class LoaderScheduler {
+
+    static final Counter jobBinsLoaded = Counter.build().name("service_job_binaries_loaded")
+            .help("Count of binaries loaded for each archive job.").labelNames("job").register();
+
+    private static final Logger logger = LogManager.getLogger(LoaderScheduler.class);
+
+    /**
+     * How long an idle worker waits before looking for work again, in milliseconds
+     */
+    private static final long IDLE_WAIT_MILLIS = 20;
+
+    /**
+     * Gets binaries for all jobs
+     */
+    private final BinaryService binaryService;
+
+    /**
+     * Runs the workers
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Registered sources, in registration order. Guarded by {@link #lock}.
+     */
+    private final List<Source> sources = new ArrayList<>();
+
+    /**
+     * Registered sources that may have dispatchable work, lowest virtual time first. A source being polled is out
+     * of the queue, and its virtual time only changes then. Guarded by {@link #lock}.
+     */
+    private final PriorityQueue<Source> ready = new PriorityQueue<>(
+            Comparator.comparingDouble((Source s) -> s.virtualTime).thenComparingLong(s -> s.order));
+
+    /**
+     * Registered sources that had no dispatchable work when they were last polled. Guarded by {@link #lock}.
+     */
+    private final List<Source> idle = new ArrayList<>();
+
+    /**
+     * The virtual time of the source served last, which only increases. Guarded by {@link #lock}.
+     */
+    private double virtualTime = 0;
+
+    /**
+     * When the idle sources were last moved back to {@link #ready}, from {@link System#nanoTime}. Guarded by
+     * {@link #lock}.
+     */
+    private long idleChecked = System.nanoTime();
+
+    /**
+     * Orders sources with equal virtual times by registration. Guarded by {@link #lock}.
+     */
+    private long registrations = 0;
+
+    /**
+     * Guards the scheduling state
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Signalled when a source is added to {@link #ready}
+     */
+    private final Condition sourceReady = lock.newCondition();
+
+    /**
+     * Set false by {@link #shutdown} so workers can tell an interrupted download from a failed one
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Constructor. Starts the workers.
+     *
+     * @param threads       the number of worker threads
+     * @param binaryService see {@link #binaryService}
+     */
+    public LoaderScheduler(int threads, BinaryService binaryService) {
+        this.binaryService = binaryService;
+        executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; ++i) {
+            executor.submit(this::work);
+        }
+    }
+
+    /**
+     * Registers a job's queues with the scheduler
+     *
+     * @param name      the job name, used as a metric label
+     * @param incoming  provides bins with documents
+     * @param outgoing  receives bins with binaries
+     * @param weight    the job's share relative to other jobs. Must be positive.
+     * @param deflater  if not null, deflates each binary into a ZIP entry after it is loaded
+     * @param downloads receives the bytes downloaded for the job, and when
+     * @return the registered source, to pass to {@link #unregister} when the job is done
+     */
+    public Source register(String name, DispatchQueue incoming, ReorderingQueue outgoing, int weight,
+                           EntryDeflater deflater, DownloadStats downloads) {
+        lock.lock();
+        try {
+            Source source = new Source(name, incoming, outgoing, weight, deflater, downloads, virtualTime,
+                    registrations++);
+            sources.add(source);
+            ready.add(source);
+            sourceReady.signal();
+            logger.info("Registered job {} with weight {}", name, weight);
+            return source;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Unregisters a job's queues, and removes the job's metrics
+     *
+     * @param source the source returned by {@link #register}
+     */
+    public void unregister(Source source) {
+        lock.lock();
+        try {
+            source.registered = false;
+            sources.remove(source);
+            ready.remove(source);
+            idle.remove(source);
+            jobBinsLoaded.remove(source.name);
+            logger.info("Unregistered job {}", source.name);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the workers
+     */
+    public void shutdown() {
+        running = false;
+        executor.shutdownNow();
+    }
+
+    /**
+     * The worker loop. Takes the next bin per the scheduling policy and loads it. If a bin can't be loaded, its
+     * job's outgoing queue is failed, so the job's archive writer stops rather than waiting for the bin, and the
+     * job's remaining bins are not served.
+     */
+    private void work() {
+        logger.info("Started");
+        try {
+            while (running) {
+                Source source;
+                lock.lockInterruptibly();
+                try {
+                    reactivate(false);
+                    source = ready.poll();
+                    if (source == null) {
+                        if (!sourceReady.await(IDLE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                            reactivate(true);
+                        }
+                        continue;
+                    }
+                    virtualTime = Math.max(virtualTime, source.virtualTime);
+                } finally {
+                    lock.unlock();
+                }
+                Bin bin = source.outgoing.isFailed() ? null : source.incoming.poll(0, TimeUnit.MILLISECONDS);
+                lock.lock();
+                try {
+                    if (bin != null) {
+                        source.virtualTime += 1D / source.weight;
+                    }
+                    requeue(source, bin != null);
+                } finally {
+                    lock.unlock();
+                }
+                if (bin == null) {
+                    continue;
+                }
+                try {
+                    BinaryLoader.load(bin, binaryService, source.deflater, source.outgoing, null, source.downloads);
+                    jobBinsLoaded.labels(source.name).inc();
+                } catch (RuntimeException e) {
+                    if (!running) {
+                        break;
+                    }
+                    logger.error("Unable to load binary for {} in job {}: {}", bin.doc.getName(), source.name,
+                            e.getMessage());
+                    source.outgoing.fail(e);
+                }
+            }
+        } catch (InterruptedException e) {
+            // NOP
+        }
+        logger.info("Interrupted - stopping");
+    }
+
+    /**
+     * Returns a polled source to the scheduler: to {@link #ready} if it provided a bin, else to {@link #idle}. A
+     * source that was unregistered while it was polled, or whose job failed, is dropped. Called under the lock.
+     */
+    private void requeue(Source source, boolean dispatched) {
+        if (!source.registered || source.outgoing.isFailed()) {
+            return;
+        }
+        if (dispatched) {
+            ready.add(source);
+            sourceReady.signal();
+        } else {
+            idle.add(source);
+        }
+    }
+
+    /**
+     * Moves the idle sources back to {@link #ready} to be polled again, if they were last checked at least
+     * {@link #IDLE_WAIT_MILLIS} ago. A source's virtual time is clamped to the current virtual time, so it gets no
+     * credit for the time it was idle. Called under the lock.
+     *
+     * @param force move them regardless of when they were last checked
+     */
+    private void reactivate(boolean force) {
+        long now = System.nanoTime();
+        if (idle.isEmpty() || !force && now - idleChecked < TimeUnit.MILLISECONDS.toNanos(IDLE_WAIT_MILLIS)) {
+            return;
+        }
+        idleChecked = now;
+        for (Source source : idle) {
+            source.virtualTime = Math.max(source.virtualTime, virtualTime);
+            ready.add(source);
+        }
+        idle.clear();
+        sourceReady.signalAll();
+    }
+
+    /**
+     * One job's queues, and its scheduling state
+     */
+    public static class Source {
+        private final String name;
+        private final DispatchQueue incoming;
+        private final ReorderingQueue outgoing;
+        private final int weight;
+        private final EntryDeflater deflater;
+        private final DownloadStats downloads;
+        private final long order;
+        private double virtualTime;
+        private boolean registered = true;
+
+        private Source(String name, DispatchQueue incoming, ReorderingQueue outgoing, int weight,
+                       EntryDeflater deflater, DownloadStats downloads, double virtualTime, long order) {
+            this.name = name;
+            this.incoming = incoming;
+            this.outgoing = outgoing;
+            this.weight = weight;
+            this.deflater = deflater;
+            this.downloads = downloads;
+            this.virtualTime = virtualTime;
+            this.order = order;
+        }
+    }
+}
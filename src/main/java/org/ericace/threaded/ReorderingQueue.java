@@ -1,20 +1,49 @@
 package org.ericace.threaded;
 
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.ericace.binary.BinaryObject;
+import org.ericace.binary.Spool;
 
+import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Accepts {@link Bin} instances <b>out of order</b> from multiple concurrent producers via the {@link #add(Bin)}
  * method, and provides the instances <b>in order</b> to a consumer (or consumers.) via the {@link #take()}
  * method.
+ * <p>
+ * Optionally, the queue has a disk tier. Once the in-memory tier is full, the binaries of further out-of-order
+ * bins are copied into an append-only {@link Spool} rather than rejected, and the bins keep only their document
+ * and a reference to the spooled slice. A binary that is already {@link BinaryObject#isOnDisk on disk} takes a
+ * disk tier slot without being copied. The consumer reads spilled binaries back from the spool in order. This
+ * means a single slow early sequence doesn't stop downloads until the disk tier is also full.
+ * <p>
+ * The consumer waits on the instance monitor, which is notified when the next sequence arrives, when the total is
+ * set, and when the queue fails, so it takes the next bin as soon as it is added.
  */
 public class ReorderingQueue {
 
+    static final Gauge depth = Gauge.build().name("reordering_queue_depth")
+            .help("Count of bins with binaries held by the reordering queue.").register();
+    static final Gauge spilled = Gauge.build().name("reordering_queue_spilled")
+            .help("Count of bins held by the reordering queue whose binaries are spilled to disk.").register();
+    static final Gauge headOfLineWait = Gauge.build().name("reordering_queue_head_of_line_wait_seconds")
+            .help("How long the consumer has been waiting for the next sequence to arrive.").register();
+    static final Counter headOfLineWaitTotal = Counter.build().name("reordering_queue_head_of_line_blocked_seconds")
+            .help("Cumulative time the consumer has spent waiting for the next sequence to arrive.").register();
+
     private static final Logger logger = LogManager.getLogger(ReorderingQueue.class);
 
+    /**
+     * How often a waiting consumer refreshes the {@link #headOfLineWait} gauge, in milliseconds
+     */
+    static final long GAUGE_REFRESH_MILLIS = 1000;
+
     /**
      * <code>Bin</code> instances are cached here to be provided to consumers
      */
@@ -38,11 +67,49 @@ public class ReorderingQueue {
      */
     final private AtomicLong itemsReturned = new AtomicLong(0);
 
+    /**
+     * Time {@link #take} has waited for the next sequence while later sequences were already held: the time one
+     * slow item held up the consumer
+     */
+    final private AtomicLong headOfLineNanos = new AtomicLong(0);
+
     /**
      * Internal cache size
      */
     final private int capacity;
 
+    /**
+     * The disk tier, or null if the queue has only an in-memory tier
+     */
+    private final Spool spool;
+
+    /**
+     * The number of bins that may have their binaries spilled to the {@link #spool}
+     */
+    private final int spillCapacity;
+
+    /**
+     * The number of bins currently held whose binaries are in the {@link #spool}
+     */
+    private final AtomicInteger spilledCount = new AtomicInteger(0);
+
+    /**
+     * The number of bins currently held whose binaries are in memory. Guarded by <code>this</code>, so that
+     * {@link #add} checks and takes a slot atomically.
+     */
+    private int inMemory = 0;
+
+    /**
+     * Optionally notified each time the next sequence advances, so upstream dispatch can react without polling
+     */
+    private volatile Runnable sequenceListener = () -> {};
+
+    /**
+     * Set by {@link #fail} when a producer can't provide a bin, so that {@link #take} stops rather than waiting for
+     * the missing sequence forever
+     */
+    private volatile Throwable failure;
+
     /**
      * Constructor
      *
@@ -50,7 +117,20 @@ public class ReorderingQueue {
      *                 by producers
      */
     public ReorderingQueue(int capacity) {
+        this(capacity, null, 0);
+    }
+
+    /**
+     * Constructor for a queue with a disk tier
+     *
+     * @param capacity      the number of items that the in-memory tier will hold before spilling
+     * @param spool         the disk tier, or null for none
+     * @param spillCapacity the number of items that may be spilled before adds are rejected
+     */
+    public ReorderingQueue(int capacity, Spool spool, int spillCapacity) {
         this.capacity = capacity;
+        this.spool = spool;
+        this.spillCapacity = spool == null ? 0 : spillCapacity;
         map = new ConcurrentHashMap<>(capacity);
     }
 
@@ -64,7 +144,73 @@ public class ReorderingQueue {
      */
     public void setTotalItems(long totalItems) {
         logger.info("Setting total items: {}", totalItems);
-        this.totalItems.set(totalItems);
+        synchronized (this) {
+            this.totalItems.set(totalItems);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Registers a listener that is run on the consumer thread each time an item is taken and the next sequence
+     * advances. Replaces any previously registered listener.
+     *
+     * @param sequenceListener the listener
+     */
+    public void setSequenceListener(Runnable sequenceListener) {
+        this.sequenceListener = sequenceListener;
+    }
+
+    /**
+     * Fails the queue because a producer can't provide a bin - for example, because its binary could not be
+     * loaded. The consumer gets the failure from {@link #take()} as soon as it waits, instead of waiting for the
+     * missing bin forever. Only the first failure is kept.
+     *
+     * @param cause why the bin can't be provided
+     */
+    public void fail(Throwable cause) {
+        synchronized (this) {
+            if (failure != null) {
+                return;
+            }
+            failure = cause;
+            notifyAll();
+        }
+        logger.error("Failed: {}", cause.getMessage());
+    }
+
+    /**
+     * @return true if {@link #fail} was called
+     */
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * @return the sequence of the next <code>Bin</code> that {@link #take()} will return
+     */
+    public long getNextSequence() {
+        return nextSequence.get();
+    }
+
+    /**
+     * @return the nanoseconds {@link #take} has waited for the next sequence while later ones were held
+     */
+    public long getHeadOfLineNanos() {
+        return headOfLineNanos.get();
+    }
+
+    /**
+     * @return the count of items currently held
+     */
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * @return the count of items the internal cache holds before rejecting adds, across both tiers
+     */
+    public int getCapacity() {
+        return capacity + spillCapacity;
     }
 
     /**
@@ -72,24 +218,51 @@ public class ReorderingQueue {
      * blocks if no instances are available in order. Order is determined by the <code>sequence</code> field of
      * the <code>Bin</code> class.
      *
-     * @return the next <code>Bin instance</code>
-     * @throws InterruptedException per <code>Thread.sleep</code>
+     * @return the next <code>Bin instance</code>, or null once the total items have been returned
+     * @throws InterruptedException if interrupted while waiting
+     * @throws RuntimeException     if the queue has {@link #fail failed}
      */
     public Bin take() throws InterruptedException {
-        while (!map.containsKey(nextSequence.get())) {
-            Thread.sleep(100);
-            if (totalItems.get() >= 0 && itemsReturned.get() >= totalItems.get()) {
-                return null;
+        long waitStart = System.nanoTime();
+        Bin bin;
+        try {
+            synchronized (this) {
+                while ((bin = map.get(nextSequence.get())) == null) {
+                    if (failure != null) {
+                        throw new RuntimeException("Bin " + nextSequence.get() + " can't be provided", failure);
+                    }
+                    if (totalItems.get() >= 0 && itemsReturned.get() >= totalItems.get()) {
+                        return null;
+                    }
+                    boolean later = !map.isEmpty();
+                    long waitedFrom = System.nanoTime();
+                    wait(GAUGE_REFRESH_MILLIS);
+                    if (later) {
+                        headOfLineNanos.addAndGet(System.nanoTime() - waitedFrom);
+                    }
+                    headOfLineWait.set((System.nanoTime() - waitStart) / 1e9);
+                }
             }
+        } finally {
+            headOfLineWaitTotal.inc((System.nanoTime() - waitStart) / 1e9);
+            headOfLineWait.set(0);
+        }
+        map.remove(bin.sequence);
+        depth.dec();
+        if (bin.spilled) {
+            spilledCount.decrementAndGet();
+            spilled.dec();
         }
-        Bin bin = map.get(nextSequence.get());
-        map.remove(nextSequence.get());
         long nextSeq;
         long returned;
         synchronized (this) {
+            if (!bin.spilled) {
+                --inMemory;
+            }
             nextSeq = nextSequence.incrementAndGet();
             returned = itemsReturned.incrementAndGet();
         }
+        sequenceListener.run();
         logger.info("Took bin for doc {}; next sequence={}; items returned={}; total items={}", bin.doc.getName(),
                 nextSeq, returned, totalItems.get());
         return bin;
@@ -97,21 +270,51 @@ public class ReorderingQueue {
 
     /**
      * Adds a <code>Bin</code> instance to the internal cache. Entries can be added out of order. Once
-     * the internal cache is full, no more entries are accepted.
+     * the in-memory tier is full, entries are spilled to the disk tier if there is one. Once both are full,
+     * no more entries are accepted.
+     * <p>
+     * The capacity check and the insert - or, for a spill, the reservation of a disk slot - are made under one
+     * lock, so concurrent producers can't overfill either tier. The spill copy itself runs outside the lock, and
+     * the spilled bin is inserted once its binary is in the spool.
      *
      * @param bin The instance to add
      * @return True if added, else false
      */
     public boolean add(Bin bin) {
-        if (canAdd(bin)) {
-            map.put(bin.sequence, bin);
-            logger.info("Added bin to queue: {}, queue size={}", bin.doc.getName(), map.size());
-            return true;
-        } else {
-            logger.info("Can't add {} - bin sequence={}, last sequence={}, map size={}", bin.doc.getName(),
-                    bin.sequence, nextSequence.get(), map.size());
+        synchronized (this) {
+            if (canAdd(bin)) {
+                map.put(bin.sequence, bin);
+                ++inMemory;
+                depth.inc();
+                notifyIfNext(bin);
+                logger.info("Added bin to queue: {}, queue size={}", bin.doc.getName(), map.size());
+                return true;
+            }
+            if (!reserveSpill()) {
+                logger.info("Can't add {} - bin sequence={}, last sequence={}, map size={}", bin.doc.getName(),
+                        bin.sequence, nextSequence.get(), map.size());
+                return false;
+            }
+        }
+        if (!spill(bin)) {
             return false;
         }
+        synchronized (this) {
+            map.put(bin.sequence, bin);
+            notifyIfNext(bin);
+        }
+        depth.inc();
+        logger.info("Added bin to queue: {}, queue size={}", bin.doc.getName(), map.size());
+        return true;
+    }
+
+    /**
+     * Wakes the consumer if the passed bin, just added, is the one it waits for. Caller must hold the instance lock.
+     */
+    private void notifyIfNext(Bin bin) {
+        if (bin.sequence == nextSequence.get()) {
+            notifyAll();
+        }
     }
 
     /**
@@ -125,6 +328,44 @@ public class ReorderingQueue {
      * @return true if it can be added per rules as described
      */
     private boolean canAdd(Bin bin) {
-        return bin.sequence - 1 == nextSequence.get() || map.size() < capacity - 1;
+        return bin.sequence == nextSequence.get() || inMemory < capacity - 1;
+    }
+
+    /**
+     * Reserves a slot in the disk tier. Caller must hold the instance lock.
+     *
+     * @return true if the queue has a disk tier with a free slot, which is now reserved
+     */
+    private boolean reserveSpill() {
+        if (spool == null || spilledCount.get() >= spillCapacity) {
+            return false;
+        }
+        spilledCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Spills a bin into a slot reserved by {@link #reserveSpill} by copying its binary into the spool and replacing
+     * the bin's binary with the spooled copy. Runs on the producer's thread, so the cost of spilling is not borne by
+     * the consumer. Gives up the slot if the copy fails. A binary that is already on disk isn't copied, since it
+     * holds no memory: it only takes the slot.
+     *
+     * @param bin the instance that the caller wants to add
+     * @return true if the bin was spilled and can be added
+     */
+    private boolean spill(Bin bin) {
+        try {
+            if (!bin.object.isOnDisk()) {
+                bin.object = spool.append(bin.object);
+            }
+        } catch (IOException e) {
+            logger.error("Unable to spill {} - {}", bin.doc.getName(), e.getMessage());
+            spilledCount.decrementAndGet();
+            return false;
+        }
+        bin.spilled = true;
+        spilled.inc();
+        logger.info("Spilled bin to disk: {}, spilled count={}", bin.doc.getName(), spilledCount.get());
+        return true;
     }
 }
@@ -1,31 +1,60 @@
 package org.ericace.threaded;
 
-import org.apache.commons.compress.archivers.ArchiveOutputStream;
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
-import org.apache.commons.compress.utils.IOUtils;
+import io.prometheus.client.Gauge;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.ericace.ArchiveCreator;
+import org.ericace.ArchiveFormat;
+import org.ericace.ArchiveSink;
+import org.ericace.BlockGzipOutputStream;
+import org.ericace.DedupIndex;
+import org.ericace.EntryDigester;
 import org.ericace.DocumentReader;
+import org.ericace.MeteredOutputStream;
 import org.ericace.Metrics;
+import org.ericace.StageTimes;
 import org.ericace.SingleThreadArchiveCreator;
+import org.ericace.TarHeader;
+import org.ericace.TarSegment;
+import org.ericace.TarWriter;
+import org.ericace.TimedInputStream;
+import org.ericace.ZstdDictionary;
+import org.ericace.ZstdDictionaryOutputStream;
 import org.ericace.binary.BinaryService;
+import org.ericace.binary.Spool;
 
-import java.io.FileOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.sql.Date;
-import java.time.Instant;
+import java.io.OutputStream;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
 
 /**
  * Builds a TAR by concurrently downloading attachments using the passed {@link BinaryService} in parallel via a thread
- * pool. Otherwise, same as the {@link SingleThreadArchiveCreator} class.
+ * pool. Otherwise, same as the {@link SingleThreadArchiveCreator} class. Can also build a ZIP, in which case each
+ * entry is deflated by an {@link EntryDeflater} on the thread that loaded it.
  */
 public class ThreadedArchiveCreator implements ArchiveCreator {
 
+    /**
+     * Depth of the {@link #binaryLoaderQueue}. Backed by a child that reads the queue size at scrape time.
+     */
+    static final Gauge binaryLoaderQueueDepth = Gauge.build().name("binary_loader_queue_depth")
+            .help("Count of documents waiting for a binary loader.").register();
+
+    /**
+     * Same as {@link #binaryLoaderQueueDepth}, for each job run on a shared {@link LoaderScheduler}
+     */
+    static final Gauge jobQueueDepth = Gauge.build().name("service_job_queue_depth")
+            .help("Count of documents waiting for a binary loader, for each archive job.").labelNames("job")
+            .register();
+
     private static final Logger logger = LogManager.getLogger(ThreadedArchiveCreator.class);
 
     /**
@@ -33,9 +62,10 @@ public class ThreadedArchiveCreator implements ArchiveCreator {
      * <p>
      * This queue contains {@link Bin} instances with only a document. The pool of {@link BinaryLoader} instances
      * will read from this queue, get the binary for the doc, put it in the bin, and write the bin to
-     * the {@link #archiveBuilderQueue}.
+     * the {@link #archiveBuilderQueue}. Bins are dispatched lowest sequence first, and only within a window
+     * beyond the next sequence needed by the archive writer.
      */
-    private final BlockingQueue<Bin> binaryLoaderQueue;
+    private final DispatchQueue binaryLoaderQueue;
 
     /**
      * This is the outgoing queue for the class.
@@ -48,7 +78,8 @@ public class ThreadedArchiveCreator implements ArchiveCreator {
 
     /**
      * Runs 'n' threads started by the class: Some number of threads populate the {@link #archiveBuilderQueue}
-     * per the {@link #binaryLoaderThreads} field, one thread populates the {@link #binaryLoaderQueue}, and
+     * per the {@link #binaryLoaderThreads} field, one thread populates the {@link #binaryLoaderQueue} - helped by
+     * its own threads if there are {@link #documentReaders partitions} - and
      * one thread consumes the <code>archiveBuilderQueue</code> to generate the TAR on the filesystem.
      */
     private final ThreadPoolExecutor executor;
@@ -63,6 +94,11 @@ public class ThreadedArchiveCreator implements ArchiveCreator {
      */
     private final DocumentReader reader;
 
+    /**
+     * The number of partitions that read the {@link #reader} concurrently
+     */
+    private final int documentReaders;
+
     /**
      * The service that provides binary attachments for documents
      */
@@ -73,67 +109,214 @@ public class ThreadedArchiveCreator implements ArchiveCreator {
      */
     private final String tarFQPN;
 
+    /**
+     * Where the archive is written. A file named by {@link #tarFQPN} unless the builder specified otherwise.
+     */
+    private final ArchiveSink sink;
+
     /**
      * Metrics accumulation
      */
     private final Metrics metrics;
 
+    /**
+     * Where the time of each stage goes. Those of the {@link #metrics}, if there are metrics.
+     */
+    private final StageTimes stages;
+
+    /**
+     * The bytes downloaded for this archive, and when
+     */
+    private final DownloadStats downloads = new DownloadStats();
+
+    /**
+     * The disk tier of the {@link #archiveBuilderQueue}, or null if it only has an in-memory tier
+     */
+    private final Spool spool;
+
+    /**
+     * If not null, the binaries are loaded by this shared scheduler rather than by loader threads owned by the
+     * class. In that case the class does not shut down the binary provider, since other jobs share it.
+     */
+    private final LoaderScheduler loaderScheduler;
+
+    /**
+     * Identifies the job to the {@link #loaderScheduler}
+     */
+    private final String jobName;
+
+    /**
+     * The job's share of the {@link #loaderScheduler} relative to other jobs
+     */
+    private final int jobWeight;
+
+    /**
+     * If not null, the archive is a ZIP whose entries are deflated by this on the loader threads. Otherwise it is
+     * a gzipped TAR.
+     */
+    private final EntryDeflater deflater;
+
+    /**
+     * Whether to generate a whole TAR, or a segment of one
+     */
+    private final TarSegment segment;
+
+    /**
+     * If not null, the TAR is written as block-gzip with a sidecar index
+     */
+    private final BlockGzipOutputStream.Layout blockGzip;
+
+    /**
+     * If not null, computes checksums of the entries and writes a manifest beside the archive
+     */
+    private final EntryDigester digester;
+
+    /**
+     * If not null, the archive is compressed with zstd using this dictionary: the whole TAR if the archive is not a
+     * ZIP, else the small entries - in which case the {@link #deflater} has the same dictionary
+     */
+    private final ZstdDictionary zstd;
+
+    /**
+     * If not null, a repeated attachment is written as a hard link to the TAR entry that holds its content
+     */
+    private final DedupIndex dedup;
+
     /**
      * Constructor for builder
      */
     private ThreadedArchiveCreator(Builder builder) {
         this.binaryLoaderThreads = builder.binaryLoaderThreads;
         this.reader = builder.reader;
+        this.documentReaders = builder.documentReaders;
         this.binaryService = builder.binaryService;
         this.tarFQPN = builder.tarFQPN;
+        this.sink = builder.sink != null ? builder.sink : ArchiveSink.toFile(builder.tarFQPN);
         this.metrics = builder.metrics;
-
-        archiveBuilderQueue = new ReorderingQueue(builder.memCacheSize);
-        binaryLoaderQueue = new ArrayBlockingQueue<>(builder.memCacheSize);
+        this.spool = builder.spool;
+        this.loaderScheduler = builder.loaderScheduler;
+        this.jobName = builder.jobName;
+        this.jobWeight = builder.jobWeight;
+        this.deflater = builder.deflater;
+        this.segment = builder.segment;
+        this.blockGzip = builder.blockGzip;
+        this.digester = builder.digester;
+        this.zstd = builder.zstd;
+        this.dedup = builder.dedup;
+
+        archiveBuilderQueue = new ReorderingQueue(builder.memCacheSize, builder.spool, builder.spillCapacity);
+        int dispatchWindow = builder.dispatchWindow > 0 ? builder.dispatchWindow : archiveBuilderQueue.getCapacity();
+        binaryLoaderQueue = new DispatchQueue(builder.memCacheSize, archiveBuilderQueue, binaryLoaderThreads,
+                dispatchWindow);
+        stages = metrics != null ? metrics.getStages() : new StageTimes();
+        stages.setThreads(StageTimes.Stage.reader, documentReaders);
+        stages.setThreads(StageTimes.Stage.loaders, binaryLoaderThreads);
+        stages.track("dispatch", binaryLoaderQueue::size, builder.memCacheSize);
+        stages.track("reordering", archiveBuilderQueue::size, archiveBuilderQueue.getCapacity());
+        Gauge.Child depthChild = new Gauge.Child() {
+            @Override
+            public double get() {
+                return binaryLoaderQueue.size();
+            }
+        };
+        if (loaderScheduler == null) {
+            binaryLoaderQueueDepth.setChild(depthChild);
+        } else {
+            jobQueueDepth.setChild(depthChild, jobName);
+        }
 
         // +2 because this pool is used for the binary downloaders as well as the document reader thread (+1)
-        // and the archive creator thread (+1 more)
-        executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(binaryLoaderThreads + 2);
+        // and the archive creator thread (+1 more). If loading is done by a shared scheduler, only the +2.
+        executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(
+                (loaderScheduler == null ? binaryLoaderThreads : 0) + 2);
     }
 
     /**
      * Creates an archive with concurrent downloads of document binaries based on class configuration
      * provided by the builder.
+     *
+     * @throws RuntimeException if the archive could not be created - because a binary or the documents could not
+     *                          be read, or the archive could not be written - or if interrupted
      */
     public void createArchive() {
         logger.info("Creating archive: {}", tarFQPN);
 
-        for (int i = 0; i < binaryLoaderThreads; ++i) {
-            // populate a pool to download binaries from S3
-            executor.submit(new BinaryLoader(binaryLoaderQueue, archiveBuilderQueue, binaryService));
+        LoaderScheduler.Source source = null;
+        if (loaderScheduler != null) {
+            source = loaderScheduler.register(jobName, binaryLoaderQueue, archiveBuilderQueue, jobWeight,
+                    deflater, downloads);
+        } else {
+            for (int i = 0; i < binaryLoaderThreads; ++i) {
+                // populate a pool to download binaries from S3
+                executor.submit(new BinaryLoader(binaryLoaderQueue, archiveBuilderQueue, binaryService, deflater,
+                        stages, downloads));
+            }
         }
 
         // this future lets us know when all documents have been read from the reader and enqueued for
         // the pool of binary loaders
-        Future<Long> documentCount = executor.submit(new EnqueuingDocumentReader(reader, binaryLoaderQueue));
+        Future<Long> documentCount = executor.submit(new EnqueuingDocumentReader(reader, binaryLoaderQueue,
+                documentReaders, stages));
 
         // The archive will be created on this thread
-        Future<Boolean> archiveResult = executor.submit(new InternalArchiveCreator(archiveBuilderQueue, tarFQPN, metrics));
+        Future<Boolean> archiveResult = executor.submit(new InternalArchiveCreator(archiveBuilderQueue, sink, metrics,
+                deflater != null ? ArchiveFormat.zip : zstd != null ? ArchiveFormat.tzst : ArchiveFormat.tgz, segment,
+                blockGzip, digester, zstd, dedup, stages));
 
+        Throwable failure = null;
         try {
             // When 'documentCount.get()' returns, all documents have been read from the reader and enqueued for
             // the binary loader thread pool. Using this value to set the total items on the archive builder queue
-            // allows the archive builder to return EOF when it has provided the corresponding number of documents
-            archiveBuilderQueue.setTotalItems(documentCount.get());
+            // allows the archive builder to return EOF when it has provided the corresponding number of documents.
+            // If the archive builder stops first - e.g. because an HTTP client disconnected - nothing will drain
+            // the pipeline, so stop waiting for the reader. If the reader fails, fail the archive builder queue so
+            // the archive builder stops rather than waiting for documents that will never come.
+            while (true) {
+                try {
+                    archiveBuilderQueue.setTotalItems(documentCount.get(100, TimeUnit.MILLISECONDS));
+                    break;
+                } catch (TimeoutException e) {
+                    if (archiveResult.isDone()) {
+                        logger.error("Archive creation stopped before all documents were read");
+                        break;
+                    }
+                } catch (ExecutionException e) {
+                    archiveBuilderQueue.fail(e.getCause());
+                    break;
+                }
+            }
 
-            // When 'archiveResult.get()' returns, the archive is generated
-            boolean result = archiveResult.get();
-        } catch (InterruptedException | ExecutionException e) {
-            // NOP
+            // When 'archiveResult.get()' returns, the archive is generated - unless the result is false
+            if (!archiveResult.get()) {
+                failure = new RuntimeException("Unable to write archive");
+            }
+        } catch (ExecutionException e) {
+            failure = e.getCause();
+        } catch (InterruptedException e) {
+            failure = e;
+            Thread.currentThread().interrupt();
         }
 
         logger.info("Shutting down executor service and all associated threads");
         executor.shutdownNow();
-        binaryService.shutDownProvider();
+        if (loaderScheduler != null) {
+            loaderScheduler.unregister(source);
+        } else {
+            binaryService.shutDownProvider();
+        }
+        if (spool != null) {
+            spool.close();
+        }
+        if (loaderScheduler != null) {
+            jobQueueDepth.remove(jobName);
+        }
         logger.info("Done");
 
-        metrics.setBinaryBytesDownloaded(BinaryLoader.downloadedBytes.get().sum);
-        metrics.setDownloadElapsed(BinaryLoader.latestFinish.get() - BinaryLoader.earliestStart.get());
+        metrics.setBinaryBytesDownloaded(downloads.getBytes());
+        metrics.setDownloadElapsed(downloads.getElapsedMillis());
+        if (failure != null) {
+            throw new RuntimeException("Unable to create archive: " + tarFQPN, failure);
+        }
     }
 
     @Override
@@ -147,9 +330,23 @@ public class ThreadedArchiveCreator implements ArchiveCreator {
     public static class Builder {
         private int binaryLoaderThreads;
         private int memCacheSize;
+        private int dispatchWindow;
+        private Spool spool;
+        private int spillCapacity;
+        private LoaderScheduler loaderScheduler;
+        private String jobName;
+        private int jobWeight = 1;
+        private EntryDeflater deflater;
+        private TarSegment segment = TarSegment.whole;
+        private BlockGzipOutputStream.Layout blockGzip;
+        private EntryDigester digester;
+        private ZstdDictionary zstd;
+        private DedupIndex dedup;
         private DocumentReader reader;
+        private int documentReaders = 1;
         private BinaryService binaryService;
         private String tarFQPN;
+        private ArchiveSink sink;
         private Metrics metrics;
 
         public Builder binaryLoaderThreads(int binaryLoaderThreads) {
@@ -162,11 +359,101 @@ public class ThreadedArchiveCreator implements ArchiveCreator {
             return this;
         }
 
+        /**
+         * Sets the max dispatch window. If not set, or zero, the window is bounded only by the cache size.
+         */
+        public Builder dispatchWindow(int dispatchWindow) {
+            this.dispatchWindow = dispatchWindow;
+            return this;
+        }
+
+        /**
+         * Gives the reordering queue a disk tier that can hold up to <code>spillCapacity</code> bins beyond
+         * the memory cache size.
+         */
+        public Builder spill(Spool spool, int spillCapacity) {
+            this.spool = spool;
+            this.spillCapacity = spillCapacity;
+            return this;
+        }
+
+        /**
+         * Loads binaries with a scheduler shared with other jobs, rather than with loader threads owned by the
+         * instance. The name identifies the job in metrics, and the weight is its share relative to other jobs.
+         */
+        public Builder loaderScheduler(LoaderScheduler loaderScheduler, String jobName, int jobWeight) {
+            this.loaderScheduler = loaderScheduler;
+            this.jobName = jobName;
+            this.jobWeight = jobWeight;
+            return this;
+        }
+
+        /**
+         * Builds a ZIP rather than a gzipped TAR, with each entry deflated by the passed deflater on the
+         * thread that loaded it
+         */
+        public Builder zip(EntryDeflater deflater) {
+            this.deflater = deflater;
+            return this;
+        }
+
+        /**
+         * Generates a segment of a TAR rather than a whole one. See {@link TarSegment}.
+         */
+        public Builder segment(TarSegment segment) {
+            this.segment = segment;
+            return this;
+        }
+
+        /**
+         * Writes a block-gzip TAR with a sidecar index, rather than a TAR compressed as one gzip member
+         */
+        public Builder blockGzip(BlockGzipOutputStream.Layout blockGzip) {
+            this.blockGzip = blockGzip;
+            return this;
+        }
+
+        /**
+         * Computes checksums of the entries as they are written, and writes a manifest beside the archive. For a
+         * ZIP, the deflater must have the same digester, and computes the checksums on the loader threads.
+         */
+        public Builder digester(EntryDigester digester) {
+            this.digester = digester;
+            return this;
+        }
+
+        /**
+         * Compresses with zstd using the passed dictionary, trained on the first entries. For a TAR, writes a zstd
+         * TAR rather than a gzipped one. For a ZIP, the deflater must have the same dictionary, and the dictionary
+         * is added to the ZIP as its last entry.
+         */
+        public Builder zstd(ZstdDictionary zstd) {
+            this.zstd = zstd;
+            return this;
+        }
+
+        /**
+         * Writes a repeated attachment - one with the same ETag and length as an earlier one - as a hard link to the
+         * TAR entry that holds its content
+         */
+        public Builder dedup(DedupIndex dedup) {
+            this.dedup = dedup;
+            return this;
+        }
+
         public Builder reader(DocumentReader reader) {
             this.reader = reader;
             return this;
         }
 
+        /**
+         * Sets the number of partitions that read the reader concurrently. If not set, one.
+         */
+        public Builder documentReaders(int documentReaders) {
+            this.documentReaders = documentReaders;
+            return this;
+        }
+
         public Builder binaryService(BinaryService binaryService) {
             this.binaryService = binaryService;
             return this;
@@ -177,6 +464,15 @@ public class ThreadedArchiveCreator implements ArchiveCreator {
             return this;
         }
 
+        /**
+         * Writes the archive to the passed sink rather than to the file named by {@link #tarFQPN}, which is then
+         * only used to identify the archive in logging
+         */
+        public Builder sink(ArchiveSink sink) {
+            this.sink = sink;
+            return this;
+        }
+
         public Builder metrics(Metrics metrics) {
             this.metrics = metrics;
             return this;
@@ -202,67 +498,289 @@ public class ThreadedArchiveCreator implements ArchiveCreator {
         private final ReorderingQueue queue;
 
         /**
-         * The fully-qualified path name of the archive to generate
+         * Where to write the archive
          */
-        private final String tarFQPN;
+        private final ArchiveSink sink;
 
         /**
          * Basic metrics
          */
         private final Metrics metrics;
 
+        /**
+         * The archive format. For a ZIP, each bin holds a pre-compressed entry.
+         */
+        private final ArchiveFormat format;
+
+        /**
+         * Whether to write a whole TAR, or a segment of one
+         */
+        private final TarSegment segment;
+
+        /**
+         * If not null, write block-gzip with a sidecar index
+         */
+        private final BlockGzipOutputStream.Layout blockGzip;
+
+        /**
+         * If not null, checksums the entries and writes a manifest
+         */
+        private final EntryDigester digester;
+
+        /**
+         * If not null, the dictionary of a zstd TAR, or of the zstd entries of a ZIP
+         */
+        private final ZstdDictionary zstd;
+
+        /**
+         * If not null, links repeated content to its first entry
+         */
+        private final DedupIndex dedup;
+
+        /**
+         * Receives the writer's busy, blocked and head-of-line time
+         */
+        private final StageTimes stages;
+
+        /**
+         * Time spent waiting for the queue
+         */
+        private final LongAdder takeNanos = new LongAdder();
+
+        /**
+         * Time spent writing the compressed archive to the sink
+         */
+        private final LongAdder outputNanos = new LongAdder();
+
+        /**
+         * Time spent reading the binaries
+         */
+        private final LongAdder inputNanos = new LongAdder();
+
         /**
          * Constructor
          *
          * @param queue   See {@link #queue}
-         * @param tarFQPN See {@link #tarFQPN}
+         * @param sink    See {@link #sink}
          * @param metrics See {@link #metrics}
+         * @param format  See {@link #format}
+         * @param segment   See {@link #segment}
+         * @param blockGzip See {@link #blockGzip}
+         * @param digester  See {@link #digester}
+         * @param zstd      See {@link #zstd}
+         * @param dedup     See {@link #dedup}
+         * @param stages    See {@link #stages}
          */
-        InternalArchiveCreator(ReorderingQueue queue, String tarFQPN, Metrics metrics) {
+        InternalArchiveCreator(ReorderingQueue queue, ArchiveSink sink, Metrics metrics, ArchiveFormat format,
+                               TarSegment segment, BlockGzipOutputStream.Layout blockGzip,
+                               EntryDigester digester, ZstdDictionary zstd, DedupIndex dedup,
+                               StageTimes stages) {
             this.queue = queue;
-            this.tarFQPN = tarFQPN;
+            this.sink = sink;
             this.metrics = metrics;
+            this.format = format;
+            this.segment = segment;
+            this.blockGzip = blockGzip;
+            this.digester = digester;
+            this.zstd = zstd;
+            this.dedup = dedup;
+            this.stages = stages;
         }
 
         /**
-         * Creates the TAR file on the filesystem. Consumes the instance queue, which provides {@link Bin}
+         * Creates the TAR in the instance sink. Consumes the instance queue, which provides {@link Bin}
          * instances ordered in the same order presented to the parent class via its {@link DocumentReader} instance.
          * Also guaranteed by the internal queue: each item will contain both a document with metadata, and
-         * a binary attachment.
+         * a binary attachment. The writer's time is attributed to building and compressing the archive, writing
+         * it to the sink, reading the binaries, and waiting for the queue.
          *
          * @return True if success, else False
          */
         @Override
         public Boolean call() {
-            try (GZIPOutputStream gzos = new GZIPOutputStream(new FileOutputStream(tarFQPN));
-                 ArchiveOutputStream aos = new TarArchiveOutputStream(gzos)) {
+            long start = System.nanoTime();
+            try {
+                return format == ArchiveFormat.zip ? createZip() : createTar();
+            } finally {
+                long work = System.nanoTime() - start - takeNanos.sum();
+                long output = Math.min(work, outputNanos.sum());
+                long input = Math.min(work - output, inputNanos.sum());
+                stages.addBusy(StageTimes.Stage.writer, Math.max(0, work - output - input));
+                stages.addBlocked(StageTimes.Stage.writer, output);
+                stages.addWriterInput(input);
+                stages.addHeadOfLine(queue.getHeadOfLineNanos());
+            }
+        }
+
+        /**
+         * Creates a TAR in the instance sink
+         *
+         * @return True if success, else False
+         */
+        private Boolean createTar() {
+            // The end-of-archive records are only written if this isn't a segment followed by other segments. The
+            // writer has no block padding, so the entries of one segment and the next are contiguous, and each
+            // entry is written through before the next can start a new gzip member for block-gzip, or be sampled
+            // for zstd. The headers were serialized by the loaders. The sink is only committed once the archive
+            // is complete, so a failure - which still closes the streams - doesn't publish a truncated archive.
+            BlockGzipOutputStream blocks = null;
+            ZstdDictionaryOutputStream zstdOut = null;
+            OutputStream out;
+            try (OutputStream gzos = blockGzip != null ?
+                    blocks = blockGzip.open(new MeteredOutputStream(out = sink.open(), Metrics.archiveCompressedBytes,
+                            outputNanos)) :
+                    format == ArchiveFormat.tzst ?
+                    zstdOut = new ZstdDictionaryOutputStream(new MeteredOutputStream(out = sink.open(),
+                            Metrics.archiveCompressedBytes, outputNanos), zstd) :
+                    new GZIPOutputStream(new MeteredOutputStream(out = sink.open(), Metrics.archiveCompressedBytes,
+                            outputNanos))) {
+                TarWriter tar = new TarWriter(new MeteredOutputStream(gzos, Metrics.archiveUncompressedBytes));
                 while (true) {
                     logger.info("Taking from the queue");
-                    Bin bin = queue.take(); // blocks or returns EOF (null)
+                    Bin bin = take(); // blocks or returns EOF (null)
                     if (bin == null) {
                         logger.info("No more items - stopping");
                         break;
                     }
+                    String linkName = null;
+                    if (dedup != null && bin.object.getETag() != null) {
+                        linkName = dedup.linkForContent(bin.object.getETag(), bin.object.getLength(),
+                                bin.doc.getName());
+                    }
+                    if (zstdOut != null) {
+                        zstdOut.startEntry();
+                    }
+                    if (linkName != null) {
+                        logger.info("Linking entry for {} to {}", bin.doc.getName(), linkName);
+                        bin.object.getInputStream().close();
+                        tar.write(TarHeader.link(bin.doc.getName(), linkName, System.currentTimeMillis() / 1000));
+                        continue;
+                    }
                     logger.info("Creating entry for {}", bin.doc.getName());
-                    TarArchiveEntry entry = new TarArchiveEntry(bin.doc.getName());
-                    entry.setSize(bin.object.getLength());
                     if (metrics != null) {
                         metrics.addBinaryBytesWritten(bin.object.getLength());
                     }
-                    entry.setModTime(Date.from(Instant.now()));
-                    aos.putArchiveEntry(entry);
-                    try (InputStream ois = bin.object.getInputStream()) {
-                        IOUtils.copy(ois, aos);
+                    if (blocks != null) {
+                        blocks.startEntry(bin.doc.getName(), bin.object.getLength());
+                    }
+                    if (digester == null) {
+                        try (InputStream ois = new TimedInputStream(bin.object.getInputStream(), inputNanos)) {
+                            tar.write(bin.tarHeader, ois, bin.object.getLength());
+                        }
+                    } else {
+                        EntryDigester.DigestingInputStream dis = digester.digest(new TimedInputStream(
+                                bin.object.getInputStream(), inputNanos), bin.object.getETag(), true);
+                        try (InputStream ois = dis) {
+                            tar.write(bin.tarHeader, ois, bin.object.getLength());
+                        }
+                        digester.record(bin.doc.getName(), bin.doc.getKey(), bin.doc.getVersion(),
+                                bin.object.getLength(), dis.result());
                     }
-                    aos.closeArchiveEntry();
                     logger.info("Done creating entry");
                 }
-                aos.finish();
+                if (segment != TarSegment.part) {
+                    tar.finish();
+                }
+                ArchiveSink.commit(out);
                 logger.info("Done creating archive");
             } catch (IOException | InterruptedException e) {
+                logger.error("Unable to write archive: {}", e.getMessage());
                 return Boolean.FALSE;
             }
+            return writeManifest();
+        }
+
+        /**
+         * Takes the next bin from the queue, timing the wait
+         */
+        private Bin take() throws InterruptedException {
+            long start = System.nanoTime();
+            try {
+                return queue.take();
+            } finally {
+                takeNanos.add(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * Writes the manifest, if there is a digester
+         *
+         * @return True if success, else False
+         */
+        private Boolean writeManifest() {
+            if (digester != null) {
+                try {
+                    digester.writeManifest();
+                } catch (IOException e) {
+                    logger.error("Could not write the manifest: {}", e.getMessage());
+                    return Boolean.FALSE;
+                }
+            }
             return Boolean.TRUE;
         }
+
+        /**
+         * Creates a ZIP in the instance sink. Each bin holds a binary that was deflated on a loader thread,
+         * and a ZIP entry describing it, so the entries are copied into the archive without being compressed
+         * again.
+         *
+         * @return True if success, else False
+         */
+        private Boolean createZip() {
+            OutputStream out;
+            try (ZipArchiveOutputStream zos = new ZipArchiveOutputStream(
+                    new MeteredOutputStream(out = sink.open(), Metrics.archiveCompressedBytes, outputNanos))) {
+                while (true) {
+                    Bin bin = take(); // blocks or returns EOF (null)
+                    if (bin == null) {
+                        logger.info("No more items - stopping");
+                        break;
+                    }
+                    logger.info("Adding pre-compressed entry for {}", bin.doc.getName());
+                    if (metrics != null) {
+                        metrics.addBinaryBytesWritten(bin.length);
+                    }
+                    Metrics.archiveUncompressedBytes.inc(bin.length);
+                    try (InputStream ois = new TimedInputStream(bin.object.getInputStream(), inputNanos)) {
+                        zos.addRawArchiveEntry(bin.zipEntry, ois);
+                    }
+                    if (digester != null) {
+                        digester.record(bin.zipEntry.getName(), bin.doc.getKey(), bin.doc.getVersion(), bin.length,
+                                bin.digests);
+                    }
+                }
+                if (zstd != null) {
+                    addDictionary(zos);
+                }
+                zos.finish();
+                ArchiveSink.commit(out);
+                logger.info("Done creating archive");
+            } catch (IOException | InterruptedException e) {
+                logger.error("Unable to write archive: {}", e.getMessage());
+                return Boolean.FALSE;
+            }
+            return writeManifest();
+        }
+
+        /**
+         * Adds the zstd dictionary to the ZIP as a stored entry, since the zstd entries can't be decompressed
+         * without it. Trains it first if there weren't enough entries to. Does nothing if training failed.
+         */
+        private void addDictionary(ZipArchiveOutputStream zos) throws IOException {
+            zstd.train();
+            byte[] dict = zstd.get();
+            if (dict == null) {
+                return;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(dict);
+            ZipArchiveEntry entry = new ZipArchiveEntry(ZstdDictionary.ZIP_ENTRY);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(dict.length);
+            entry.setCompressedSize(dict.length);
+            entry.setCrc(crc.getValue());
+            entry.setTime(System.currentTimeMillis());
+            zos.addRawArchiveEntry(entry, new ByteArrayInputStream(dict));
+        }
     }
 }
@@ -3,7 +3,8 @@
  * driver class is the <code>ThreadedArchiveCreator</code> class. That class spins up three independent
  * execution threads:
  * <ol>
- *     <li>One thread runs an EnqueuingDocumentReader, which provides documents into a queue.</li>
+ *     <li>One thread runs an EnqueuingDocumentReader, which provides documents into a queue. It can read
+ *         partitions of the documents concurrently on threads of its own, and still numbers them in order.</li>
  *     <li>A thread pool runs multiple BinaryLoader instances. Each thread takes a Document from the
  *         queue above, gets a BinaryObject (from a BinaryService) representing the document
  *         attachment, and writes the Document + BinaryObject to a second queue. This second
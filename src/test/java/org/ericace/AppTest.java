@@ -10,7 +10,6 @@ import org.junit.Test;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -29,8 +28,8 @@ public class AppTest
     public void testAmazonS3BinaryProvider() throws IOException {
         assertNotNull(BUCKET);
         assertNotNull(REGION);
-        ArrayList<String> keys = new ArrayList<>(List.of("1000-bytes"));
-        AmazonS3BinaryProvider p = new AmazonS3BinaryProvider(BUCKET, REGION, "/tmp", keys);
+        KeyCatalog keys = KeyCatalog.of(List.of("1000-bytes"));
+        AmazonS3BinaryProvider p = new AmazonS3BinaryProvider(BUCKET, REGION, "/tmp", 0, keys);
         BinaryObject obj = p.getBinary("IGNORED");
         try (InputStream ois = obj.getInputStream()) {
             IOUtils.copy(ois, System.out);
@@ -43,7 +42,7 @@ public class AppTest
     public void testS3TransferManagerBinaryProvider() throws IOException {
         assertNotNull(BUCKET);
         assertNotNull(REGION);
-        ArrayList<String> keys = new ArrayList<>(List.of("1000-bytes"));
+        KeyCatalog keys = KeyCatalog.of(List.of("1000-bytes"));
         S3TransferManagerBinaryProvider p = new S3TransferManagerBinaryProvider(1, BUCKET, REGION, "/tmp", keys);
         BinaryObject obj = p.getBinary("IGNORED");
         System.out.println("FILE=" + ((LocalFileBinaryObject)obj).getAbsolutePath());
@@ -58,8 +57,8 @@ public class AppTest
     public void testS3AsyncBinaryProvider() throws IOException {
         assertNotNull(BUCKET);
         assertNotNull(REGION);
-        ArrayList<String> keys = new ArrayList<>(List.of("1000-bytes"));
-        S3AsyncBinaryProvider p = new S3AsyncBinaryProvider(50, 500, BUCKET, REGION, "/tmp", keys);
+        KeyCatalog keys = KeyCatalog.of(List.of("1000-bytes"));
+        S3AsyncBinaryProvider p = new S3AsyncBinaryProvider(50, 500, BUCKET, REGION, "/tmp", 0, keys);
         BinaryObject obj = p.getBinary("IGNORED");
         System.out.println("FILE=" + ((LocalFileBinaryObject)obj).getAbsolutePath());
         try (InputStream ois = obj.getInputStream()) {
@@ -0,0 +1,97 @@
+package org.ericace;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+public class ArchiveIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * @return the content of each entry, reading the archive from the start as an ordinary tar.gz
+     */
+    private static Map<String, byte[]> readAll(Path archive) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (InputStream is = Files.newInputStream(archive);
+             TarArchiveInputStream tar = new TarArchiveInputStream(new GZIPInputStream(is))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                entries.put(entry.getName(), tar.readAllBytes());
+            }
+        }
+        return entries;
+    }
+
+    private Path createArchive(String... options) {
+        Path archive = folder.getRoot().toPath().resolve("archive.tar.gz");
+        String[] args = new String[options.length + 2];
+        System.arraycopy(options, 0, args, 0, options.length);
+        args[options.length] = "-a";
+        args[options.length + 1] = archive.toString();
+        ArchiveCreatorFactory.fromArgs(Args.parse(args)).createArchive();
+        return archive;
+    }
+
+    private static void assertExtractsEveryEntry(Path archive, int entryCount) throws IOException {
+        Map<String, byte[]> entries = readAll(archive);
+        assertEquals(entryCount, entries.size());
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            try (InputStream is = ArchiveIndex.open(archive, entry.getKey())) {
+                assertArrayEquals(entry.getKey(), entry.getValue(), is.readAllBytes());
+            }
+        }
+    }
+
+    @Test
+    public void extractsEntriesFromAMultiMemberArchive() throws IOException {
+        Path archive = createArchive("-c", "multi", "-b", "fake", "-t", "20", "-d", "40", "-s", "100,3000",
+                "--block-entries", "5");
+        ArchiveIndex index = ArchiveIndex.read(Paths.get(archive + ArchiveIndex.EXTENSION));
+        Set<Long> members = new HashSet<>();
+        for (int doc = 1; doc <= 40; ++doc) {
+            members.add(index.find("file-" + doc).memberOffset);
+        }
+        assertEquals(8, members.size());
+        assertExtractsEveryEntry(archive, 40);
+    }
+
+    @Test
+    public void startsMembersByUncompressedSize() throws IOException {
+        Path archive = createArchive("-c", "multi", "-b", "fake", "-t", "30", "-d", "30", "-s", "400000",
+                "--block-mb", "1");
+        ArchiveIndex index = ArchiveIndex.read(Paths.get(archive + ArchiveIndex.EXTENSION));
+        assertTrue(index.find("file-30").memberOffset > 0);
+        assertExtractsEveryEntry(archive, 30);
+    }
+
+    @Test
+    public void rejectsAnEntryNotInTheIndex() throws IOException {
+        Path archive = createArchive("-c", "single", "-b", "fake", "-d", "3", "--block-entries", "1");
+        try {
+            ArchiveIndex.open(archive, "file-4").close();
+            fail("file-4 isn't in the archive");
+        } catch (IOException e) {
+            assertEquals("No such entry: file-4", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package org.ericace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class ArchiveServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void resolvesArchivesInTheOutputDirectory() throws IOException {
+        Path root = folder.getRoot().toPath().toRealPath();
+        Files.createDirectory(root.resolve("sub"));
+        assertEquals(root.resolve("a.tar.gz"), ArchiveService.resolveArchive(root, "a.tar.gz"));
+        assertEquals(root.resolve("sub/b.tar.gz"), ArchiveService.resolveArchive(root, "sub/b.tar.gz"));
+        assertEquals(root.resolve("c.tar.gz"), ArchiveService.resolveArchive(root, root + "/c.tar.gz"));
+        assertEquals(root.resolve("d.tar.gz"), ArchiveService.resolveArchive(root, "sub/../d.tar.gz"));
+    }
+
+    @Test
+    public void refusesArchivesOutsideTheOutputDirectory() throws IOException {
+        Path root = folder.getRoot().toPath();
+        Path outside = folder.newFolder("outside").toPath();
+        Path output = Files.createDirectory(root.resolve("output"));
+        Files.createSymbolicLink(output.resolve("link"), outside);
+        Files.createSymbolicLink(output.resolve("file-link"), outside.resolve("x"));
+        assertNull(ArchiveService.resolveArchive(output, null));
+        assertNull(ArchiveService.resolveArchive(output, ""));
+        assertNull(ArchiveService.resolveArchive(output, "/"));
+        assertNull(ArchiveService.resolveArchive(output, "../x.tar.gz"));
+        assertNull(ArchiveService.resolveArchive(output, outside + "/x.tar.gz"));
+        assertNull(ArchiveService.resolveArchive(output, "link/x.tar.gz"));
+        assertNull(ArchiveService.resolveArchive(output, "file-link"));
+        assertNull(ArchiveService.resolveArchive(output, "missing/x.tar.gz"));
+        assertNull(ArchiveService.resolveArchive(output, "a\0b"));
+    }
+}
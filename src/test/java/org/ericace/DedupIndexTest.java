@@ -0,0 +1,59 @@
+package org.ericace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class DedupIndexTest {
+
+    @Test
+    public void linksRepeatedContentToTheFirstEntry() {
+        DedupIndex index = new DedupIndex(10);
+        assertNull(index.linkForContent("etag-1", 100, "a"));
+        assertEquals("a", index.linkForContent("etag-1", 100, "b"));
+        assertEquals("a", index.linkForContent("etag-1", 100, "c"));
+    }
+
+    @Test
+    public void doesNotLinkADifferentLengthOrETag() {
+        DedupIndex index = new DedupIndex(10);
+        assertNull(index.linkForContent("etag-1", 100, "a"));
+        assertNull(index.linkForContent("etag-1", 101, "b"));
+        assertNull(index.linkForContent("etag-2", 100, "c"));
+        assertEquals("b", index.linkForContent("etag-1", 101, "d"));
+        assertEquals("c", index.linkForContent("etag-2", 100, "e"));
+    }
+
+    @Test
+    public void collidingFingerprintsAreVerified() {
+        DedupIndex index = new DedupIndex(10);
+        assertNull(index.claim(42, "etag-1", 100, "a"));
+        assertNull(index.claim(42, "etag-2", 100, "b"));
+        assertNull(index.claim(42, "etag-1", 200, "c"));
+        assertEquals("a", index.claim(42, "etag-1", 100, "d"));
+        assertEquals("b", index.claim(42, "etag-2", 100, "e"));
+        assertEquals("c", index.claim(42, "etag-1", 200, "f"));
+    }
+
+    @Test
+    public void stopsRememberingWhenFull() {
+        DedupIndex index = new DedupIndex(2);
+        assertNull(index.linkForContent("etag-1", 1, "a"));
+        assertNull(index.linkForContent("etag-2", 1, "b"));
+        assertNull(index.linkForContent("etag-3", 1, "c"));
+        assertNull(index.linkForContent("etag-3", 1, "d"));
+        assertEquals("a", index.linkForContent("etag-1", 1, "e"));
+    }
+
+    @Test
+    public void remembersEntriesAcrossGrowth() {
+        DedupIndex index = new DedupIndex(100_000);
+        for (int i = 0; i < 10_000; ++i) {
+            assertNull(index.linkForContent("etag-" + i, i, "entry-" + i));
+        }
+        for (int i = 0; i < 10_000; ++i) {
+            assertEquals("entry-" + i, index.linkForContent("etag-" + i, i, "link-" + i));
+        }
+    }
+}
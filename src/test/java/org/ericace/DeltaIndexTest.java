@@ -0,0 +1,110 @@
+package org.ericace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPInputStream;
+
+public class DeltaIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * @return a document whose store records the passed version
+     */
+    private static Document document(long id, String version) {
+        return new Document(id) {
+            @Override
+            public String getVersion() {
+                return version;
+            }
+        };
+    }
+
+    /**
+     * Writes a manifest holding the passed documents
+     */
+    private Path manifest(String name, Document... docs) throws IOException {
+        Path manifest = folder.getRoot().toPath().resolve(name + EntryDigester.EXTENSION);
+        EntryDigester digester = new EntryDigester(EnumSet.of(EntryDigester.Algorithm.crc32c), false, 1,
+                manifest);
+        for (Document doc : docs) {
+            // the ETag differs from the version, as it does for a real store
+            digester.record(doc.getName(), doc.getKey(), doc.getVersion(), 10,
+                    CompletableFuture.completedFuture("etag-" + doc.getKey() + "\t00000000"));
+        }
+        digester.writeManifest();
+        return manifest;
+    }
+
+    private static List<String> entries(Path archive) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (InputStream is = Files.newInputStream(archive);
+             TarArchiveInputStream tar = new TarArchiveInputStream(new GZIPInputStream(is))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                names.add(entry.getName());
+            }
+        }
+        return names;
+    }
+
+    private void createArchive(String... args) {
+        ArchiveCreatorFactory.fromArgs(Args.parse(args)).createArchive();
+    }
+
+    @Test
+    public void comparesTheArchivedVersion() throws IOException {
+        DeltaIndex delta = new DeltaIndex(List.of(manifest("full", document(1, "v1"), document(2, "v1"),
+                document(3, null))));
+        assertTrue(delta.isUnchanged(document(1, "v1")));
+        assertFalse(delta.isUnchanged(document(2, "v2")));
+        assertTrue(delta.isUnchanged(document(3, null)));
+        assertFalse(delta.isUnchanged(document(4, null)));
+    }
+
+    @Test
+    public void appliesDeletionLists() throws IOException {
+        Path full = manifest("full", document(1, null), document(2, null), document(3, null));
+        DeltaIndex delta = new DeltaIndex(List.of(full));
+        assertTrue(delta.isUnchanged(document(1, null)));
+        assertTrue(delta.isUnchanged(document(3, null)));
+        Path incremental = manifest("incremental");
+        assertEquals(1, delta.writeDeletions(DeltaIndex.deletionList(incremental)));
+        assertEquals(List.of("2"), Files.readAllLines(DeltaIndex.deletionList(incremental), StandardCharsets.UTF_8));
+
+        delta = new DeltaIndex(List.of(full, incremental));
+        assertFalse(delta.isUnchanged(document(2, null)));
+        assertTrue(delta.isUnchanged(document(3, null)));
+    }
+
+    @Test
+    public void secondRunSkipsUnchangedDocuments() throws IOException {
+        Path full = folder.getRoot().toPath().resolve("full.tar.gz");
+        createArchive("-c", "multi", "-b", "fake", "-t", "4", "-d", "20", "-s", "100,200", "-a", full.toString(),
+                "--checksum", "crc32c");
+        assertEquals(20, entries(full).size());
+
+        Path incremental = folder.getRoot().toPath().resolve("incremental.tar.gz");
+        createArchive("-c", "multi", "-b", "fake", "-t", "4", "-d", "25", "-s", "100,200", "-a",
+                incremental.toString(), "--checksum", "crc32c", "--since", full + EntryDigester.EXTENSION);
+        assertEquals(List.of("file-21", "file-22", "file-23", "file-24", "file-25"), entries(incremental));
+    }
+}
@@ -0,0 +1,103 @@
+package org.ericace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public class EntryDigesterTest {
+
+    private static final byte[] CONTENT = "archived content".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * An ETag that looks like an MD5 but isn't one of {@link #CONTENT}, as for an object encrypted with SSE-KMS
+     */
+    private static final String ENCRYPTED_ETAG = "0123456789abcdef0123456789abcdef";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path manifest() {
+        return folder.getRoot().toPath().resolve("archive.tar.gz" + EntryDigester.EXTENSION);
+    }
+
+    private static String md5(byte[] content) throws NoSuchAlgorithmException {
+        StringBuilder s = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(content)) {
+            s.append(String.format("%02x", b));
+        }
+        return s.toString();
+    }
+
+    /**
+     * Reads the content through a digesting stream, as the archive writer does, and records the entry
+     */
+    private static void write(EntryDigester digester, String name, String eTag) throws IOException {
+        EntryDigester.DigestingInputStream dis = digester.digest(new ByteArrayInputStream(CONTENT), eTag, true);
+        try (InputStream is = dis) {
+            is.readAllBytes();
+        }
+        digester.record(name, name, null, CONTENT.length, dis.result());
+    }
+
+    @Test
+    public void recordsETagsWithoutVerifyingByDefault() throws IOException {
+        EntryDigester digester = new EntryDigester(EnumSet.of(EntryDigester.Algorithm.crc32c), false, 1,
+                manifest());
+        write(digester, "encrypted", ENCRYPTED_ETAG);
+        digester.writeManifest();
+        List<String> lines = Files.readAllLines(manifest(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(1), lines.get(1).startsWith("encrypted\t16\t-\t" + ENCRYPTED_ETAG + "\t"));
+    }
+
+    @Test
+    public void verifiesETagsWhenEnabled() throws Exception {
+        EntryDigester digester = new EntryDigester(EnumSet.of(EntryDigester.Algorithm.crc32c), true, 1,
+                manifest());
+        write(digester, "plain", md5(CONTENT).toUpperCase());
+        write(digester, "encrypted", ENCRYPTED_ETAG);
+        try {
+            digester.writeManifest();
+            fail("the mismatched ETag should fail the manifest");
+        } catch (IOException e) {
+            assertEquals("Content does not match ETag " + ENCRYPTED_ETAG, e.getMessage());
+        }
+        assertFalse(Files.exists(manifest()));
+    }
+
+    @Test
+    public void writesLinesInOrderAsTheyComplete() throws IOException {
+        EntryDigester digester = new EntryDigester(EnumSet.of(EntryDigester.Algorithm.crc32c), false, 1,
+                manifest());
+        CompletableFuture<String> second = new CompletableFuture<>();
+        digester.record("first", "1", "v1", 1, CompletableFuture.completedFuture("-\t00000001"));
+        assertEquals(0, digester.pendingLines());
+        digester.record("second", "2", "v2", 2, second);
+        digester.record("third", "3", "v3", 3, CompletableFuture.completedFuture("-\t00000003"));
+        // the third line waits behind the second
+        assertEquals(2, digester.pendingLines());
+        second.complete("-\t00000002");
+        assertEquals(0, digester.pendingLines());
+        digester.writeManifest();
+        assertEquals(List.of(EntryDigester.HEADER + "\tcrc32c\tname", "1\t1\tv1\t-\t00000001\tfirst",
+                "2\t2\tv2\t-\t00000002\tsecond", "3\t3\tv3\t-\t00000003\tthird"),
+                Files.readAllLines(manifest(), StandardCharsets.UTF_8));
+    }
+}
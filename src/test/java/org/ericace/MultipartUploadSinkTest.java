@@ -0,0 +1,114 @@
+package org.ericace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Uploads to a minimal S3 stand-in that records the multipart requests it gets
+ */
+public class MultipartUploadSinkTest {
+
+    private final List<String> requests = new ArrayList<>();
+
+    private HttpServer server;
+
+    private String endpoint;
+
+    @Before
+    public void startServer() throws IOException {
+        System.setProperty("aws.accessKeyId", "test");
+        System.setProperty("aws.secretAccessKey", "test");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+        endpoint = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        String query = exchange.getRequestURI().getQuery();
+        String method = exchange.getRequestMethod();
+        String request;
+        String body = "";
+        if (method.equals("POST") && query.startsWith("uploads")) {
+            request = "create";
+            body = "<InitiateMultipartUploadResult><Bucket>bucket</Bucket><Key>archive.tar.gz</Key>"
+                    + "<UploadId>upload-1</UploadId></InitiateMultipartUploadResult>";
+        } else if (method.equals("PUT")) {
+            request = "part";
+            exchange.getResponseHeaders().set("ETag", "\"part-etag\"");
+        } else if (method.equals("POST")) {
+            request = "complete";
+            body = "<CompleteMultipartUploadResult><Bucket>bucket</Bucket><Key>archive.tar.gz</Key>"
+                    + "<ETag>\"archive-etag\"</ETag></CompleteMultipartUploadResult>";
+        } else {
+            request = method.equals("DELETE") ? "abort" : method;
+        }
+        synchronized (requests) {
+            requests.add(request);
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(method.equals("DELETE") ? 204 : 200, bytes.length == 0 ? -1 : bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+
+    private MultipartUploadSink sink() {
+        return new MultipartUploadSink("s3://bucket/archive.tar.gz", "us-east-1", endpoint, 2);
+    }
+
+    private List<String> requests() {
+        synchronized (requests) {
+            return new ArrayList<>(requests);
+        }
+    }
+
+    @Test
+    public void completesACommittedUpload() throws IOException {
+        try (OutputStream os = sink().open()) {
+            os.write(new byte[MultipartUploadSink.PART_SIZE + 100]);
+            ArchiveSink.commit(os);
+        }
+        assertEquals(List.of("create", "part", "part", "complete"), requests());
+    }
+
+    @Test
+    public void abortsAnUploadClosedWithoutACommit() throws IOException {
+        try (OutputStream os = sink().open()) {
+            os.write(new byte[MultipartUploadSink.PART_SIZE + 100]);
+        }
+        List<String> requests = requests();
+        assertEquals("abort", requests.get(requests.size() - 1));
+        assertFalse(requests.contains("complete"));
+    }
+
+    @Test
+    public void abortsWhenTheWriterFails() {
+        try (OutputStream os = sink().open()) {
+            os.write(new byte[100]);
+            throw new IllegalStateException("writer failed");
+        } catch (IOException | IllegalStateException e) {
+            assertEquals("writer failed", e.getMessage());
+        }
+        assertEquals(List.of("create", "abort"), requests());
+    }
+}
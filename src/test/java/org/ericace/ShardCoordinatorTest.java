@@ -0,0 +1,113 @@
+package org.ericace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class ShardCoordinatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<ArchiveService> services = new ArrayList<>();
+
+    private HttpServer stub;
+
+    @After
+    public void stop() {
+        services.forEach(ArchiveService::stop);
+        if (stub != null) {
+            stub.stop(0);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * @return the address of a new worker
+     */
+    private String worker() throws IOException {
+        int port = freePort();
+        ArchiveService service = new ArchiveService(Args.parse(new String[]{"-c", "service", "-b", "fake", "-t",
+                "10", "-s", "100,2000", "-v", String.valueOf(port), "--output-dir", folder.getRoot().toString()}));
+        services.add(service);
+        service.start();
+        return "localhost:" + port;
+    }
+
+    private Path coordinate(List<String> workers, int documentCount) {
+        Path archive = folder.getRoot().toPath().resolve("archive.tar.gz");
+        new ShardCoordinator.Builder().workers(workers).documentCount(documentCount).tarFQPN(archive.toString())
+                .tmpDir(folder.getRoot().toPath()).build().createArchive();
+        return archive;
+    }
+
+    private static List<String> entries(Path archive) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (InputStream is = Files.newInputStream(archive);
+             TarArchiveInputStream tar = new TarArchiveInputStream(new GZIPInputStream(is))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                names.add(entry.getName());
+            }
+        }
+        return names;
+    }
+
+    @Test
+    public void concatenatesTheSegmentsInOrder() throws IOException {
+        Path archive = coordinate(List.of(worker(), worker(), worker()), 50);
+        List<String> expected = new ArrayList<>();
+        for (int doc = 1; doc <= 50; ++doc) {
+            expected.add("file-" + doc);
+        }
+        // only the last segment ends the TAR, so every entry is read
+        assertEquals(expected, entries(archive));
+    }
+
+    @Test
+    public void failsOnASegmentWithMissingEntries() throws IOException {
+        stub = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        stub.createContext("/stream", exchange -> {
+            exchange.getResponseHeaders().add(ArchiveService.JOB_HEADER, "job-1");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream os = exchange.getResponseBody();
+                 TarArchiveOutputStream tar = new TarArchiveOutputStream(new GZIPOutputStream(os))) {
+                tar.finish();
+            }
+        });
+        stub.start();
+        try {
+            coordinate(List.of(worker(), "localhost:" + stub.getAddress().getPort()), 10);
+            fail("the second segment has no entries");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("has 0 entries rather than 5"));
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.ericace;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class TarHeaderTest {
+
+    private static final long MTIME = 1_700_000_000L;
+
+    private static final String LONG_NAME = "docs/" + "x".repeat(120) + "/attachment.bin";
+
+    /**
+     * @return the header Commons Compress writes for an entry, with its PAX extended header if any
+     */
+    private static byte[] commons(String name, String linkName, long size, int length) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream tos = new TarArchiveOutputStream(bos, TarConstants.DEFAULT_RCDSIZE)) {
+            tos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            TarArchiveEntry entry = linkName == null ? new TarArchiveEntry(name) :
+                    new TarArchiveEntry(name, TarConstants.LF_LINK);
+            if (linkName != null) {
+                entry.setLinkName(linkName);
+            }
+            entry.setSize(size);
+            entry.setModTime(MTIME * 1000);
+            tos.putArchiveEntry(entry);
+            tos.write(new byte[(int) size]);
+            tos.closeArchiveEntry();
+        }
+        return Arrays.copyOf(bos.toByteArray(), length);
+    }
+
+    @Test
+    public void fileMatchesCommonsCompress() throws IOException {
+        byte[] header = TarHeader.file("docs/attachment.bin", 1234, MTIME);
+        assertEquals(TarHeader.RECORD, header.length);
+        assertArrayEquals(commons("docs/attachment.bin", null, 1234, header.length), header);
+    }
+
+    @Test
+    public void linkMatchesCommonsCompress() throws IOException {
+        byte[] header = TarHeader.link("docs/copy.bin", "docs/attachment.bin", MTIME);
+        assertEquals(TarHeader.RECORD, header.length);
+        assertArrayEquals(commons("docs/copy.bin", "docs/attachment.bin", 0, header.length), header);
+    }
+
+    @Test
+    public void longNameMatchesCommonsCompress() throws IOException {
+        byte[] header = TarHeader.file(LONG_NAME, 10, MTIME);
+        assertEquals(3 * TarHeader.RECORD, header.length);
+        assertArrayEquals(commons(LONG_NAME, null, 10, header.length), header);
+    }
+
+    @Test
+    public void longLinkNameMatchesCommonsCompress() throws IOException {
+        byte[] header = TarHeader.link(LONG_NAME + ".copy", LONG_NAME, MTIME);
+        assertArrayEquals(commons(LONG_NAME + ".copy", LONG_NAME, 0, header.length), header);
+    }
+
+    @Test
+    public void padsToAWholeRecord() {
+        assertEquals(0, TarHeader.padding(0));
+        assertEquals(511, TarHeader.padding(1));
+        assertEquals(0, TarHeader.padding(TarHeader.RECORD));
+        assertEquals(502, TarHeader.padding(1034));
+    }
+}
@@ -0,0 +1,109 @@
+package org.ericace.binary;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class KeyCatalogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * @return sorted keys - more than a few samples' worth, so lookups scan forward from a sampled offset
+     */
+    private static List<String> sortedKeys() {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 10 * KeyCatalog.SAMPLE + 3; ++i) {
+            keys.add(String.format("prefix/%05d", i * 2));
+        }
+        return keys;
+    }
+
+    private static void assertHolds(KeyCatalog catalog, List<String> keys) {
+        assertEquals(keys.size(), catalog.size());
+        for (int i = 0; i < keys.size(); ++i) {
+            byte[] expected = keys.get(i).getBytes(StandardCharsets.UTF_8);
+            assertEquals(keys.get(i), catalog.get(i));
+            assertEquals(expected.length, catalog.length(i));
+            byte[] copy = new byte[expected.length + 2];
+            assertEquals(expected.length, catalog.copy(i, copy, 2));
+            assertArrayEquals(expected, Arrays.copyOfRange(copy, 2, copy.length));
+            assertEquals(keys.get(i), i, catalog.indexOf(keys.get(i)));
+        }
+    }
+
+    @Test
+    public void mapsAFileSkippingEmptyLinesAndCarriageReturns() throws IOException {
+        List<String> keys = sortedKeys();
+        StringBuilder content = new StringBuilder("\n\r\n");
+        for (int i = 0; i < keys.size(); ++i) {
+            content.append(keys.get(i)).append(i % 3 == 0 ? "\r\n" : "\n");
+            if (i % 7 == 0) {
+                content.append('\n');
+            }
+        }
+        Path file = folder.newFile("keys").toPath();
+        Files.writeString(file, content);
+        KeyCatalog catalog = KeyCatalog.map(file);
+        assertTrue(catalog.isSorted());
+        assertHolds(catalog, keys);
+    }
+
+    @Test
+    public void searchesSortedKeys() {
+        List<String> keys = sortedKeys();
+        KeyCatalog catalog = KeyCatalog.of(keys);
+        assertTrue(catalog.isSorted());
+        assertHolds(catalog, keys);
+        assertEquals(-1, catalog.indexOf("a"));
+        assertEquals(-1, catalog.indexOf("prefix/00001"));
+        assertEquals(-1, catalog.indexOf("prefix/0000"));
+        assertEquals(-1, catalog.indexOf("prefix/000000"));
+        assertEquals(-1, catalog.indexOf("z"));
+    }
+
+    @Test
+    public void scansUnsortedKeys() {
+        List<String> keys = new ArrayList<>(sortedKeys());
+        Collections.reverse(keys);
+        KeyCatalog catalog = KeyCatalog.of(keys);
+        assertFalse(catalog.isSorted());
+        assertHolds(catalog, keys);
+        assertEquals(-1, catalog.indexOf("prefix/00001"));
+    }
+
+    @Test
+    public void comparesMultiByteKeysInUtf8Order() {
+        // one, two, three and four byte encodings - in UTF-8 byte order, which isn't UTF-16 order for the last two
+        List<String> keys = List.of("key/a", "key/é", "key/été", "key/Ａ", "key/😀");
+        KeyCatalog catalog = KeyCatalog.of(keys);
+        assertTrue(catalog.isSorted());
+        assertHolds(catalog, keys);
+        assertEquals(-1, catalog.indexOf("key/è"));
+        assertEquals(-1, catalog.indexOf("key/Ｂ"));
+        assertEquals(-1, catalog.indexOf("key/😁"));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void holdsNothingWhenEmpty() throws IOException {
+        KeyCatalog catalog = KeyCatalog.map(folder.newFile("empty").toPath());
+        assertEquals(0, catalog.size());
+        assertEquals(-1, catalog.indexOf("key"));
+        catalog.get(0);
+    }
+}
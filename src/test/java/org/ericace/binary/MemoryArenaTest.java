@@ -0,0 +1,109 @@
+package org.ericace.binary;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class MemoryArenaTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Spool spool;
+
+    @Before
+    public void createSpool() {
+        spool = new Spool(folder.getRoot().toPath(), Spool.DEFAULT_SEGMENT_SIZE);
+    }
+
+    @After
+    public void closeSpool() {
+        spool.close();
+    }
+
+    /**
+     * @return content of the passed length, the same for each call with the same length
+     */
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        return content;
+    }
+
+    private static BinaryObject append(BinaryStore store, int length) throws IOException {
+        return store.append(new ByteArrayInputStream(content(length)), length);
+    }
+
+    private static byte[] consume(BinaryObject obj) throws IOException {
+        try (InputStream is = obj.getInputStream()) {
+            return is.readAllBytes();
+        }
+    }
+
+    @Test
+    public void sizesTheLastSlabToFit() {
+        assertEquals(MemoryArena.MIN_SLAB_SIZE, MemoryArena.slabSize(1));
+        assertEquals(1024, MemoryArena.slabSize(1000));
+        assertEquals(1024, MemoryArena.slabSize(1024));
+        assertEquals(2048, MemoryArena.slabSize(1025));
+        assertEquals(MemoryArena.SLAB_SIZE, MemoryArena.slabSize(MemoryArena.SLAB_SIZE - 1));
+    }
+
+    @Test
+    public void holdsSmallBinariesInSmallSlabs() throws IOException {
+        MemoryArena arena = new MemoryArena(4 * 1024, spool);
+        List<BinaryObject> objects = new ArrayList<>();
+        for (int i = 0; i < 4; ++i) {
+            objects.add(append(arena, 1000 + i));
+            assertTrue(objects.get(i) instanceof ArenaBinaryObject);
+        }
+        // the budget is exhausted, so the next binary is spooled
+        BinaryObject spooled = append(arena, 1000);
+        assertTrue(spooled instanceof SpoolBinaryObject);
+        assertArrayEquals(content(1000), consume(spooled));
+
+        // consuming a binary returns its slab to the budget
+        assertArrayEquals(content(1001), consume(objects.get(1)));
+        BinaryObject reused = append(arena, 900);
+        assertTrue(reused instanceof ArenaBinaryObject);
+        assertArrayEquals(content(900), consume(reused));
+        assertArrayEquals(content(1000), consume(objects.get(0)));
+        assertArrayEquals(content(1002), consume(objects.get(2)));
+        assertArrayEquals(content(1003), consume(objects.get(3)));
+    }
+
+    @Test
+    public void holdsLargeBinariesInFullSlabsAndOneSmaller() throws IOException {
+        int length = 2 * MemoryArena.SLAB_SIZE + 20_000;
+        MemoryArena arena = new MemoryArena(2 * MemoryArena.SLAB_SIZE + 32 * 1024, spool);
+        BinaryObject large = append(arena, length);
+        assertTrue(large instanceof ArenaBinaryObject);
+        assertTrue(append(arena, 1) instanceof SpoolBinaryObject);
+        assertArrayEquals(content(length), consume(large));
+        assertTrue(append(arena, 1) instanceof ArenaBinaryObject);
+    }
+
+    @Test
+    public void abandonedReservationsReturnToTheBudget() throws IOException {
+        MemoryArena arena = new MemoryArena(MemoryArena.SLAB_SIZE, spool);
+        BinaryStore.Reservation reservation = arena.reserve(MemoryArena.SLAB_SIZE);
+        assertTrue(append(arena, 1) instanceof SpoolBinaryObject);
+        reservation.abandon();
+        BinaryObject obj = append(arena, MemoryArena.SLAB_SIZE);
+        assertTrue(obj instanceof ArenaBinaryObject);
+        assertArrayEquals(content(MemoryArena.SLAB_SIZE), consume(obj));
+    }
+}
@@ -0,0 +1,89 @@
+package org.ericace.binary;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class SpoolTest {
+
+    private static final int SEGMENT_SIZE = 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] content(int length, int fill) {
+        byte[] content = new byte[length];
+        Arrays.fill(content, (byte) fill);
+        return content;
+    }
+
+    private static byte[] consume(BinaryObject obj) throws IOException {
+        try (InputStream is = obj.getInputStream()) {
+            return is.readAllBytes();
+        }
+    }
+
+    /**
+     * @return the segment files in the spool's directory, by name
+     */
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> paths = Files.walk(folder.getRoot().toPath())) {
+            return paths.filter(p -> p.toString().endsWith(".seg")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void extendsEachSegmentToTheSegmentSize() throws IOException {
+        Spool spool = new Spool(folder.getRoot().toPath(), SEGMENT_SIZE);
+        spool.warmUp();
+        List<Path> segments = segments();
+        assertEquals(1, segments.size());
+        assertEquals(SEGMENT_SIZE, Files.size(segments.get(0)));
+        spool.close();
+    }
+
+    @Test
+    public void deletesSealedSegmentsOnceConsumed() throws IOException {
+        Spool spool = new Spool(folder.getRoot().toPath(), SEGMENT_SIZE);
+        BinaryObject first = spool.append(new ByteArrayInputStream(content(600, 1)), 600);
+        BinaryObject second = spool.append(new ByteArrayInputStream(content(300, 2)), 300);
+        // doesn't fit in the first segment, so seals it
+        BinaryObject third = spool.append(new ByteArrayInputStream(content(600, 3)), 600);
+        List<Path> segments = segments();
+        assertEquals(2, segments.size());
+
+        assertArrayEquals(content(300, 2), consume(second));
+        assertTrue(Files.exists(segments.get(0)));
+        assertArrayEquals(content(600, 1), consume(first));
+        assertFalse(Files.exists(segments.get(0)));
+
+        // the current segment isn't deleted, even when it is consumed
+        assertArrayEquals(content(600, 3), consume(third));
+        assertTrue(Files.exists(segments.get(1)));
+        spool.close();
+        assertEquals(List.of(), segments());
+    }
+
+    @Test
+    public void holdsSlicesLargerThanTheSegmentSize() throws IOException {
+        Spool spool = new Spool(folder.getRoot().toPath(), SEGMENT_SIZE);
+        BinaryObject large = spool.append(new ByteArrayInputStream(content(3000, 4)), 3000);
+        assertArrayEquals(content(3000, 4), consume(large));
+        spool.close();
+    }
+}
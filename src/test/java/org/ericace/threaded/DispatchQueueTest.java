@@ -0,0 +1,68 @@
+package org.ericace.threaded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.ericace.Document;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class DispatchQueueTest {
+
+    private static DispatchQueue queue(int capacity) {
+        return new DispatchQueue(capacity, new ReorderingQueue(100), 1, 50);
+    }
+
+    private static void offer(DispatchQueue queue, long from, long to) {
+        for (long sequence = from; sequence <= to; ++sequence) {
+            assertTrue(queue.offer(new Bin(new Document(sequence), sequence)));
+        }
+    }
+
+    @Test
+    public void capacityCountsBinsInLanes() throws InterruptedException {
+        DispatchQueue queue = queue(10);
+        DispatchQueue.Lane lane = queue.lane();
+        offer(queue, 1, 10);
+        assertFalse(queue.offer(new Bin(new Document(11), 11)));
+        // the refill moves the rest of the batch into the lane, which must not free capacity
+        assertEquals(1, lane.take().sequence);
+        assertEquals(9, queue.size());
+        assertTrue(queue.offer(new Bin(new Document(11), 11)));
+        assertFalse(queue.offer(new Bin(new Document(12), 12)));
+    }
+
+    @Test
+    public void stealsFromTheTailOnlyWhenNothingElseIsDispatchable() throws InterruptedException {
+        DispatchQueue queue = queue(100);
+        DispatchQueue.Lane stalled = queue.lane();
+        DispatchQueue.Lane other = queue.lane();
+        offer(queue, 1, 40);
+        // a batch of 25 goes to the first lane, whose loader then stalls on sequence 1
+        assertEquals(1, stalled.take().sequence);
+        // the other loader refills its own lane from the pending bins, and works through it in order
+        for (long sequence = 26; sequence <= 40; ++sequence) {
+            assertEquals(sequence, other.take().sequence);
+        }
+        // with nothing pending, it steals from the far end of the stalled lane
+        assertEquals(25, other.take().sequence);
+        assertEquals(24, other.take().sequence);
+        // while the stalled loader, once it resumes, carries on from the near end
+        assertEquals(2, stalled.take().sequence);
+        assertEquals(21, queue.size());
+    }
+
+    @Test
+    public void pollHandsOutLowestSequenceFirst() throws InterruptedException {
+        DispatchQueue queue = queue(100);
+        for (long sequence : new long[]{5, 3, 4, 1, 2}) {
+            assertTrue(queue.offer(new Bin(new Document(sequence), sequence)));
+        }
+        for (long sequence = 1; sequence <= 5; ++sequence) {
+            assertEquals(sequence, queue.poll(0, TimeUnit.MILLISECONDS).sequence);
+        }
+        assertEquals(0, queue.size());
+    }
+}
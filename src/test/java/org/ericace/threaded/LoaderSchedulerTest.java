@@ -0,0 +1,117 @@
+package org.ericace.threaded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.ericace.Document;
+import org.ericace.binary.BinaryService;
+import org.ericace.binary.FakeBinaryObject;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class LoaderSchedulerTest {
+
+    /**
+     * Keys of the documents of the second job start here
+     */
+    private static final int SECOND_JOB = 1_000_000;
+
+    private final List<String> loaded = new ArrayList<>();
+
+    private final LoaderScheduler scheduler = new LoaderScheduler(1, new BinaryService(key -> {
+        synchronized (loaded) {
+            loaded.add(key);
+        }
+        return new FakeBinaryObject(key, 10);
+    }));
+
+    @After
+    public void shutdown() {
+        scheduler.shutdown();
+    }
+
+    private static DispatchQueue queue() {
+        return new DispatchQueue(10_000, new ReorderingQueue(10_000), 1, 10_000);
+    }
+
+    private static void offer(DispatchQueue queue, int firstKey, int count) {
+        for (int i = 1; i <= count; ++i) {
+            assertTrue(queue.offer(new Bin(new Document(firstKey + i), i)));
+        }
+    }
+
+    private LoaderScheduler.Source register(String name, DispatchQueue queue, int weight) {
+        return scheduler.register(name, queue, new ReorderingQueue(10_000), weight, null, new DownloadStats());
+    }
+
+    private void awaitLoaded(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (loadedCount() < count) {
+            assertTrue("Timed out waiting for " + count + " loads", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private int loadedCount() {
+        synchronized (loaded) {
+            return loaded.size();
+        }
+    }
+
+    /**
+     * @return the count of the second job's documents among the passed loads
+     */
+    private int secondJob(int from, int to) {
+        synchronized (loaded) {
+            return (int) loaded.subList(from, to).stream().filter(k -> Integer.parseInt(k) > SECOND_JOB).count();
+        }
+    }
+
+    /**
+     * @return the index of the second job's first load, once it has loaded
+     */
+    private int firstLoadOfSecondJob() throws InterruptedException {
+        for (int index = 0; ; ++index) {
+            awaitLoaded(index + 1);
+            synchronized (loaded) {
+                if (Integer.parseInt(loaded.get(index)) > SECOND_JOB) {
+                    return index;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sharesLoadersByWeight() throws InterruptedException {
+        DispatchQueue first = queue();
+        DispatchQueue second = queue();
+        offer(first, 0, 300);
+        offer(second, SECOND_JOB, 300);
+        register("first", first, 2);
+        register("second", second, 1);
+        awaitLoaded(300);
+        // the first job may get a few loads before the second registers
+        int secondShare = secondJob(0, 300);
+        assertTrue("second job loaded " + secondShare, secondShare >= 90 && secondShare <= 100);
+    }
+
+    @Test
+    public void reactivatedSourceGetsNoCreditForIdleTime() throws InterruptedException {
+        DispatchQueue first = queue();
+        DispatchQueue second = queue();
+        offer(first, 0, 5000);
+        register("second", second, 1);
+        register("first", first, 1);
+        awaitLoaded(200);
+        offer(second, SECOND_JOB, 200);
+        int start = firstLoadOfSecondJob();
+        awaitLoaded(start + 100);
+        // while idle the second job fell 200 loads behind, which it must not make up in a burst
+        int secondShare = secondJob(start, start + 100);
+        assertTrue("second job loaded " + secondShare, secondShare >= 45 && secondShare <= 55);
+        assertEquals(0, secondJob(0, start));
+    }
+}
@@ -0,0 +1,150 @@
+package org.ericace.threaded;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.ericace.Document;
+import org.ericace.binary.BinaryObject;
+import org.ericace.binary.Spool;
+import org.ericace.binary.SpoolBinaryObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class ReorderingQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * @return a bin holding the passed content in memory, or on disk
+     */
+    private static Bin bin(long sequence, byte[] content, boolean onDisk) {
+        Bin bin = new Bin(new Document(sequence), sequence);
+        bin.object = new BinaryObject() {
+            @Override
+            public int getLength() {
+                return content.length;
+            }
+
+            @Override
+            public InputStream getInputStream() {
+                return new ByteArrayInputStream(content);
+            }
+
+            @Override
+            public boolean isOnDisk() {
+                return onDisk;
+            }
+        };
+        return bin;
+    }
+
+    private static byte[] content(Bin bin) throws IOException {
+        try (InputStream is = bin.object.getInputStream()) {
+            return is.readAllBytes();
+        }
+    }
+
+    @Test
+    public void takesInOrder() throws InterruptedException {
+        ReorderingQueue queue = new ReorderingQueue(10);
+        for (long sequence : new long[]{3, 1, 2}) {
+            assertTrue(queue.add(bin(sequence, new byte[0], false)));
+        }
+        queue.setTotalItems(3);
+        for (long sequence = 1; sequence <= 3; ++sequence) {
+            assertEquals(sequence, queue.take().sequence);
+        }
+        assertNull(queue.take());
+    }
+
+    @Test
+    public void spillsMemoryBackedBinariesOnly() throws IOException, InterruptedException {
+        Spool spool = new Spool(folder.getRoot().toPath(), Spool.DEFAULT_SEGMENT_SIZE);
+        // one out-of-order bin in memory, and two on disk
+        ReorderingQueue queue = new ReorderingQueue(2, spool, 2);
+        Bin inMemory = bin(2, new byte[]{2}, false);
+        Bin spilled = bin(3, new byte[]{3, 3}, false);
+        Bin onDisk = bin(4, new byte[]{4}, true);
+        BinaryObject onDiskObject = onDisk.object;
+        assertTrue(queue.add(inMemory));
+        assertTrue(queue.add(spilled));
+        assertTrue(queue.add(onDisk));
+        assertFalse(queue.add(bin(5, new byte[]{5}, false)));
+        assertTrue(queue.add(bin(1, new byte[]{1}, false)));
+
+        assertFalse(inMemory.spilled);
+        assertTrue(spilled.spilled);
+        assertTrue(spilled.object instanceof SpoolBinaryObject);
+        assertTrue(onDisk.spilled);
+        assertSame(onDiskObject, onDisk.object);
+
+        assertArrayEquals(new byte[]{1}, content(queue.take()));
+        assertArrayEquals(new byte[]{2}, content(queue.take()));
+        assertArrayEquals(new byte[]{3, 3}, content(queue.take()));
+        // a disk slot is free again
+        assertTrue(queue.add(bin(5, new byte[]{5}, false)));
+        assertArrayEquals(new byte[]{4}, content(queue.take()));
+        assertArrayEquals(new byte[]{5}, content(queue.take()));
+        spool.close();
+    }
+
+    @Test
+    public void wakesTheConsumerWhenTheNextBinArrives() throws Exception {
+        ReorderingQueue queue = new ReorderingQueue(10);
+        assertTrue(queue.add(bin(2, new byte[0], false)));
+        CompletableFuture<Bin> taken = CompletableFuture.supplyAsync(() -> {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(200);
+        assertFalse(taken.isDone());
+        long added = System.nanoTime();
+        assertTrue(queue.add(bin(1, new byte[0], false)));
+        assertEquals(1, taken.get(5, TimeUnit.SECONDS).sequence);
+        // the consumer is notified, rather than waking when its wait for the gauge refresh times out
+        assertTrue(System.nanoTime() - added < TimeUnit.MILLISECONDS.toNanos(ReorderingQueue.GAUGE_REFRESH_MILLIS / 2));
+        assertTrue(queue.getHeadOfLineNanos() >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void failureStopsAWaitingConsumer() throws Exception {
+        ReorderingQueue queue = new ReorderingQueue(10);
+        assertTrue(queue.add(bin(2, new byte[0], false)));
+        CompletableFuture<Bin> taken = CompletableFuture.supplyAsync(() -> {
+            try {
+                return queue.take();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(100);
+        IllegalStateException cause = new IllegalStateException("download failed");
+        queue.fail(cause);
+        queue.fail(new IllegalStateException("later failure"));
+        try {
+            taken.get(5, TimeUnit.SECONDS);
+            fail("take should have failed");
+        } catch (ExecutionException e) {
+            assertEquals("Bin 1 can't be provided", e.getCause().getMessage());
+            assertSame(cause, e.getCause().getCause());
+        }
+        assertTrue(queue.isFailed());
+    }
+}